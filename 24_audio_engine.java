@@ -0,0 +1,3189 @@
+package com.synthwave.piano;
+
+import javax.sound.sampled.*;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// AudioEngine.java
+/**
+ * Single long-lived audio output shared by every key of the piano.
+ *
+ * <p>One {@link SourceDataLine} is opened for the lifetime of the application
+ * and fed by one render thread that mixes all sounding voices into a single
+ * buffer. Key presses and releases never touch the line; they only post
+ * timestamped events to a single-producer/single-consumer
+ * {@link NoteEventQueue}. Other producers, such as a MIDI receiver thread,
+ * get a queue of their own through {@link #openInput()}; the render thread
+ * merges all queues in timestamp order. A closed input's queue is drained
+ * by the render thread before it is dropped, so its last note-offs still
+ * sound and its slot can be opened again.</p>
+ *
+ * <p>Each block covers the wall-clock window since the previous block
+ * started. Events posted inside that window are applied at the matching
+ * sample offset of the block, so note timing is preserved to the sample at
+ * a constant latency of one block instead of being rounded to block
+ * boundaries.</p>
+ *
+ * <p>Block size and line buffer size can be changed while running, either
+ * directly or by an auto-tuning mode that keeps halving them until the
+ * line underruns. Latency, underruns and render-time budget are published
+ * through {@link #metrics()}; notes, blocks, underruns and voice steals
+ * are also emitted as Flight Recorder events (see {@link SynthEvents}).</p>
+ *
+ * <p>The line runs in the device's own format where possible (see
+ * {@link OutputFormat#negotiate()}): the mix stays 32-bit float and
+ * stereo until a {@link FrameEncoder} writes the block out, and each key
+ * has its own position in the stereo field.</p>
+ *
+ * <p>An engine created with {@link #headless(int, OutputFormat)} has no
+ * line and no render thread; the caller pulls blocks with
+ * {@link #render(byte[], int)} instead, which suits embedding the
+ * synthesizer in a server-side renderer.</p>
+ *
+ * <p>Polyphony is capped at a configurable maximum, and new notes beyond
+ * it steal a voice (see {@link StealPolicy}). When the smoothed render
+ * load climbs past {@code LOAD_HIGH} the engine lowers the cap and fades
+ * out the excess voices rather than letting the line underrun; it raises
+ * the cap again once the load falls below {@code LOAD_LOW}.</p>
+ */
+class AudioEngine implements AutoCloseable {
+    /** Largest block the mixer renders */
+    private static final int MAX_BLOCK_FRAMES = AudioConfig.BUFFER_SIZE / 2;
+
+    private final SourceDataLine line;
+    private final OutputFormat format;
+    private final FrameEncoder encoder;
+    private final int frameBytes;
+    private final VoiceMixer mixer;
+
+    /** Open and draining inputs, merged by the render thread; replaced as a whole */
+    private final AtomicReference<NoteInput[]> inputs = new AtomicReference<>(new NoteInput[0]);
+
+    /** Closed inputs still in {@code inputs}, so the render thread only looks when there are some */
+    private final AtomicInteger closingInputs = new AtomicInteger();
+
+    /** Next serial of each input slot, kept across reopening so identifiers stay unique; guarded by this */
+    private final int[] nextSerials = new int[AudioConfig.MAX_EVENT_INPUTS];
+    private final byte[] buffer;
+    private final AudioMetrics metrics;
+    private final Thread renderThread;
+    private volatile boolean running;
+    private long windowStart;
+
+    /** Whether {@link #render(byte[], int)} has set {@code windowStart} */
+    private boolean pulling;
+
+    /** Requested sizes, applied by the render thread at the next block */
+    private volatile int blockFrames = AudioConfig.BLOCK_FRAMES;
+    private volatile int lineBufferFrames = AudioConfig.BLOCK_FRAMES * AudioConfig.LINE_BUFFER_BLOCKS;
+    private volatile boolean autoTune;
+    private volatile boolean loadShedding = true;
+    private volatile NoteTable noteTable = NoteTable.DEFAULT;
+
+    /** Stereo position of each MIDI note, replaced as a whole */
+    private volatile float[] keyPan = new float[NoteTable.NOTES];
+
+    /** Line buffer size the line is currently open with; render thread only */
+    private int openLineBufferFrames;
+
+    /** Timestamp and block offset of the first note-on in the current block */
+    private long firstNoteOnTime;
+    private int firstNoteOnOffset = -1;
+
+    /** Events rejected because a queue was full, across all inputs */
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    /** Input owned by the JavaFX application thread */
+    private final NoteInput ui;
+
+    AudioEngine(SourceDataLine line, int polyphony) {
+        this(line, polyphony, OutputFormat.DEFAULT);
+    }
+
+    /**
+     * @param line Output line, opened by {@link #start()} in {@code format}
+     * @param polyphony Most voices that may ever sound at once
+     * @param format Format to open the line in
+     */
+    AudioEngine(SourceDataLine line, int polyphony, OutputFormat format) {
+        this.line = line;
+        this.format = format;
+        this.encoder = format.encoder();
+        this.frameBytes = format.frameBytes();
+        this.buffer = new byte[MAX_BLOCK_FRAMES * frameBytes];
+        this.metrics = new AudioMetrics(format.sampleRate);
+        this.metrics.registry().counter("synth_events_dropped_total", "Note events lost to a full queue",
+            droppedEvents::get);
+        this.mixer = new VoiceMixer(polyphony, format.sampleRate);
+        registerCacheMetrics();
+        this.ui = openInput();
+        this.renderThread = new Thread(this::renderLoop, "synth-render");
+        this.renderThread.setDaemon(true);
+        this.renderThread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    private void registerCacheMetrics() {
+        MetricsRegistry registry = metrics.registry();
+        registry.counter("synth_note_cache_hits_total", "Note-ons started from a cached attack",
+            () -> mixer.noteCache() == null ? 0 : mixer.noteCache().hits());
+        registry.counter("synth_note_cache_misses_total", "Note-ons synthesized from the first frame",
+            () -> mixer.noteCache() == null ? 0 : mixer.noteCache().misses());
+        registry.gauge("synth_note_cache_bytes", "Memory held by cached attacks",
+            () -> mixer.noteCache() == null ? 0 : mixer.noteCache().memoryBytes());
+    }
+
+    /**
+     * Opens the default output line in the negotiated format and returns
+     * an engine ready to be started.
+     *
+     * @return A new engine owning the opened line
+     * @throws AudioInitializationException if no output line is available
+     */
+    static AudioEngine open() {
+        return open(AudioConfig.MAX_POLYPHONY);
+    }
+
+    /**
+     * Same as {@link #open()} with room for {@code polyphony} voices.
+     *
+     * @param polyphony Most voices that may ever sound at once
+     * @return A new engine owning the opened line
+     * @throws AudioInitializationException if no output line is available
+     */
+    static AudioEngine open(int polyphony) {
+        return open(polyphony, OutputFormat.negotiate());
+    }
+
+    /**
+     * Same as {@link #open(int)} in a given format instead of the
+     * negotiated one.
+     *
+     * @throws AudioInitializationException if no output line is available
+     *         in that format
+     */
+    static AudioEngine open(int polyphony, OutputFormat format) {
+        if (polyphony < 1) {
+            throw new AudioInitializationException("Polyphony must be at least 1: " + polyphony);
+        }
+        try {
+            SourceDataLine line = AudioSystem.getSourceDataLine(format.toAudioFormat());
+            return new AudioEngine(line, polyphony, format);
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            throw new AudioInitializationException("Audio output unavailable: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates an engine with no output line, for callers that pull audio
+     * with {@link #render(byte[], int)}. Opens no device, so it is ready
+     * in milliseconds and works on machines without a sound card.
+     *
+     * @param polyphony Most voices that may ever sound at once
+     * @param format Format {@code render} writes
+     * @throws AudioInitializationException if {@code polyphony} is below 1
+     */
+    static AudioEngine headless(int polyphony, OutputFormat format) {
+        if (polyphony < 1) {
+            throw new AudioInitializationException("Polyphony must be at least 1: " + polyphony);
+        }
+        return new AudioEngine(null, polyphony, format);
+    }
+
+    /**
+     * Opens the output line with the requested buffer size and starts the
+     * render thread.
+     *
+     * @throws AudioInitializationException if the line cannot be opened
+     */
+    void start() {
+        if (line == null) {
+            throw new IllegalStateException("Headless engine has no line to start");
+        }
+        try {
+            openLine(lineBufferFrames);
+        } catch (LineUnavailableException e) {
+            throw new AudioInitializationException("Audio output unavailable: " + e.getMessage());
+        }
+        running = true;
+        renderThread.start();
+    }
+
+    /**
+     * Sets the number of frames rendered per block. Takes effect at the
+     * next block.
+     *
+     * @param frames Block size, clamped to
+     *        {@code MIN_BLOCK_FRAMES..BUFFER_SIZE / 2}
+     */
+    void setBlockFrames(int frames) {
+        blockFrames = Math.max(AudioConfig.MIN_BLOCK_FRAMES, Math.min(MAX_BLOCK_FRAMES, frames));
+    }
+
+    int blockFrames() {
+        return blockFrames;
+    }
+
+    /**
+     * Sets the output line's buffer size. The render thread reopens the
+     * line at the next block, which costs one short gap in the output.
+     *
+     * @param frames Line buffer size; should be at least two blocks
+     */
+    void setLineBufferFrames(int frames) {
+        lineBufferFrames = Math.max(AudioConfig.MIN_BLOCK_FRAMES, frames);
+    }
+
+    int lineBufferFrames() {
+        return lineBufferFrames;
+    }
+
+    /**
+     * Enables auto-tuning: starting from the current sizes, the block and
+     * line buffer are halved after each stable period until the line
+     * underruns, then stepped back up once and left there.
+     *
+     * @param enabled Whether to tune
+     */
+    void setAutoTune(boolean enabled) {
+        autoTune = enabled;
+    }
+
+    /**
+     * @return The format the line is opened in
+     */
+    OutputFormat format() {
+        return format;
+    }
+
+    int sampleRate() {
+        return format.sampleRate;
+    }
+
+    /**
+     * Places a key in the stereo field for notes started after this call.
+     * May be called from any thread.
+     *
+     * @param note MIDI note number, 0..127
+     * @param pan -1 for hard left, 0 for centre, 1 for hard right
+     */
+    synchronized void setKeyPan(int note, float pan) {
+        float[] table = keyPan.clone();
+        table[note] = Math.max(-1f, Math.min(1f, pan));
+        keyPan = table;
+    }
+
+    /**
+     * Spreads the keys from {@code lowNote} to {@code highNote} evenly
+     * from left to right, as heard from the player's seat; keys outside
+     * the range take the nearest end. May be called from any thread.
+     *
+     * @param width 0 for every key in the centre, 1 for the ends hard left
+     *        and right
+     */
+    synchronized void setKeyPanSpread(int lowNote, int highNote, float width) {
+        float[] table = new float[NoteTable.NOTES];
+        double centre = (lowNote + highNote) / 2.0;
+        double half = Math.max(1, (highNote - lowNote) / 2.0);
+        for (int note = 0; note < table.length; note++) {
+            table[note] = (float) (width * Math.max(-1, Math.min(1, (note - centre) / half)));
+        }
+        keyPan = table;
+    }
+
+    /**
+     * @return The stereo position of notes started on {@code note}
+     */
+    float keyPan(int note) {
+        return keyPan[note];
+    }
+
+    /**
+     * Caps the number of voices sounding at once. Lowering it fades out
+     * the excess voices. May be called from any thread.
+     *
+     * @param voices Limit, clamped to the polyphony the engine was
+     *        opened with
+     */
+    void setMaxPolyphony(int voices) {
+        mixer.setMaxPolyphony(voices);
+    }
+
+    int maxPolyphony() {
+        return mixer.maxPolyphony();
+    }
+
+    /**
+     * Selects which voice a note-on takes over once the limit is reached.
+     * {@link StealPolicy#OLDEST} by default.
+     */
+    void setStealPolicy(StealPolicy policy) {
+        mixer.setStealPolicy(policy);
+    }
+
+    /**
+     * Whether re-striking a pitch that is still held reuses its voice.
+     * On by default.
+     */
+    void setRetriggerSameNote(boolean retrigger) {
+        mixer.setRetriggerSameNote(retrigger);
+    }
+
+    /**
+     * Enables lowering the voice limit under CPU load. On by default;
+     * when off, the limit stays at {@link #maxPolyphony()} however long
+     * blocks take to render.
+     */
+    void setLoadShedding(boolean enabled) {
+        loadShedding = enabled;
+    }
+
+    /**
+     * @return Live latency, underrun, render budget and voice figures
+     */
+    AudioMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Requests a new note. Must only be called from the one producer
+     * thread (the JavaFX application thread); never blocks.
+     *
+     * @param frequency The note frequency in Hz
+     * @return An identifier to pass to {@link #noteOff(int)}
+     */
+    int noteOn(double frequency) {
+        return ui.noteOn(frequency, 1f);
+    }
+
+    /**
+     * Starts a note by MIDI note number, tuned by the current
+     * {@link NoteTable}. Same threading rules as {@link #noteOn(double)}.
+     *
+     * @param note MIDI note number, 0..127
+     * @return An identifier to pass to {@link #noteOff(int)}
+     */
+    int playNote(int note) {
+        return ui.playNote(note, 1f);
+    }
+
+    /**
+     * Starts a note by MIDI note number at the given loudness. Same
+     * threading rules as {@link #noteOn(double)}.
+     *
+     * @param note MIDI note number, 0..127
+     * @param gain Voice gain, 0..1
+     * @return An identifier to pass to {@link #noteOff(int)}
+     */
+    int playNote(int note, float gain) {
+        return ui.playNote(note, gain);
+    }
+
+    /**
+     * Changes the tuning used by subsequent {@link #playNote(int)} calls.
+     * Notes already sounding keep their pitch.
+     *
+     * @param table The new tuning
+     */
+    void setNoteTable(NoteTable table) {
+        noteTable = table;
+        mixer.setNoteTable(table);
+    }
+
+    NoteTable noteTable() {
+        return noteTable;
+    }
+
+    /**
+     * Releases a note previously started with {@link #noteOn(double)}.
+     * Same threading rules as {@code noteOn}; never blocks.
+     *
+     * @param id The identifier returned by {@code noteOn}
+     */
+    void noteOff(int id) {
+        ui.noteOff(id);
+    }
+
+    /**
+     * Adds an event queue for one more producer thread. Note identifiers
+     * issued by different inputs never collide, including inputs opened in
+     * the slot of a closed one.
+     *
+     * @return A handle to be used from a single thread only; close it
+     *         when the producer is done
+     * @throws IllegalStateException if {@code MAX_EVENT_INPUTS} inputs are
+     *         open or still draining
+     */
+    synchronized NoteInput openInput() {
+        while (true) {
+            NoteInput[] current = inputs.get();
+            if (current.length == AudioConfig.MAX_EVENT_INPUTS) {
+                throw new IllegalStateException("All " + AudioConfig.MAX_EVENT_INPUTS + " event inputs are in use");
+            }
+            int index = freeSlot(current);
+            NoteInput input = new NoteInput(this, new NoteEventQueue(AudioConfig.EVENT_QUEUE_CAPACITY), index,
+                Math.max(1, nextSerials[index]), droppedEvents);
+            NoteInput[] grown = java.util.Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = input;
+            // Only fails if the render thread dropped a drained input meanwhile
+            if (inputs.compareAndSet(current, grown)) {
+                return input;
+            }
+        }
+    }
+
+    private static int freeSlot(NoteInput[] open) {
+        int used = 0;
+        for (NoteInput input : open) {
+            used |= 1 << input.index;
+        }
+        return Integer.numberOfTrailingZeros(~used);
+    }
+
+    /**
+     * Called by {@link NoteInput#close()}. An input with nothing queued is
+     * dropped at once; otherwise the render thread keeps applying its
+     * events, future-stamped ones at their time, and drops it once empty.
+     */
+    synchronized void closeInput(NoteInput input) {
+        nextSerials[input.index] = input.nextSerial();
+        closingInputs.incrementAndGet();
+        if (input.queue.isEmpty()) {
+            removeDrained();
+        }
+    }
+
+    /**
+     * Drops closed inputs whose queues are empty. Lock-free, as the render
+     * thread calls it too.
+     */
+    private void removeDrained() {
+        while (true) {
+            NoteInput[] current = inputs.get();
+            NoteInput[] kept = new NoteInput[current.length];
+            int count = 0;
+            for (NoteInput input : current) {
+                if (!input.isClosed() || !input.queue.isEmpty()) {
+                    kept[count++] = input;
+                }
+            }
+            if (count == current.length) {
+                return;
+            }
+            if (inputs.compareAndSet(current, java.util.Arrays.copyOf(kept, count))) {
+                closingInputs.addAndGet(count - current.length);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Number of sounding voices. Only meaningful on the render thread or
+     * while the engine is not running.
+     */
+    int activeVoices() {
+        return mixer.activeVoices();
+    }
+
+    /**
+     * @return The number of events lost because a queue was full
+     */
+    long droppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Selects the oscillator waveform used by subsequently started notes.
+     *
+     * @param waveform The waveform to use
+     */
+    void setWaveform(Waveform waveform) {
+        mixer.setWaveform(waveform);
+    }
+
+    /**
+     * Plays subsequently started notes from a memory-mapped sample bank,
+     * or from the waveform again when {@code bank} is null.
+     *
+     * @param bank The instrument to use
+     */
+    void setInstrument(SampleBank bank) {
+        mixer.setInstrument(bank);
+    }
+
+    /**
+     * Stacks detuned oscillators on subsequently started notes; see
+     * {@link Unison}. Sampled notes are not affected.
+     *
+     * @param unison The stack, or {@code Unison.OFF}
+     */
+    void setUnison(Unison unison) {
+        mixer.setUnison(unison);
+    }
+
+    /**
+     * Selects the amplitude envelope used by subsequently started notes.
+     *
+     * @param envelope The envelope to use
+     */
+    void setEnvelope(Envelope envelope) {
+        mixer.setEnvelope(envelope);
+    }
+
+    /**
+     * Starts repeated notes from pre-rendered attacks. The render thread
+     * takes the cache over from the next block; do not give it to another
+     * engine.
+     *
+     * @param cache The cache, or null to turn caching off
+     */
+    void setNoteCache(NoteCache cache) {
+        mixer.setNoteCache(cache);
+    }
+
+    /**
+     * @return The attack cache in use, for its hit rate and memory
+     *         figures; null when off
+     */
+    NoteCache noteCache() {
+        return mixer.noteCache();
+    }
+
+    /**
+     * @return The live effects chain; reconfigure it from any thread
+     */
+    EffectsChain effects() {
+        return mixer.effects();
+    }
+
+    /**
+     * Renders the next {@code frames} frames for a caller that pulls audio
+     * itself rather than calling {@link #start()}. The blocks cover the
+     * wall-clock time since the previous call, so events posted in between
+     * land at the matching offsets, as on the live line. Call from one
+     * thread only.
+     *
+     * @param out Destination, {@code format().frameBytes()} per frame,
+     *        written from offset 0
+     * @param frames Frames to render; any number
+     * @throws IllegalStateException if the render thread is running
+     */
+    void render(byte[] out, int frames) {
+        if (running) {
+            throw new IllegalStateException("Engine is rendering to its own line");
+        }
+        long now = System.nanoTime();
+        if (!pulling) {
+            windowStart = now;
+            pulling = true;
+        }
+        long start = windowStart;
+        for (int done = 0; done < frames; ) {
+            int n = Math.min(MAX_BLOCK_FRAMES, frames - done);
+            long end = start + (now - start) * (done + n) / frames;
+            renderBlock(buffer, n, windowStart, end);
+            System.arraycopy(buffer, 0, out, done * frameBytes, n * frameBytes);
+            windowStart = end;
+            done += n;
+        }
+        windowStart = now;
+    }
+
+    /**
+     * Stops the render thread and releases the output line, if any.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (line == null) {
+            return;
+        }
+        try {
+            renderThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        line.stop();
+        line.flush();
+        line.close();
+    }
+
+    private void openLine(int frames) throws LineUnavailableException {
+        if (line.isOpen()) {
+            line.stop();
+            line.flush();
+            line.close();
+        }
+        line.open(format.toAudioFormat(), frames * frameBytes);
+        line.start();
+        openLineBufferFrames = frames;
+    }
+
+    /**
+     * Renders one block covering the wall-clock window
+     * {@code [windowStart, windowEnd)}. Every queued event stamped before
+     * {@code windowEnd}, from any input, is applied at the sample offset its timestamp maps
+     * to within the block; the block is rendered in pieces split at those
+     * offsets.
+     *
+     * @param out Destination buffer, {@code format().frameBytes()} per frame
+     * @param frames Block length
+     * @param windowStart {@code System.nanoTime()} at the start of the window
+     * @param windowEnd {@code System.nanoTime()} at the end of the window
+     */
+    void renderBlock(byte[] out, int frames, long windowStart, long windowEnd) {
+        long window = Math.max(1, windowEnd - windowStart);
+        NoteInput[] open = inputs.get();
+        int position = 0;
+        while (true) {
+            NoteEventQueue events = null;
+            for (NoteInput input : open) {
+                NoteEventQueue queue = input.queue;
+                if (!queue.isEmpty() && queue.peekTime() - windowEnd < 0
+                        && (events == null || queue.peekTime() - events.peekTime() < 0)) {
+                    events = queue;
+                }
+            }
+            if (events == null) {
+                break;
+            }
+            long elapsed = Math.max(0, events.peekTime() - windowStart);
+            int offset = (int) Math.min(frames, elapsed * frames / window);
+            if (offset > position) {
+                mixer.render(out, position * frameBytes, offset - position, encoder);
+                position = offset;
+            }
+            long delay = windowEnd - events.peekTime();
+            if (events.peekType() == NoteEvent.NOTE_ON) {
+                if (firstNoteOnOffset < 0) {
+                    firstNoteOnTime = events.peekTime();
+                    firstNoteOnOffset = offset;
+                }
+                mixer.noteOn(events.peekId(), events.peekFrequency(), events.peekGain(), events.peekPan());
+                metrics.recordNote(true);
+                SynthEvents.noteOn(events.peekId(), events.peekFrequency(), events.peekGain(), offset, delay);
+            } else {
+                mixer.noteOff(events.peekId());
+                metrics.recordNote(false);
+                SynthEvents.noteOff(events.peekId(), offset, delay);
+            }
+            events.advance();
+        }
+        if (position < frames) {
+            mixer.render(out, position * frameBytes, frames - position, encoder);
+        }
+        if (closingInputs.get() > 0) {
+            removeDrained();
+        }
+    }
+
+    private void renderLoop() {
+        LatencyTuner tuner = null;
+        LoadGovernor governor = new LoadGovernor(AudioConfig.LOAD_HIGH, AudioConfig.LOAD_LOW,
+            AudioConfig.MIN_VOICE_LIMIT, AudioConfig.LOAD_HOLD_BLOCKS);
+        boolean primed = false;
+        boolean failing = false;
+        try {
+            windowStart = System.nanoTime();
+            while (running) {
+                if (autoTune && tuner == null) {
+                    tuner = new LatencyTuner(blockFrames, AudioConfig.MIN_BLOCK_FRAMES,
+                        (long) (AudioConfig.AUTOTUNE_STABLE_SECONDS * format.sampleRate));
+                } else if (!autoTune) {
+                    tuner = null;
+                }
+                if (lineBufferFrames != openLineBufferFrames) {
+                    openLine(lineBufferFrames);
+                    primed = false;
+                }
+
+                int frames = blockFrames;
+                long now = System.nanoTime();
+                try {
+                    renderBlock(buffer, frames, windowStart, now);
+                    failing = false;
+                } catch (RuntimeException | InternalError e) {
+                    // A throwing effect or a truncated sample file (InternalError from the mapping)
+                    // costs this block, not the engine: the line gets silence and the loop carries on
+                    java.util.Arrays.fill(buffer, 0, frames * frameBytes, (byte) 0);
+                    metrics.recordError("render", e);
+                    if (!failing) {
+                        e.printStackTrace();
+                    }
+                    failing = true;
+                }
+                windowStart = now;
+                long renderNanos = System.nanoTime() - now;
+
+                // A completely empty line buffer means the device ran dry
+                int queuedFrames = (line.getBufferSize() - line.available()) / frameBytes;
+                boolean underrun = primed && queuedFrames <= 0;
+                primed = true;
+                double budget = metrics.recordBlock(renderNanos, frames, underrun);
+                int limit = governor.onBlock(budget, mixer.activeVoices(), mixer.maxPolyphony());
+                mixer.setVoiceLimit(loadShedding ? limit : Integer.MAX_VALUE);
+                metrics.recordVoices(mixer.activeVoices(), Math.min(limit, mixer.maxPolyphony()),
+                    mixer.steals(), governor.load());
+                SynthEvents.blockRendered(frames, renderNanos, budget, metrics.activeVoices(), metrics.voiceLimit());
+                if (underrun) {
+                    SynthEvents.underrun(frames, openLineBufferFrames);
+                }
+                if (firstNoteOnOffset >= 0) {
+                    long untilHeard = (queuedFrames + firstNoteOnOffset) * 1_000_000_000L
+                        / format.sampleRate;
+                    metrics.recordLatency(System.nanoTime() - firstNoteOnTime + untilHeard);
+                    firstNoteOnOffset = -1;
+                }
+
+                line.write(buffer, 0, frames * frameBytes);
+
+                if (tuner != null && tuner.onBlock(frames, underrun)) {
+                    blockFrames = tuner.blockFrames();
+                    lineBufferFrames = tuner.blockFrames() * AudioConfig.LINE_BUFFER_BLOCKS;
+                }
+            }
+        } catch (Exception e) {
+            // The line itself failed; nothing more can be played
+            metrics.recordError("line", e);
+            e.printStackTrace();
+        }
+    }
+}
+
+// NoteInput.java
+/**
+ * One producer's connection to an {@link AudioEngine}. Each input owns a
+ * single-producer queue, so all calls on one instance must come from the
+ * same thread; different inputs may be used concurrently.
+ *
+ * <p>Identifiers are {@code serial * MAX_EVENT_INPUTS + index}, which keeps
+ * them unique across inputs without coordination and never zero.</p>
+ *
+ * <p>{@link #close()} gives the input back to the engine once the render
+ * thread has applied what is still queued; events posted after it are
+ * dropped.</p>
+ */
+final class NoteInput implements AutoCloseable {
+    private final AudioEngine engine;
+    final NoteEventQueue queue;
+    final int index;
+    private final AtomicLong droppedEvents;
+    private int nextSerial;
+    private volatile boolean closed;
+
+    /**
+     * @param index Slot of this input, 0..{@code MAX_EVENT_INPUTS - 1}
+     * @param firstSerial Serial of the first identifier issued
+     */
+    NoteInput(AudioEngine engine, NoteEventQueue queue, int index, int firstSerial, AtomicLong droppedEvents) {
+        this.engine = engine;
+        this.queue = queue;
+        this.index = index;
+        this.nextSerial = firstSerial;
+        this.droppedEvents = droppedEvents;
+    }
+
+    /**
+     * @param frequency The note frequency in Hz
+     * @param gain Voice gain, 0..1
+     * @return An identifier to pass to {@link #noteOff(int)}
+     */
+    int noteOn(double frequency, float gain) {
+        return noteOnAt(System.nanoTime(), frequency, gain);
+    }
+
+    /**
+     * Starts a note at a given time rather than now. An event stamped in
+     * the future waits in the queue until the block covering it, and so
+     * does everything posted after it on this input; post in time order.
+     *
+     * @param time {@code System.nanoTime()} at which the note starts
+     * @param frequency The note frequency in Hz
+     * @param gain Voice gain, 0..1
+     * @return An identifier to pass to {@link #noteOffAt(long, int)}
+     */
+    int noteOnAt(long time, double frequency, float gain) {
+        return noteOnAt(time, frequency, gain, 0f);
+    }
+
+    private int noteOnAt(long time, double frequency, float gain, float pan) {
+        int id = nextSerial++ * AudioConfig.MAX_EVENT_INPUTS + index;
+        post(NoteEvent.NOTE_ON, id, frequency, gain, pan, time);
+        return id;
+    }
+
+    /**
+     * @param note MIDI note number, 0..127, tuned by the engine's
+     *        current {@link NoteTable} and placed at its key's pan position
+     * @param gain Voice gain, 0..1
+     * @return An identifier to pass to {@link #noteOff(int)}
+     */
+    int playNote(int note, float gain) {
+        return playNoteAt(System.nanoTime(), note, gain);
+    }
+
+    /**
+     * Same as {@link #playNote(int, float)} at a given time; see
+     * {@link #noteOnAt}.
+     */
+    int playNoteAt(long time, int note, float gain) {
+        return noteOnAt(time, engine.noteTable().frequency(note), gain, engine.keyPan(note));
+    }
+
+    void noteOff(int id) {
+        noteOffAt(System.nanoTime(), id);
+    }
+
+    /**
+     * Releases a note at a given time; see {@link #noteOnAt}.
+     */
+    void noteOffAt(long time, int id) {
+        post(NoteEvent.NOTE_OFF, id, 0, 0f, 0f, time);
+    }
+
+    private void post(int type, int id, double frequency, float gain, float pan, long time) {
+        if (closed || !queue.offer(type, id, frequency, gain, pan, time)) {
+            droppedEvents.incrementAndGet();
+        }
+    }
+
+    int nextSerial() {
+        return nextSerial;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops taking events and returns the input to the engine; what is
+     * already queued still plays. Call it from the producer thread, after
+     * the producer's last event. Closing twice has no further effect.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            engine.closeInput(this);
+        }
+    }
+}
+
+// AudioMetrics.java
+/**
+ * Live figures published by the render thread and readable from any
+ * thread: key-to-first-sample latency, underruns, how much of each
+ * block's real-time budget was spent rendering it, and voice usage.
+ *
+ * <p>The same figures, plus render time and latency histograms, are kept
+ * in a {@link MetricsRegistry} that can be dumped or served over HTTP.</p>
+ */
+final class AudioMetrics {
+    /** Upper bounds of the render time histogram, in seconds */
+    private static final double[] RENDER_BUCKETS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05};
+
+    /** Upper bounds of the key-to-sound latency histogram, in seconds */
+    private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.015, 0.02, 0.03, 0.05, 0.075, 0.1, 0.25};
+
+    private final int sampleRate;
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final MetricsRegistry.Histogram renderSeconds;
+    private final MetricsRegistry.Histogram latencySeconds;
+    private volatile long underruns;
+    private volatile long blocks;
+    private volatile long notesOn;
+    private volatile long notesOff;
+    private volatile long lastLatencyNanos = -1;
+    private volatile long maxLatencyNanos = -1;
+    private volatile double lastBudgetUsed;
+    private volatile double peakBudgetUsed;
+    private volatile double cpuLoad;
+    private volatile int activeVoices;
+    private volatile int voiceLimit;
+    /** Values of the {@code source} label of {@code synth_errors_total} */
+    static final String[] ERROR_SOURCES = {"render", "line", "samples", "midi", "recording", "metrics"};
+
+    private final MetricsRegistry.LabeledCounter errors;
+    private volatile long voicesStolen;
+
+    AudioMetrics(int sampleRate) {
+        this.sampleRate = sampleRate;
+        registry.counter("synth_blocks_total", "Blocks rendered", this::blocks);
+        registry.counter("synth_underruns_total", "Times the output line ran dry", this::underruns);
+        registry.counter("synth_notes_on_total", "Note-ons applied", this::notesOn);
+        registry.counter("synth_notes_off_total", "Note-offs applied", this::notesOff);
+        registry.counter("synth_voices_stolen_total", "Voices taken over or faded out to make room",
+            this::voicesStolen);
+        errors = registry.labeledCounter("synth_errors_total", "Failures the synthesizer played on through",
+            "source", ERROR_SOURCES);
+        registry.gauge("synth_active_voices", "Voices sounding, releasing ones included", this::activeVoices);
+        registry.gauge("synth_voice_limit", "Voice limit in force", this::voiceLimit);
+        registry.gauge("synth_cpu_load", "Smoothed render time as a fraction of block duration", this::cpuLoad);
+        registry.gauge("synth_budget_used_peak", "Highest render time as a fraction of block duration",
+            this::peakBudgetUsed);
+        renderSeconds = registry.histogram("synth_block_render_seconds", "Time to render one block",
+            RENDER_BUCKETS);
+        latencySeconds = registry.histogram("synth_note_latency_seconds",
+            "Estimated time from key press to first sample leaving the line", LATENCY_BUCKETS);
+        registry.registerJvmMetrics();
+    }
+
+    /**
+     * @return The registry holding these figures; the engine adds its own
+     */
+    MetricsRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Render thread only.
+     *
+     * @return The budget fraction used by this block
+     */
+    double recordBlock(long renderNanos, int frames, boolean underrun) {
+        double budget = (double) renderNanos * sampleRate / (frames * 1_000_000_000.0);
+        lastBudgetUsed = budget;
+        if (budget > peakBudgetUsed) {
+            peakBudgetUsed = budget;
+        }
+        if (underrun) {
+            underruns++;
+        }
+        blocks++;
+        renderSeconds.observe(renderNanos / 1e9);
+        return budget;
+    }
+
+    /** Render thread only */
+    void recordNote(boolean on) {
+        if (on) {
+            notesOn++;
+        } else {
+            notesOff++;
+        }
+    }
+
+    /** Render thread only */
+    void recordVoices(int active, int limit, long stolen, double load) {
+        activeVoices = active;
+        voiceLimit = limit;
+        voicesStolen = stolen;
+        cpuLoad = load;
+    }
+
+    /**
+     * Counts a failure and emits a {@code synth.Error} event. May be
+     * called from any thread; the caller decides whether to also log it.
+     *
+     * @param source One of {@link #ERROR_SOURCES}: {@code render} for a
+     *        block replaced by silence, {@code line} for the output line
+     *        failing, and for {@link PianoSynth}'s optional parts
+     *        {@code samples}, {@code midi}, {@code recording} and
+     *        {@code metrics}
+     */
+    void recordError(String source, Throwable error) {
+        errors.increment(source);
+        SynthEvents.error(source, error);
+    }
+
+    /** Render thread only */
+    void recordLatency(long nanos) {
+        latencySeconds.observe(nanos / 1e9);
+        lastLatencyNanos = nanos;
+        if (nanos > maxLatencyNanos) {
+            maxLatencyNanos = nanos;
+        }
+    }
+
+    /**
+     * @return Times the line ran dry since the engine started
+     */
+    long underruns() {
+        return underruns;
+    }
+
+    /**
+     * @return Blocks rendered since the engine started
+     */
+    long blocks() {
+        return blocks;
+    }
+
+    long notesOn() {
+        return notesOn;
+    }
+
+    long notesOff() {
+        return notesOff;
+    }
+
+    /**
+     * @return Estimated time from the most recent key press to its first
+     *         sample leaving the line, or -1 if no note has played yet
+     */
+    long lastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    /**
+     * @return Largest key-to-first-sample latency seen, or -1
+     */
+    long maxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /**
+     * @return Render time of the last block as a fraction of its duration;
+     *         above 1 the engine cannot keep up
+     */
+    double lastBudgetUsed() {
+        return lastBudgetUsed;
+    }
+
+    /**
+     * @return Highest budget fraction seen
+     */
+    double peakBudgetUsed() {
+        return peakBudgetUsed;
+    }
+
+    /**
+     * @return Budget fraction smoothed over recent blocks; the figure load
+     *         shedding acts on
+     */
+    double cpuLoad() {
+        return cpuLoad;
+    }
+
+    /**
+     * @return Voices sounding after the last block, releasing ones included
+     */
+    int activeVoices() {
+        return activeVoices;
+    }
+
+    /**
+     * @return Voice limit in force, below the configured maximum while
+     *         load shedding is active
+     */
+    int voiceLimit() {
+        return voiceLimit;
+    }
+
+    /**
+     * @return Voices stolen or faded out to make room since the engine
+     *         started
+     */
+    long voicesStolen() {
+        return voicesStolen;
+    }
+
+    /**
+     * @return Failures counted under {@code source} since the engine
+     *         started
+     */
+    long errors(String source) {
+        return errors.get(source);
+    }
+
+    /**
+     * @return Blocks replaced by silence because rendering them threw
+     */
+    long renderFailures() {
+        return errors("render");
+    }
+}
+
+// LatencyTuner.java
+/**
+ * Search for the smallest block size that plays without underruns.
+ *
+ * <p>Halves the block size each time {@code stableFrames} frames have been
+ * rendered without an underrun. On the first underrun it doubles the size
+ * once and stops tuning.</p>
+ */
+final class LatencyTuner {
+    private final int minFrames;
+    private final long stableFrames;
+    private int blockFrames;
+    private long framesSinceChange;
+    private boolean settled;
+
+    LatencyTuner(int startFrames, int minFrames, long stableFrames) {
+        this.blockFrames = startFrames;
+        this.minFrames = minFrames;
+        this.stableFrames = stableFrames;
+    }
+
+    /**
+     * Records one block.
+     *
+     * @param frames Frames in the block
+     * @param underrun Whether the line ran dry before it
+     * @return Whether the block size changed
+     */
+    boolean onBlock(int frames, boolean underrun) {
+        if (settled) {
+            return false;
+        }
+        if (underrun) {
+            blockFrames *= 2;
+            settled = true;
+            return true;
+        }
+        framesSinceChange += frames;
+        if (framesSinceChange >= stableFrames) {
+            framesSinceChange = 0;
+            if (blockFrames / 2 < minFrames) {
+                settled = true;
+                return false;
+            }
+            blockFrames /= 2;
+            return true;
+        }
+        return false;
+    }
+
+    int blockFrames() {
+        return blockFrames;
+    }
+
+    boolean isSettled() {
+        return settled;
+    }
+}
+
+// LoadGovernor.java
+/**
+ * Keeps the render thread inside its real-time budget by adjusting the
+ * voice limit.
+ *
+ * <p>Tracks the per-block budget fraction with an exponential moving
+ * average. Above {@code high} it cuts the limit to three quarters of the
+ * voices sounding; below {@code low} it gives one voice back. Each change
+ * is followed by {@code holdBlocks} blocks without another, so the average
+ * can show its effect first.</p>
+ */
+final class LoadGovernor {
+    /** Weight of the newest block in the moving average */
+    private static final double SMOOTHING = 0.1;
+
+    private final double high;
+    private final double low;
+    private final int minVoices;
+    private final int holdBlocks;
+    private double load;
+    private int limit = Integer.MAX_VALUE;
+    private int hold;
+
+    LoadGovernor(double high, double low, int minVoices, int holdBlocks) {
+        this.high = high;
+        this.low = low;
+        this.minVoices = minVoices;
+        this.holdBlocks = holdBlocks;
+    }
+
+    /**
+     * Records one block.
+     *
+     * @param budget Render time of the block as a fraction of its duration
+     * @param activeVoices Voices sounding
+     * @param maxVoices Configured limit, never exceeded
+     * @return The voice limit to apply
+     */
+    int onBlock(double budget, int activeVoices, int maxVoices) {
+        load += (budget - load) * SMOOTHING;
+        limit = Math.min(limit, maxVoices);
+        if (hold > 0) {
+            hold--;
+        } else if (load > high && activeVoices > minVoices) {
+            limit = Math.max(minVoices, Math.min(limit, activeVoices) * 3 / 4);
+            hold = holdBlocks;
+        } else if (load < low && limit < maxVoices) {
+            limit++;
+            hold = holdBlocks;
+        }
+        return limit;
+    }
+
+    /**
+     * @return The smoothed budget fraction
+     */
+    double load() {
+        return load;
+    }
+
+    int limit() {
+        return limit;
+    }
+}
+
+// NoteEvent.java
+/**
+ * Immutable note-on or note-off request, timed by sample frame.
+ *
+ * <p>Used for offline rendering and tests. The live engine passes the same
+ * fields through a {@link NoteEventQueue} without allocating.</p>
+ */
+final class NoteEvent {
+    static final int NOTE_ON = 0;
+    static final int NOTE_OFF = 1;
+
+    final int type;
+    final long frame;
+    final int id;
+    final double frequency;
+    final float gain;
+    final float pan;
+
+    private NoteEvent(int type, long frame, int id, double frequency, float gain) {
+        this(type, frame, id, frequency, gain, 0f);
+    }
+
+    private NoteEvent(int type, long frame, int id, double frequency, float gain, float pan) {
+        this.type = type;
+        this.frame = frame;
+        this.id = id;
+        this.frequency = frequency;
+        this.gain = gain;
+        this.pan = pan;
+    }
+
+    static NoteEvent noteOn(int id, double frequency) {
+        return new NoteEvent(NOTE_ON, 0, id, frequency, 1f);
+    }
+
+    static NoteEvent noteOff(int id) {
+        return new NoteEvent(NOTE_OFF, 0, id, 0, 0f);
+    }
+
+    static NoteEvent noteOn(long frame, int id, double frequency) {
+        return new NoteEvent(NOTE_ON, frame, id, frequency, 1f);
+    }
+
+    static NoteEvent noteOn(long frame, int id, double frequency, float gain) {
+        return new NoteEvent(NOTE_ON, frame, id, frequency, gain);
+    }
+
+    /**
+     * @param pan Stereo position, -1 (left) to 1 (right)
+     */
+    static NoteEvent noteOn(long frame, int id, double frequency, float gain, float pan) {
+        return new NoteEvent(NOTE_ON, frame, id, frequency, gain, pan);
+    }
+
+    static NoteEvent noteOff(long frame, int id) {
+        return new NoteEvent(NOTE_OFF, frame, id, 0, 0f);
+    }
+}
+
+// NoteEventQueue.java
+/**
+ * Bounded lock-free ring buffer of timestamped note events for exactly one
+ * producer thread and one consumer thread.
+ *
+ * <p>Events are stored field by field in parallel primitive arrays, so
+ * neither side allocates. The producer publishes a slot by advancing
+ * {@code tail} with release semantics after filling it; the consumer frees
+ * a slot by advancing {@code head} the same way. Each side caches the
+ * other's index and only re-reads it when the ring looks full or empty.</p>
+ */
+final class NoteEventQueue {
+    private final int mask;
+    private final long[] time;
+    private final int[] type;
+    private final int[] id;
+    private final double[] frequency;
+    private final float[] gain;
+    private final float[] pan;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Producer's last view of {@code head} */
+    private long cachedHead;
+
+    /** Consumer's last view of {@code tail} */
+    private long cachedTail;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two
+     */
+    NoteEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        time = new long[size];
+        type = new int[size];
+        id = new int[size];
+        frequency = new double[size];
+        gain = new float[size];
+        pan = new float[size];
+    }
+
+    /**
+     * Producer side: appends an event.
+     *
+     * @return {@code false} if the queue is full and the event was dropped
+     */
+    boolean offer(int eventType, int noteId, double hz, long nanos) {
+        return offer(eventType, noteId, hz, 1f, nanos);
+    }
+
+    /**
+     * Producer side: appends an event with an explicit voice gain.
+     *
+     * @return {@code false} if the queue is full and the event was dropped
+     */
+    boolean offer(int eventType, int noteId, double hz, float voiceGain, long nanos) {
+        return offer(eventType, noteId, hz, voiceGain, 0f, nanos);
+    }
+
+    /**
+     * Producer side: appends an event with an explicit voice gain and
+     * stereo position.
+     *
+     * @return {@code false} if the queue is full and the event was dropped
+     */
+    boolean offer(int eventType, int noteId, double hz, float voiceGain, float voicePan, long nanos) {
+        long t = tail.get();
+        if (t - cachedHead > mask) {
+            cachedHead = head.get();
+            if (t - cachedHead > mask) {
+                return false;
+            }
+        }
+        int slot = (int) t & mask;
+        time[slot] = nanos;
+        type[slot] = eventType;
+        id[slot] = noteId;
+        frequency[slot] = hz;
+        gain[slot] = voiceGain;
+        pan[slot] = voicePan;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side: whether no event is ready.
+     */
+    boolean isEmpty() {
+        long h = head.get();
+        if (h < cachedTail) {
+            return false;
+        }
+        cachedTail = tail.get();
+        return h >= cachedTail;
+    }
+
+    /** Consumer side: fields of the oldest event; only valid when not empty */
+    long peekTime() {
+        return time[(int) head.get() & mask];
+    }
+
+    int peekType() {
+        return type[(int) head.get() & mask];
+    }
+
+    int peekId() {
+        return id[(int) head.get() & mask];
+    }
+
+    double peekFrequency() {
+        return frequency[(int) head.get() & mask];
+    }
+
+    float peekGain() {
+        return gain[(int) head.get() & mask];
+    }
+
+    float peekPan() {
+        return pan[(int) head.get() & mask];
+    }
+
+    /**
+     * Consumer side: discards the oldest event.
+     */
+    void advance() {
+        head.lazySet(head.get() + 1);
+    }
+}
+
+// VoiceMixer.java
+/**
+ * Mixes a fixed number of voices onto a stereo float bus and converts it
+ * to PCM.
+ *
+ * <p>Owned by a single render thread. Holds no reference to any audio
+ * device, so it can be driven directly by tests. All state lives in a
+ * preallocated {@link VoicePool}, so rendering never allocates.</p>
+ *
+ * <p>A block goes through separate stages, each a flat loop over float
+ * arrays that the JIT or a {@link BlockKernel} can vectorize: generate
+ * each voice into a scratch block, sum it into the left and right mix
+ * at the voice's pan gains, run the {@link EffectsChain}, apply master
+ * gain and clipping, then convert to the output format with a
+ * {@link FrameEncoder}. The 16-bit mono methods average the two
+ * channels, so centred voices sound exactly as on a mono bus.</p>
+ */
+class VoiceMixer {
+    private final VoicePool voices;
+    private final BlockKernel kernel;
+    private final float[] left;
+    private final float[] right;
+    private final float[] mono;
+    private final float[] voiceBlock;
+    private final float[] voiceRight;
+    private final short[] pcm;
+    private final EffectsChain effects = new EffectsChain();
+    private volatile Waveform waveform = Waveform.CLASSIC;
+    private volatile SampleBank instrument;
+    private volatile NoteTable tuning = NoteTable.DEFAULT;
+    private volatile NoteCache noteCache;
+    private volatile Envelope envelope = Envelope.DEFAULT;
+    private volatile Unison unison = Unison.OFF;
+    private volatile float masterGain = 1f;
+    private volatile StealPolicy stealPolicy = StealPolicy.OLDEST;
+    private volatile boolean retriggerSameNote = true;
+    private volatile int maxPolyphony;
+    private volatile int voiceLimit;
+
+    VoiceMixer(int polyphony, int sampleRate) {
+        this(polyphony, sampleRate, BlockKernel.select());
+    }
+
+    VoiceMixer(int polyphony, int sampleRate, BlockKernel kernel) {
+        this.voices = new VoicePool(polyphony, sampleRate);
+        this.kernel = kernel;
+        this.maxPolyphony = polyphony;
+        this.voiceLimit = polyphony;
+        applyAllocationSettings();
+        int frames = AudioConfig.BUFFER_SIZE / 2;
+        left = new float[frames];
+        right = new float[frames];
+        mono = new float[frames];
+        voiceBlock = new float[frames];
+        voiceRight = new float[frames];
+        pcm = new short[frames];
+    }
+
+    /**
+     * Applies a note event. A note-on arriving while every voice is busy
+     * is dropped.
+     *
+     * @param event The event to apply
+     */
+    void apply(NoteEvent event) {
+        if (event.type == NoteEvent.NOTE_ON) {
+            noteOn(event.id, event.frequency, event.gain, event.pan);
+        } else {
+            noteOff(event.id);
+        }
+    }
+
+    void noteOn(int id, double frequency) {
+        noteOn(id, frequency, 1f);
+    }
+
+    void noteOn(int id, double frequency, float gain) {
+        noteOn(id, frequency, gain, 0f);
+    }
+
+    /**
+     * @param pan Stereo position, -1 (left) to 1 (right)
+     */
+    void noteOn(int id, double frequency, float gain, float pan) {
+        voices.setCache(noteCache);
+        voices.unison = unison;
+        voices.tuning = tuning;
+        voices.allocate(id, frequency, gain, pan, waveform, envelope, instrument);
+    }
+
+    /** Copies the allocation settings into the pool; render thread only */
+    private void applyAllocationSettings() {
+        voices.stealPolicy = stealPolicy;
+        voices.retriggerSameNote = retriggerSameNote;
+        voices.unison = unison;
+        voices.setCache(noteCache);
+        int limit = Math.min(maxPolyphony, voiceLimit);
+        if (limit != voices.voiceLimit) {
+            voices.voiceLimit = limit;
+            voices.enforceLimit(AudioConfig.STEAL_FADE_SECONDS);
+        }
+    }
+
+    /**
+     * Moves the note into its release stage; the voice returns to the pool
+     * once the envelope reaches zero.
+     */
+    void noteOff(int id) {
+        voices.release(id);
+    }
+
+    /**
+     * Renders {@code frames} samples of all active voices into {@code out}.
+     *
+     * @param out Destination buffer, two bytes per frame
+     * @param offset Byte offset into {@code out}
+     * @param frames Number of frames to render, at most {@code BUFFER_SIZE / 2}
+     */
+    void render(byte[] out, int offset, int frames) {
+        PcmEncoder.pack16BigEndian(renderPcm(frames), frames, out, offset);
+    }
+
+    /**
+     * Renders {@code frames} frames of all active voices in the encoder's
+     * format.
+     *
+     * @param out Destination buffer, {@code OutputFormat.frameBytes()} per frame
+     * @param offset Byte offset into {@code out}
+     * @param frames Number of frames to render, at most {@code BUFFER_SIZE / 2}
+     * @param encoder Conversion to the output format
+     */
+    void render(byte[] out, int offset, int frames, FrameEncoder encoder) {
+        mixStereo(frames);
+        encoder.encode(left, right, frames, out, offset);
+    }
+
+    /**
+     * Renders {@code frames} samples as 16-bit values, before byte packing.
+     *
+     * @param frames Number of frames to render, at most {@code BUFFER_SIZE / 2}
+     * @return The internal sample buffer; valid until the next call
+     */
+    short[] renderPcm(int frames) {
+        kernel.toPcm16(mix(frames), pcm, frames);
+        return pcm;
+    }
+
+    /**
+     * Mixes {@code frames} frames and averages the two channels.
+     *
+     * @param frames Number of frames to render, at most {@code BUFFER_SIZE / 2}
+     * @return The internal mono buffer, -1..1; valid until the next call
+     */
+    float[] mix(int frames) {
+        mixStereo(frames);
+        for (int i = 0; i < frames; i++) {
+            mono[i] = (left[i] + right[i]) * 0.5f;
+        }
+        return mono;
+    }
+
+    /**
+     * Sums {@code frames} frames of all active voices into the left and
+     * right bus at their pan gains, runs the effects chain, then applies
+     * master gain and clips to the range -1..1. Read the result with
+     * {@link #left()} and {@link #right()}.
+     *
+     * @param frames Number of frames to render, at most {@code BUFFER_SIZE / 2}
+     */
+    void mixStereo(int frames) {
+        applyAllocationSettings();
+        java.util.Arrays.fill(left, 0, frames, 0f);
+        java.util.Arrays.fill(right, 0, frames, 0f);
+        for (int v = 0; v < voices.capacity; v++) {
+            if (voices.envStage[v] == VoicePool.IDLE) {
+                continue;
+            }
+            float gain = voices.amplitude[v];
+            if (voices.isUnison(v)) {
+                voices.renderUnison(v, voiceBlock, voiceRight, frames);
+                voices.applyEnvelope(v, voiceBlock, voiceRight, frames);
+                kernel.accumulate(voiceBlock, gain * voices.panLeft[v], left, frames);
+                kernel.accumulate(voiceRight, gain * voices.panRight[v], right, frames);
+            } else {
+                voices.render(v, voiceBlock, frames);
+                voices.applyEnvelope(v, voiceBlock, frames);
+                kernel.accumulate(voiceBlock, gain * voices.panLeft[v], left, frames);
+                kernel.accumulate(voiceBlock, gain * voices.panRight[v], right, frames);
+            }
+        }
+        effects.process(left, right, frames);
+        kernel.scaleAndClip(left, masterGain, frames);
+        kernel.scaleAndClip(right, masterGain, frames);
+    }
+
+    /** Left channel of the last {@link #mixStereo}; render thread only */
+    float[] left() {
+        return left;
+    }
+
+    /** Right channel of the last {@link #mixStereo}; render thread only */
+    float[] right() {
+        return right;
+    }
+
+    /**
+     * Selects how a note-on makes room when the voice limit is reached.
+     * May be called from any thread; applies from the next block.
+     */
+    void setStealPolicy(StealPolicy policy) {
+        this.stealPolicy = policy;
+    }
+
+    /**
+     * Whether re-striking a sounding pitch reuses its voice instead of
+     * stacking another. May be called from any thread.
+     */
+    void setRetriggerSameNote(boolean retrigger) {
+        this.retriggerSameNote = retrigger;
+    }
+
+    /**
+     * Sets the configured maximum number of sounding voices. Excess voices
+     * fade out quickly from the next block. May be called from any thread.
+     *
+     * @param voices Limit, clamped to {@code 1..polyphony()}
+     */
+    void setMaxPolyphony(int voices) {
+        this.maxPolyphony = Math.max(1, Math.min(voices, this.voices.capacity));
+    }
+
+    int maxPolyphony() {
+        return maxPolyphony;
+    }
+
+    /**
+     * Temporarily lowers the voice limit below the configured maximum,
+     * e.g. under CPU load. May be called from any thread.
+     */
+    void setVoiceLimit(int voices) {
+        this.voiceLimit = Math.max(1, voices);
+    }
+
+    /**
+     * @return Voices stolen or faded out to make room since construction;
+     *         render thread only
+     */
+    long steals() {
+        return voices.steals;
+    }
+
+    /**
+     * @return The effects applied after mixing; empty by default
+     */
+    EffectsChain effects() {
+        return effects;
+    }
+
+    /**
+     * Sets the gain applied to the summed voices before clipping. May be
+     * called from any thread.
+     *
+     * @param gain Linear gain, 1 for unity
+     */
+    void setMasterGain(float gain) {
+        this.masterGain = gain;
+    }
+
+    /**
+     * Selects the waveform for notes started after this call. May be
+     * called from any thread.
+     *
+     * @param waveform The waveform to use
+     */
+    void setWaveform(Waveform waveform) {
+        this.waveform = waveform;
+    }
+
+    /**
+     * Plays notes started after this call from a sample bank instead of
+     * the waveform. May be called from any thread.
+     *
+     * @param bank The instrument, or null for the waveform
+     */
+    void setInstrument(SampleBank bank) {
+        this.instrument = bank;
+    }
+
+    /**
+     * Sets the tuning note-on pitches come from, so a sampled note plays
+     * the zone of the key it was played on. May be called from any
+     * thread; applies to notes started after it.
+     */
+    void setNoteTable(NoteTable table) {
+        this.tuning = table;
+    }
+
+    /**
+     * Starts notes from pre-rendered attacks where the cache has them,
+     * from the next block on. May be called from any thread, but the
+     * cache must not be shared with another mixer.
+     *
+     * @param cache The cache, or null to synthesize every note from its
+     *        first frame
+     */
+    void setNoteCache(NoteCache cache) {
+        this.noteCache = cache;
+    }
+
+    NoteCache noteCache() {
+        return noteCache;
+    }
+
+    /**
+     * Stacks detuned oscillators on wavetable notes started after this
+     * call. May be called from any thread.
+     *
+     * @param unison The stack, or {@code Unison.OFF} for one oscillator
+     */
+    void setUnison(Unison unison) {
+        this.unison = unison;
+    }
+
+    /**
+     * Selects the envelope for notes started after this call. May be
+     * called from any thread.
+     *
+     * @param envelope The envelope to use
+     */
+    void setEnvelope(Envelope envelope) {
+        this.envelope = envelope;
+    }
+
+    /**
+     * @return The number of voices currently sounding, including releasing ones
+     */
+    int activeVoices() {
+        return voices.activeCount();
+    }
+
+    int polyphony() {
+        return voices.capacity;
+    }
+}
+
+// PcmEncoder.java
+/**
+ * Packs 16-bit samples into the byte order of the output.
+ */
+final class PcmEncoder {
+    private static final VarHandle BIG_ENDIAN =
+        MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LITTLE_ENDIAN =
+        MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private PcmEncoder() {
+    }
+
+    /**
+     * Writes {@code frames} samples as 16-bit big-endian values, the live
+     * line format.
+     *
+     * @param pcm Source samples
+     * @param frames Number of samples to pack
+     * @param out Destination buffer, two bytes per sample
+     * @param offset Byte offset into {@code out}
+     */
+    static void pack16BigEndian(short[] pcm, int frames, byte[] out, int offset) {
+        for (int i = 0; i < frames; i++) {
+            BIG_ENDIAN.set(out, offset + 2 * i, pcm[i]);
+        }
+    }
+
+    /**
+     * Same as {@link #pack16BigEndian} but little-endian, as stored in
+     * WAV files.
+     */
+    static void pack16LittleEndian(short[] pcm, int frames, byte[] out, int offset) {
+        for (int i = 0; i < frames; i++) {
+            LITTLE_ENDIAN.set(out, offset + 2 * i, pcm[i]);
+        }
+    }
+}
+
+// BlockKernel.java
+/**
+ * Arithmetic stages of the block pipeline, each a loop over whole blocks.
+ *
+ * <p>{@link ScalarBlockKernel} is plain Java that HotSpot auto-vectorizes.
+ * Starting the JVM with {@code -Dsynth.kernel=vector} and
+ * {@code --add-modules jdk.incubator.vector} selects the explicit
+ * {@code VectorBlockKernel} instead; if that module is missing the scalar
+ * kernel is used.</p>
+ */
+interface BlockKernel {
+    /**
+     * {@code dst[i] += src[i] * gain} for the first {@code frames} samples.
+     */
+    void accumulate(float[] src, float gain, float[] dst, int frames);
+
+    /**
+     * {@code buf[i] = clamp(buf[i] * gain, -1, 1)} for the first {@code frames} samples.
+     */
+    void scaleAndClip(float[] buf, float gain, int frames);
+
+    /**
+     * Converts samples in the range -1..1 to 16-bit values.
+     */
+    void toPcm16(float[] src, short[] dst, int frames);
+
+    /**
+     * Returns the kernel chosen by the {@code synth.kernel} system property.
+     */
+    static BlockKernel select() {
+        if ("vector".equals(System.getProperty("synth.kernel"))) {
+            try {
+                return (BlockKernel) Class.forName("com.synthwave.piano.VectorBlockKernel")
+                    .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("Vector kernel unavailable, using scalar kernel: " + e);
+            }
+        }
+        return ScalarBlockKernel.INSTANCE;
+    }
+}
+
+// ScalarBlockKernel.java
+/**
+ * Portable {@link BlockKernel}; simple counted loops with no branches so
+ * that C2 can auto-vectorize them.
+ */
+final class ScalarBlockKernel implements BlockKernel {
+    static final ScalarBlockKernel INSTANCE = new ScalarBlockKernel();
+
+    @Override
+    public void accumulate(float[] src, float gain, float[] dst, int frames) {
+        for (int i = 0; i < frames; i++) {
+            dst[i] += src[i] * gain;
+        }
+    }
+
+    @Override
+    public void scaleAndClip(float[] buf, float gain, int frames) {
+        for (int i = 0; i < frames; i++) {
+            buf[i] = Math.max(-1f, Math.min(1f, buf[i] * gain));
+        }
+    }
+
+    @Override
+    public void toPcm16(float[] src, short[] dst, int frames) {
+        for (int i = 0; i < frames; i++) {
+            dst[i] = (short) (src[i] * Short.MAX_VALUE);
+        }
+    }
+}
+
+// OfflineRenderer.java
+/**
+ * Renders a list of timed note events to PCM without an audio device, as
+ * fast as the CPU allows.
+ *
+ * <p>Uses the same {@link VoiceMixer} as the live engine. Blocks are split
+ * at event frames so every event takes effect on its exact sample. Output
+ * length is the frame of the last event plus a fixed tail, so it is known
+ * before rendering starts and WAV headers can be streamed. Make the tail
+ * at least the envelope's release time to keep the final release.</p>
+ *
+ * <p>Output is 16-bit PCM, mono by default. Anything the setters do not
+ * cover, such as the effects chain, is configured on the mixer itself
+ * through {@link #setMixerSetup}.</p>
+ */
+class OfflineRenderer {
+    private final int polyphony;
+    private final int sampleRate;
+    private final long tailFrames;
+    private final byte[] buffer = new byte[AudioConfig.BUFFER_SIZE];
+    private Waveform waveform = Waveform.CLASSIC;
+    private SampleBank instrument;
+    private Envelope envelope = Envelope.DEFAULT;
+    private Unison unison = Unison.OFF;
+    private Consumer<VoiceMixer> mixerSetup = mixer -> { };
+    private int channels = 1;
+
+    /**
+     * @param polyphony Maximum simultaneous voices
+     * @param sampleRate Output sample rate in Hz
+     * @param tailFrames Frames rendered after the last event
+     */
+    OfflineRenderer(int polyphony, int sampleRate, long tailFrames) {
+        this.polyphony = polyphony;
+        this.sampleRate = sampleRate;
+        this.tailFrames = tailFrames;
+    }
+
+    void setWaveform(Waveform waveform) {
+        this.waveform = waveform;
+    }
+
+    void setEnvelope(Envelope envelope) {
+        this.envelope = envelope;
+    }
+
+    /**
+     * @param bank Sample bank to play instead of the waveform, or null
+     */
+    void setInstrument(SampleBank bank) {
+        this.instrument = bank;
+    }
+
+    void setUnison(Unison unison) {
+        this.unison = unison;
+    }
+
+    /**
+     * Sets a hook that configures each render's mixer after the settings
+     * above, e.g. {@code mixer -> mixer.effects().add(new Delay(...))}.
+     * It runs once per render on a new mixer, so it should create new
+     * effect instances each time rather than share stateful ones.
+     *
+     * @param setup Mixer configuration; replaces any previous hook
+     */
+    void setMixerSetup(Consumer<VoiceMixer> setup) {
+        this.mixerSetup = setup;
+    }
+
+    /**
+     * @param channels 1 for mono (the average of the mixer's two channels)
+     *        or 2 for interleaved stereo
+     * @throws IllegalArgumentException if {@code channels} is not 1 or 2
+     */
+    void setChannels(int channels) {
+        if (channels != 1 && channels != 2) {
+            throw new IllegalArgumentException("Unsupported channel count: " + channels);
+        }
+        this.channels = channels;
+    }
+
+    int sampleRate() {
+        return sampleRate;
+    }
+
+    long tailFrames() {
+        return tailFrames;
+    }
+
+    /**
+     * @param events The note events to render
+     * @return The number of frames {@code render} will produce for them
+     */
+    long lengthInFrames(List<NoteEvent> events) {
+        long last = 0;
+        for (NoteEvent event : events) {
+            last = Math.max(last, event.frame);
+        }
+        return last + tailFrames;
+    }
+
+    /**
+     * Streams the events as 16-bit big-endian PCM, the live engine's line
+     * format when mono.
+     *
+     * @param events Note events; need not be sorted
+     * @param out Destination stream; not closed
+     * @throws IOException if writing fails
+     */
+    void render(List<NoteEvent> events, OutputStream out) throws IOException {
+        render(events, out, false);
+    }
+
+    /**
+     * Streams the events as a 16-bit WAV file.
+     *
+     * @param events Note events; need not be sorted
+     * @param out Destination stream; not closed
+     * @throws IOException if writing fails
+     */
+    void renderWav(List<NoteEvent> events, OutputStream out) throws IOException {
+        WavHeader.write(out, sampleRate, channels, 16, lengthInFrames(events) * 2 * channels);
+        render(events, out, true);
+    }
+
+    /**
+     * Renders the events into a WAV file, replacing it if it exists.
+     *
+     * @param events Note events; need not be sorted
+     * @param file Destination file
+     * @throws IOException if writing fails
+     */
+    void renderWav(List<NoteEvent> events, Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            renderWav(events, out);
+        }
+    }
+
+    private void render(List<NoteEvent> events, OutputStream out, boolean littleEndian)
+            throws IOException {
+        List<NoteEvent> sorted = sorted(events);
+        renderRange(sorted, 0, lengthInFrames(sorted), littleEndian, out);
+    }
+
+    static List<NoteEvent> sorted(List<NoteEvent> events) {
+        List<NoteEvent> sorted = new ArrayList<>(events);
+        sorted.sort(Comparator.comparingLong(e -> e.frame));
+        return sorted;
+    }
+
+    /**
+     * Renders frames {@code start} (inclusive) to {@code end} (exclusive)
+     * starting from silence. Events before {@code start} are skipped, so
+     * the range must begin at a point where nothing is sounding.
+     *
+     * @param sorted Note events sorted by frame
+     * @param start First frame to render
+     * @param end Frame after the last one to render
+     * @param littleEndian Whether to encode little-endian (WAV) samples
+     * @param out Destination stream; not closed
+     * @throws IOException if writing fails
+     */
+    void renderRange(List<NoteEvent> sorted, long start, long end, boolean littleEndian,
+                     OutputStream out) throws IOException {
+        int frameBytes = 2 * channels;
+        int blockFrames = buffer.length / frameBytes;
+        FrameEncoder stereo = new FrameEncoder.Pcm16(2, !littleEndian);
+        VoiceMixer mixer = new VoiceMixer(polyphony, sampleRate);
+        mixer.setWaveform(waveform);
+        mixer.setInstrument(instrument);
+        mixer.setUnison(unison);
+        mixer.setEnvelope(envelope);
+        mixerSetup.accept(mixer);
+        int next = 0;
+        while (next < sorted.size() && sorted.get(next).frame < start) {
+            next++;
+        }
+        long frame = start;
+        while (frame < end) {
+            while (next < sorted.size() && sorted.get(next).frame <= frame) {
+                mixer.apply(sorted.get(next++));
+            }
+            long until = Math.min(end, frame + blockFrames);
+            if (next < sorted.size()) {
+                until = Math.min(until, sorted.get(next).frame);
+            }
+            int frames = (int) (until - frame);
+            if (channels == 2) {
+                mixer.render(buffer, 0, frames, stereo);
+            } else {
+                short[] pcm = mixer.renderPcm(frames);
+                if (littleEndian) {
+                    PcmEncoder.pack16LittleEndian(pcm, frames, buffer, 0);
+                } else {
+                    PcmEncoder.pack16BigEndian(pcm, frames, buffer, 0);
+                }
+            }
+            out.write(buffer, 0, frames * frameBytes);
+            frame = until;
+        }
+    }
+}
+
+// BatchRenderer.java
+/**
+ * Renders many note sequences, or one long sequence, on all cores.
+ *
+ * <p>Work runs on a dedicated {@link ForkJoinPool}. Each task owns its own
+ * {@link OfflineRenderer} and streams its output block by block, so memory
+ * use is bounded by the pool's parallelism rather than by the amount of
+ * audio rendered.</p>
+ */
+class BatchRenderer implements AutoCloseable {
+    private final int polyphony;
+    private final int sampleRate;
+    private final long tailFrames;
+    private final ForkJoinPool pool;
+    private volatile Envelope envelope = Envelope.DEFAULT;
+
+    /**
+     * @param polyphony Maximum simultaneous voices per sequence
+     * @param sampleRate Output sample rate in Hz
+     * @param tailFrames Frames rendered after the last event of a sequence
+     * @param parallelism Number of worker threads
+     */
+    BatchRenderer(int polyphony, int sampleRate, long tailFrames, int parallelism) {
+        this.polyphony = polyphony;
+        this.sampleRate = sampleRate;
+        this.tailFrames = tailFrames;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Renders each sequence to the WAV file at the same index.
+     *
+     * @param sequences Note sequences
+     * @param outputs Destination files, one per sequence
+     * @throws IOException if any output fails
+     */
+    void renderAll(List<List<NoteEvent>> sequences, List<Path> outputs) throws IOException {
+        if (sequences.size() != outputs.size()) {
+            throw new IllegalArgumentException(sequences.size() + " sequences but "
+                                               + outputs.size() + " outputs");
+        }
+        renderAll(sequences, i -> new BufferedOutputStream(
+            Files.newOutputStream(outputs.get(i)), 1 << 16));
+    }
+
+    /**
+     * Renders each sequence as WAV to the stream opened for its index. Each
+     * stream is closed once its sequence is written.
+     *
+     * @param sequences Note sequences
+     * @param outputs Opens the destination stream for a sequence index
+     * @throws IOException if any output fails
+     */
+    void renderAll(List<List<NoteEvent>> sequences, OutputOpener outputs) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>(sequences.size());
+        for (int i = 0; i < sequences.size(); i++) {
+            int index = i;
+            tasks.add(() -> {
+                try (OutputStream out = outputs.open(index)) {
+                    newRenderer().renderWav(sequences.get(index), out);
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Renders one long sequence into a WAV file, splitting it into
+     * independent segments that are rendered in parallel and written
+     * straight to their place in the file.
+     *
+     * @param events Note events; need not be sorted
+     * @param output Destination file
+     * @param minSegmentFrames Shortest segment worth a task of its own
+     * @throws IOException if writing fails
+     */
+    void renderLong(List<NoteEvent> events, Path output, long minSegmentFrames)
+            throws IOException {
+        List<NoteEvent> sorted = OfflineRenderer.sorted(events);
+        long end = newRenderer().lengthInFrames(sorted);
+        try (OutputStream out = Files.newOutputStream(output)) {
+            WavHeader.write(out, sampleRate, 1, 16, end * 2);
+        }
+
+        long[] bounds = splitPoints(sorted, end, minSegmentFrames);
+        List<Callable<Void>> tasks = new ArrayList<>(bounds.length - 1);
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            long start = bounds[i];
+            long stop = bounds[i + 1];
+            tasks.add(() -> {
+                try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+                    channel.position(WavHeader.SIZE + start * 2);
+                    OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+                    newRenderer().renderRange(sorted, start, stop, true, out);
+                    out.flush();
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Sets the envelope used for every sequence rendered afterwards.
+     */
+    void setEnvelope(Envelope envelope) {
+        this.envelope = envelope;
+    }
+
+    /**
+     * Finds frames where the sequence can be cut without changing the
+     * output: no note is held and the last note-off was at least
+     * {@code tailFrames} and the envelope release time earlier.
+     *
+     * @return Segment boundaries, starting with 0 and ending with {@code end}
+     */
+    long[] splitPoints(List<NoteEvent> sorted, long end, long minSegmentFrames) {
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        long quiet = Math.max(tailFrames, envelope.releaseFrames(sampleRate));
+        Set<Integer> held = new HashSet<>();
+        long lastRelease = Long.MIN_VALUE / 2;
+        for (NoteEvent event : sorted) {
+            if (event.type == NoteEvent.NOTE_ON) {
+                long previous = bounds.get(bounds.size() - 1);
+                if (held.isEmpty() && event.frame - lastRelease >= quiet
+                        && event.frame - previous >= minSegmentFrames) {
+                    bounds.add(event.frame);
+                }
+                held.add(event.id);
+            } else if (held.remove(event.id) && held.isEmpty()) {
+                lastRelease = event.frame;
+            }
+        }
+        bounds.add(end);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    private OfflineRenderer newRenderer() {
+        OfflineRenderer renderer = new OfflineRenderer(polyphony, sampleRate, tailFrames);
+        renderer.setEnvelope(envelope);
+        return renderer;
+    }
+
+    private void runAll(List<Callable<Void>> tasks) throws IOException {
+        for (Future<Void> result : pool.invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Batch render interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IllegalStateException("Batch render failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Opens the destination stream for one sequence of a batch.
+     */
+    interface OutputOpener {
+        OutputStream open(int index) throws IOException;
+    }
+}
+
+// WavHeader.java
+/**
+ * Writes the 44-byte RIFF/WAVE header for uncompressed PCM.
+ */
+final class WavHeader {
+    static final int SIZE = 44;
+
+    private WavHeader() {
+    }
+
+    /**
+     * @param out Destination stream
+     * @param sampleRate Sample rate in Hz
+     * @param channels Number of interleaved channels
+     * @param bits Bits per sample
+     * @param dataBytes Length of the sample data that will follow
+     * @throws IOException if writing fails
+     */
+    static void write(OutputStream out, int sampleRate, int channels, int bits, long dataBytes)
+            throws IOException {
+        if (dataBytes > 0xFFFFFFFFL - 36) {
+            throw new IOException("Too much audio for a WAV file: " + dataBytes + " bytes");
+        }
+        int blockAlign = channels * bits / 8;
+        byte[] header = new byte[SIZE];
+        putAscii(header, 0, "RIFF");
+        putInt(header, 4, (int) (36 + dataBytes));
+        putAscii(header, 8, "WAVE");
+        putAscii(header, 12, "fmt ");
+        putInt(header, 16, 16);
+        putShort(header, 20, 1);
+        putShort(header, 22, channels);
+        putInt(header, 24, sampleRate);
+        putInt(header, 28, sampleRate * blockAlign);
+        putShort(header, 32, blockAlign);
+        putShort(header, 34, bits);
+        putAscii(header, 36, "data");
+        putInt(header, 40, (int) dataBytes);
+        out.write(header);
+    }
+
+    private static void putAscii(byte[] b, int offset, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            b[offset + i] = (byte) s.charAt(i);
+        }
+    }
+
+    private static void putShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        putShort(b, offset, value);
+        putShort(b, offset + 2, value >> 16);
+    }
+}
+
+// Temperament.java
+/**
+ * Tuning systems, each given as the frequency ratio of the twelve pitch
+ * classes to C. Non-equal temperaments are rooted on C.
+ */
+enum Temperament {
+    EQUAL(1, Math.pow(2, 1 / 12.0), Math.pow(2, 2 / 12.0), Math.pow(2, 3 / 12.0),
+        Math.pow(2, 4 / 12.0), Math.pow(2, 5 / 12.0), Math.pow(2, 6 / 12.0), Math.pow(2, 7 / 12.0),
+        Math.pow(2, 8 / 12.0), Math.pow(2, 9 / 12.0), Math.pow(2, 10 / 12.0), Math.pow(2, 11 / 12.0)),
+    JUST(1, 16 / 15.0, 9 / 8.0, 6 / 5.0, 5 / 4.0, 4 / 3.0, 45 / 32.0, 3 / 2.0,
+        8 / 5.0, 5 / 3.0, 9 / 5.0, 15 / 8.0),
+    PYTHAGOREAN(1, 256 / 243.0, 9 / 8.0, 32 / 27.0, 81 / 64.0, 4 / 3.0, 729 / 512.0, 3 / 2.0,
+        128 / 81.0, 27 / 16.0, 16 / 9.0, 243 / 128.0),
+    WERCKMEISTER_III(1, 256 / 243.0, 64 / 81.0 * Math.sqrt(2), 32 / 27.0,
+        256 / 243.0 * Math.pow(2, 0.25), 4 / 3.0, 1024 / 729.0, 8 / 9.0 * Math.pow(8, 0.25),
+        128 / 81.0, 1024 / 729.0 * Math.pow(2, 0.25), 16 / 9.0, 128 / 81.0 * Math.pow(2, 0.25));
+
+    private final double[] ratios;
+
+    Temperament(double... ratios) {
+        this.ratios = ratios;
+    }
+
+    /**
+     * @param pitchClass 0 for C through 11 for B
+     * @return Frequency ratio to the C below, 1..2
+     */
+    double ratio(int pitchClass) {
+        return ratios[pitchClass];
+    }
+}
+
+// NoteTable.java
+/**
+ * Frequencies of all 128 MIDI notes, computed once for a reference pitch
+ * and temperament. Looking up a note is an array index. Voices turn a
+ * frequency into a phase increment at their own sample rate when the note
+ * starts, so the table holds no per-rate data.
+ */
+final class NoteTable {
+    static final int NOTES = 128;
+
+    /** MIDI note number of the reference pitch A4 */
+    static final int A4 = 69;
+
+    /** Equal temperament at {@code AudioConfig.A4_FREQUENCY} */
+    static final NoteTable DEFAULT = new NoteTable(AudioConfig.A4_FREQUENCY, Temperament.EQUAL,
+        AudioConfig.SAMPLE_RATE);
+
+    private final double a4;
+    private final Temperament temperament;
+    private final int sampleRate;
+    private final double[] frequency = new double[NOTES];
+
+    /**
+     * @param a4 Frequency of A4 in Hz
+     * @param temperament Tuning system
+     * @param sampleRate Sample rate of the engine the table is for
+     * @throws IllegalArgumentException if {@code a4} or {@code sampleRate}
+     *         is not positive
+     */
+    NoteTable(double a4, Temperament temperament, int sampleRate) {
+        if (!(a4 > 0) || sampleRate <= 0) {
+            throw new IllegalArgumentException("A4 and sample rate must be positive: " + a4 + ", " + sampleRate);
+        }
+        this.a4 = a4;
+        this.temperament = temperament;
+        this.sampleRate = sampleRate;
+        // C4 is placed so that A4 lands exactly on the reference pitch
+        double c4 = a4 / temperament.ratio(A4 % 12);
+        for (int note = 0; note < NOTES; note++) {
+            double octave = Math.scalb(1.0, note / 12 - 5);
+            frequency[note] = c4 * octave * temperament.ratio(note % 12);
+        }
+    }
+
+    /**
+     * @param note MIDI note number, 0..127
+     * @return Frequency in Hz
+     */
+    double frequency(int note) {
+        return frequency[note];
+    }
+
+    /**
+     * Inverse of {@link #frequency(int)}: the note whose frequency is
+     * closest to {@code hz}, so a pitch taken from this table maps back to
+     * its own note whatever the reference pitch and temperament.
+     *
+     * @param hz Frequency in Hz
+     * @return MIDI note number, 0..127
+     */
+    int note(double hz) {
+        int above = java.util.Arrays.binarySearch(frequency, hz);
+        if (above >= 0) {
+            return above;
+        }
+        above = -above - 1;
+        if (above == 0 || above == NOTES) {
+            return Math.min(above, NOTES - 1);
+        }
+        // Closest by ratio, as pitch is heard
+        return hz / frequency[above - 1] < frequency[above] / hz ? above - 1 : above;
+    }
+
+    double a4() {
+        return a4;
+    }
+
+    Temperament temperament() {
+        return temperament;
+    }
+
+    int sampleRate() {
+        return sampleRate;
+    }
+}
+
+// Envelope.java
+/**
+ * Immutable attack-decay-sustain-release settings. Stage times are in
+ * seconds; a time of zero makes that stage instantaneous.
+ */
+final class Envelope {
+    /** Default envelope built from the {@code AudioConfig} values */
+    static final Envelope DEFAULT = new Envelope(AudioConfig.ATTACK_SECONDS,
+        AudioConfig.DECAY_SECONDS, AudioConfig.SUSTAIN_LEVEL, AudioConfig.RELEASE_SECONDS);
+
+    final double attack;
+    final double decay;
+    final float sustain;
+    final double release;
+
+    /**
+     * @param attack Time to rise from zero to full level
+     * @param decay Time to fall from full level to the sustain level
+     * @param sustain Level held while the key is down, 0..1
+     * @param release Time to fall from full level to zero after note-off
+     * @throws IllegalArgumentException if a time is negative or the
+     *         sustain level is outside 0..1
+     */
+    Envelope(double attack, double decay, float sustain, double release) {
+        if (attack < 0 || decay < 0 || release < 0) {
+            throw new IllegalArgumentException("Envelope times must not be negative");
+        }
+        if (sustain < 0f || sustain > 1f) {
+            throw new IllegalArgumentException("Sustain level must be within 0..1: " + sustain);
+        }
+        this.attack = attack;
+        this.decay = decay;
+        this.sustain = sustain;
+        this.release = release;
+    }
+
+    /**
+     * Level change per sample that covers the full 0..1 range in
+     * {@code seconds}.
+     */
+    float step(double seconds, int sampleRate) {
+        return seconds <= 0 ? 1f : (float) (1.0 / (seconds * sampleRate));
+    }
+
+    /**
+     * @return The number of frames a release from full level lasts
+     */
+    long releaseFrames(int sampleRate) {
+        return (long) Math.ceil(release * sampleRate);
+    }
+}
+
+// VoicePool.java
+/**
+ * Fixed-size pool of voices stored as parallel primitive arrays.
+ *
+ * <p>Slot {@code v} of every array describes the same voice. Slots are
+ * claimed on note-on, move through the ADSR stages while rendering, and
+ * return to the pool by themselves when the release stage reaches zero;
+ * nothing is allocated after construction.</p>
+ *
+ * <p>A voice either runs a wavetable oscillator or, when started with a
+ * {@link SampleBank}, reads a {@link SampleZone} from its memory mapping;
+ * the pool itself only holds the read position and step. Under
+ * {@link #unison} a wavetable voice instead runs a stack of detuned
+ * oscillators kept in a {@link UnisonBank}, and renders in stereo.</p>
+ *
+ * <p>At most {@link #voiceLimit} voices sound at once. A note-on beyond
+ * that takes over a sounding voice according to the {@link StealPolicy};
+ * the stolen voice keeps its phase and envelope level so the hand-over
+ * does not click.</p>
+ */
+class VoicePool {
+    /** Envelope stage of a free slot */
+    static final int IDLE = 0;
+
+    /** Rising linearly from zero to full level */
+    static final int ATTACK = 1;
+
+    /** Falling linearly from full level to the sustain level */
+    static final int DECAY = 2;
+
+    /** Holding the sustain level until note-off */
+    static final int SUSTAIN = 3;
+
+    /** Falling linearly to zero after note-off */
+    static final int RELEASE = 4;
+
+    final int capacity;
+    private final int sampleRate;
+
+    /** Note identifier owning each slot */
+    final int[] noteId;
+
+    /** Oscillator phase in cycles, 0 inclusive to 1 exclusive */
+    final double[] phase;
+
+    /** Phase advance per sample in cycles */
+    final double[] increment;
+
+    /** Waveform each voice reads its wavetable from */
+    final Waveform[] waveform;
+
+    /** Sample each voice plays instead of its wavetable, or null */
+    final SampleZone[] zone;
+
+    /** Read position in the voice's sample, in sample frames */
+    final double[] samplePosition;
+
+    /** Sample frames to advance per output frame */
+    final double[] sampleStep;
+
+    /** {@link NoteCache} entry each voice plays or records its attack in, or -1 */
+    final int[] cacheSlot;
+
+    /** Whether the voice is recording its entry rather than playing it */
+    final boolean[] cacheRecording;
+
+    /** Frames of the entry played or recorded so far */
+    final int[] cachePosition;
+
+    /** Attack cache fresh notes start from, or null */
+    private NoteCache cache;
+
+    /** Oscillator stacks of unison voices */
+    private final UnisonBank stacks;
+
+    /** Per-voice gain, e.g. from velocity */
+    final float[] amplitude;
+
+    /** Current envelope stage, {@link #IDLE} when the slot is free */
+    final int[] envStage;
+
+    /** Current envelope level in the range 0..1 */
+    final float[] envLevel;
+
+    /** Envelope level change per sample in each stage */
+    final float[] attackStep;
+    final float[] decayStep;
+    final float[] releaseStep;
+
+    /** Level held during the sustain stage */
+    final float[] sustainLevel;
+
+    /** Gains placing each voice in the stereo field; both 1 when centred */
+    final float[] panLeft;
+    final float[] panRight;
+
+    /** Allocation order of each voice, for oldest-first stealing */
+    final long[] startedAt;
+    private long allocations;
+
+    /** How to make room when the limit is reached; drops new notes by default */
+    StealPolicy stealPolicy = StealPolicy.NONE;
+
+    /** Whether a note-on for a pitch that is already sounding reuses its voice */
+    boolean retriggerSameNote;
+
+    /** Oscillator stack for wavetable notes started from now on */
+    Unison unison = Unison.OFF;
+
+    /** Tuning note-on frequencies come from, to find a sampled note's key */
+    NoteTable tuning = NoteTable.DEFAULT;
+
+    /** Maximum number of sounding voices, at most {@link #capacity} */
+    int voiceLimit;
+
+    /** Voices taken over or faded out to make room, since construction */
+    long steals;
+
+    VoicePool(int capacity, int sampleRate) {
+        this.capacity = capacity;
+        this.sampleRate = sampleRate;
+        noteId = new int[capacity];
+        phase = new double[capacity];
+        increment = new double[capacity];
+        waveform = new Waveform[capacity];
+        zone = new SampleZone[capacity];
+        samplePosition = new double[capacity];
+        sampleStep = new double[capacity];
+        cacheSlot = new int[capacity];
+        java.util.Arrays.fill(cacheSlot, -1);
+        cacheRecording = new boolean[capacity];
+        cachePosition = new int[capacity];
+        stacks = new UnisonBank(capacity);
+        amplitude = new float[capacity];
+        envStage = new int[capacity];
+        envLevel = new float[capacity];
+        attackStep = new float[capacity];
+        decayStep = new float[capacity];
+        releaseStep = new float[capacity];
+        sustainLevel = new float[capacity];
+        panLeft = new float[capacity];
+        panRight = new float[capacity];
+        startedAt = new long[capacity];
+        voiceLimit = capacity;
+    }
+
+    int allocate(int id, double frequency, float gain, Waveform shape) {
+        return allocate(id, frequency, gain, shape, Envelope.DEFAULT);
+    }
+
+    /**
+     * Claims a slot for a new note and starts its attack stage. Uses a
+     * free slot while fewer than {@link #voiceLimit} voices sound;
+     * otherwise steals one according to {@link #stealPolicy}.
+     *
+     * @param id The note identifier
+     * @param frequency The note frequency in Hz
+     * @param gain The voice gain in the range 0..1
+     * @param shape The oscillator waveform
+     * @param envelope The amplitude envelope
+     * @return The claimed slot, or -1 if the note was dropped
+     */
+    int allocate(int id, double frequency, float gain, Waveform shape, Envelope envelope) {
+        return allocate(id, frequency, gain, 0f, shape, envelope);
+    }
+
+    /**
+     * Same as {@link #allocate(int, double, float, Waveform, Envelope)}
+     * with a stereo position. Panning is constant-power, scaled so a
+     * centred voice has unit gain in both channels.
+     *
+     * @param pan -1 for hard left, 0 for centre, 1 for hard right
+     */
+    int allocate(int id, double frequency, float gain, float pan, Waveform shape, Envelope envelope) {
+        return allocate(id, frequency, gain, pan, shape, envelope, null);
+    }
+
+    /**
+     * Same as {@link #allocate(int, double, float, float, Waveform, Envelope)}
+     * playing from a sample bank instead of the wavetable. The zone is
+     * chosen by the key {@link #tuning} gives the pitch and by the gain,
+     * and always starts from its first frame, even when the voice is
+     * taken over.
+     *
+     * @param bank Instrument to play, or null for {@code shape}
+     */
+    int allocate(int id, double frequency, float gain, float pan, Waveform shape, Envelope envelope,
+                 SampleBank bank) {
+        double delta = frequency / sampleRate;
+        int free = -1;
+        int same = -1;
+        int active = 0;
+        for (int v = 0; v < capacity; v++) {
+            if (envStage[v] == IDLE) {
+                if (free < 0) {
+                    free = v;
+                }
+            } else {
+                active++;
+                if (increment[v] == delta && envStage[v] != RELEASE) {
+                    same = v;
+                }
+            }
+        }
+
+        int v;
+        boolean fresh = false;
+        if (retriggerSameNote && same >= 0) {
+            v = same;
+        } else if (free >= 0 && active < voiceLimit) {
+            v = free;
+            phase[v] = 0;
+            envLevel[v] = 0f;
+            fresh = true;
+        } else {
+            v = victim(stealPolicy);
+            if (v < 0) {
+                return -1;
+            }
+            steals++;
+            SynthEvents.voiceStolen(noteId[v], id, stealPolicy);
+        }
+        leaveCache(v);
+        // A reused voice keeps its phase and level, so the new note starts without a jump
+        noteId[v] = id;
+        increment[v] = delta;
+        waveform[v] = shape;
+        zone[v] = bank == null ? null : bank.zone(frequency, gain, tuning);
+        if (zone[v] != null) {
+            samplePosition[v] = 0;
+            sampleStep[v] = zone[v].step(frequency, sampleRate);
+        }
+        if (zone[v] == null && unison.oscillators > 1) {
+            stacks.start(v, delta, unison, fresh);
+        } else {
+            stacks.stop(v);
+        }
+        amplitude[v] = gain;
+        attackStep[v] = envelope.step(envelope.attack, sampleRate);
+        decayStep[v] = envelope.step(envelope.decay, sampleRate) * (1f - envelope.sustain);
+        releaseStep[v] = envelope.step(envelope.release, sampleRate);
+        sustainLevel[v] = envelope.sustain;
+        double angle = (Math.max(-1f, Math.min(1f, pan)) + 1) * Math.PI / 4;
+        panLeft[v] = (float) (Math.cos(angle) * Math.sqrt(2));
+        panRight[v] = (float) (Math.sin(angle) * Math.sqrt(2));
+        envStage[v] = ATTACK;
+        startedAt[v] = allocations++;
+        // Only a note starting from phase zero sounds like the cached attack; samples always restart
+        if (cache != null && (fresh || zone[v] != null) && !isUnison(v)) {
+            int entry = cache.lookup(zone[v] != null ? zone[v] : shape, zone[v] != null ? sampleStep[v] : delta);
+            cacheSlot[v] = entry;
+            cacheRecording[v] = entry >= 0 && !cache.isReady(entry);
+            cachePosition[v] = 0;
+        }
+        return v;
+    }
+
+    /**
+     * Sets the attack cache used by notes started from now on. Voices
+     * still playing from or recording into the previous cache let go of
+     * it and continue live.
+     *
+     * @param noteCache The cache, or null for none
+     */
+    void setCache(NoteCache noteCache) {
+        if (noteCache == cache) {
+            return;
+        }
+        for (int v = 0; v < capacity; v++) {
+            leaveCache(v);
+        }
+        cache = noteCache;
+    }
+
+    /**
+     * Detaches voice {@code v} from its cache entry. A recording that is
+     * cut short is thrown away; a voice that was playing one picks up the
+     * oscillator phase the attack had reached.
+     */
+    private void leaveCache(int v) {
+        int entry = cacheSlot[v];
+        if (entry < 0) {
+            return;
+        }
+        if (cacheRecording[v]) {
+            cache.abandon(entry);
+        } else {
+            cache.release(entry);
+            phase[v] = cachePosition[v] * increment[v] % 1.0;
+        }
+        cacheSlot[v] = -1;
+    }
+
+    /**
+     * Picks the sounding voice to give up under {@code policy}. Voices
+     * already releasing go first, since they are on their way out anyway.
+     *
+     * @return The slot, or -1 for {@link StealPolicy#NONE} or an empty pool
+     */
+    private int victim(StealPolicy policy) {
+        if (policy == StealPolicy.NONE) {
+            return -1;
+        }
+        int best = -1;
+        boolean bestReleasing = false;
+        for (int v = 0; v < capacity; v++) {
+            if (envStage[v] == IDLE) {
+                continue;
+            }
+            boolean releasing = envStage[v] == RELEASE;
+            if (best < 0 || (releasing && !bestReleasing)) {
+                best = v;
+                bestReleasing = releasing;
+            } else if (releasing == bestReleasing) {
+                boolean better = policy == StealPolicy.OLDEST
+                    ? startedAt[v] < startedAt[best]
+                    : envLevel[v] * amplitude[v] < envLevel[best] * amplitude[best];
+                if (better) {
+                    best = v;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Fades out voices, quickly and without clicks, until no more than
+     * {@link #voiceLimit} are held. Voices are chosen by
+     * {@link #stealPolicy}, oldest first when stealing is off.
+     *
+     * @param fadeSeconds Length of the fade
+     */
+    void enforceLimit(double fadeSeconds) {
+        int held = 0;
+        for (int v = 0; v < capacity; v++) {
+            if (envStage[v] != IDLE && envStage[v] != RELEASE) {
+                held++;
+            }
+        }
+        StealPolicy policy = stealPolicy == StealPolicy.NONE ? StealPolicy.OLDEST : stealPolicy;
+        float fade = (float) (1.0 / (fadeSeconds * sampleRate));
+        while (held > voiceLimit) {
+            int v = heldVictim(policy);
+            envStage[v] = RELEASE;
+            releaseStep[v] = Math.max(releaseStep[v], fade);
+            steals++;
+            SynthEvents.voiceStolen(noteId[v], 0, policy);
+            held--;
+        }
+    }
+
+    private int heldVictim(StealPolicy policy) {
+        int best = -1;
+        for (int v = 0; v < capacity; v++) {
+            if (envStage[v] == IDLE || envStage[v] == RELEASE) {
+                continue;
+            }
+            if (best < 0 || (policy == StealPolicy.OLDEST
+                    ? startedAt[v] < startedAt[best]
+                    : envLevel[v] * amplitude[v] < envLevel[best] * amplitude[best])) {
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Starts the release stage of the voice playing {@code id}. The slot
+     * stays busy until the envelope has faded out.
+     *
+     * @param id The note identifier
+     */
+    void release(int id) {
+        for (int v = 0; v < capacity; v++) {
+            if (envStage[v] != IDLE && envStage[v] != RELEASE && noteId[v] == id) {
+                envStage[v] = RELEASE;
+            }
+        }
+    }
+
+    /**
+     * Multiplies {@code block} by the envelope of voice {@code v}, sample by
+     * sample, advancing it through its stages. Frees the slot when the
+     * release stage reaches zero.
+     */
+    void applyEnvelope(int v, float[] block, int frames) {
+        applyEnvelope(v, block, null, frames);
+    }
+
+    /**
+     * Same as {@link #applyEnvelope(int, float[], int)} for a stereo
+     * voice, applying the same levels to both channels.
+     *
+     * @param right Second channel, or null
+     */
+    void applyEnvelope(int v, float[] block, float[] right, int frames) {
+        int stage = envStage[v];
+        float level = envLevel[v];
+        for (int i = 0; i < frames; i++) {
+            switch (stage) {
+                case ATTACK:
+                    level += attackStep[v];
+                    if (level >= 1f) {
+                        level = 1f;
+                        stage = DECAY;
+                    }
+                    break;
+                case DECAY:
+                    level -= decayStep[v];
+                    if (level <= sustainLevel[v]) {
+                        level = sustainLevel[v];
+                        stage = SUSTAIN;
+                    }
+                    break;
+                case RELEASE:
+                    level -= releaseStep[v];
+                    if (level <= 0f) {
+                        level = 0f;
+                        stage = IDLE;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            block[i] *= level;
+            if (right != null) {
+                right[i] *= level;
+            }
+        }
+        envStage[v] = stage;
+        envLevel[v] = level;
+        if (stage == IDLE) {
+            leaveCache(v);
+        }
+    }
+
+    /**
+     * Writes {@code frames} raw oscillator or sample frames of voice
+     * {@code v} into {@code block}, before envelope and amplitude. A voice
+     * whose sample has played to its end without a loop is released.
+     *
+     * <p>A voice with a {@link NoteCache} entry copies its attack from the
+     * entry, or records its attack into it, then continues live.</p>
+     */
+    void render(int v, float[] block, int frames) {
+        int entry = cacheSlot[v];
+        if (entry >= 0 && !cacheRecording[v]) {
+            int copied = cache.read(entry, cachePosition[v], block, frames);
+            cachePosition[v] += copied;
+            if (copied == frames) {
+                return;
+            }
+            // The cached attack has run out: carry on live from where its recording ended
+            if (zone[v] != null) {
+                samplePosition[v] = cache.endPosition(entry);
+            } else {
+                phase[v] = cache.endPosition(entry);
+            }
+            cache.release(entry);
+            cacheSlot[v] = -1;
+            renderLive(v, block, copied, frames);
+            return;
+        }
+        if (zone[v] != null && zone[v].isFinished(samplePosition[v])) {
+            // Played out: let the envelope free the slot on its first sample
+            envStage[v] = RELEASE;
+            releaseStep[v] = 1f;
+        }
+        if (entry < 0) {
+            renderLive(v, block, 0, frames);
+            return;
+        }
+        // Record the attack up to the entry's length, noting the phase at exactly that frame
+        int recorded = Math.min(frames, cache.frames() - cachePosition[v]);
+        renderLive(v, block, 0, recorded);
+        cache.write(entry, cachePosition[v], block, recorded);
+        cachePosition[v] += recorded;
+        if (cachePosition[v] == cache.frames()) {
+            cache.finish(entry, zone[v] != null ? samplePosition[v] : phase[v]);
+            cacheSlot[v] = -1;
+        }
+        renderLive(v, block, recorded, frames);
+    }
+
+    /**
+     * @return Whether voice {@code v} runs a unison stack and must be
+     *         rendered with {@link #renderUnison}
+     */
+    boolean isUnison(int v) {
+        return stacks.oscillators(v) > 1;
+    }
+
+    /**
+     * Writes {@code frames} frames of unison voice {@code v} into
+     * {@code left} and {@code right}, before envelope, amplitude and pan.
+     * The stack's own stereo spread is already applied.
+     */
+    void renderUnison(int v, float[] left, float[] right, int frames) {
+        stacks.render(v, waveform[v], left, right, frames);
+    }
+
+    /**
+     * Synthesizes frames {@code from} (inclusive) to {@code to}
+     * (exclusive) of voice {@code v} into the same positions of
+     * {@code block}.
+     */
+    private void renderLive(int v, float[] block, int from, int to) {
+        SampleZone sample = zone[v];
+        if (sample != null) {
+            samplePosition[v] = sample.read(samplePosition[v], sampleStep[v], block, from, to);
+            return;
+        }
+        double p = phase[v];
+        double delta = increment[v];
+        float[] table = waveform[v].wavetable().forIncrement(delta);
+        for (int i = from; i < to; i++) {
+            double position = p * Wavetable.SIZE;
+            int index = (int) position;
+            float frac = (float) (position - index);
+            float a = table[index];
+            block[i] = a + (table[index + 1] - a) * frac;
+
+            p += delta;
+            if (p >= 1.0) {
+                p -= 1.0;
+            }
+        }
+        phase[v] = p;
+    }
+
+    int activeCount() {
+        int count = 0;
+        for (int v = 0; v < capacity; v++) {
+            if (envStage[v] != IDLE) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
+
+// StealPolicy.java
+/**
+ * What {@link VoicePool} does with a note-on when the voice limit is
+ * reached.
+ */
+enum StealPolicy {
+    /** Drop the new note */
+    NONE,
+
+    /** Take over the voice that started longest ago */
+    OLDEST,
+
+    /** Take over the voice with the lowest current level */
+    QUIETEST
+}
+
+// Waveform.java
+/**
+ * Oscillator waveforms available to the voices, described by the amplitude
+ * of each harmonic so that they can be rendered band-limited.
+ */
+enum Waveform {
+    /** Pure sine at the fundamental */
+    SINE,
+    /** Band-limited sawtooth */
+    SAW,
+    /** Band-limited square */
+    SQUARE,
+    /** Band-limited triangle */
+    TRIANGLE,
+    /**
+     * The piano's original timbre: the fundamental at
+     * {@code AudioConfig.BASE_AMPLITUDE} plus the second harmonic at
+     * {@code AudioConfig.HARMONIC_AMPLITUDE}.
+     */
+    CLASSIC;
+
+    private volatile Wavetable wavetable;
+
+    /**
+     * Returns the amplitude of the {@code n}-th harmonic, {@code n >= 1}.
+     */
+    double harmonic(int n) {
+        switch (this) {
+            case SINE:
+                return n == 1 ? 1.0 : 0.0;
+            case SAW:
+                return (n % 2 == 1 ? 1.0 : -1.0) / n;
+            case SQUARE:
+                return n % 2 == 1 ? 1.0 / n : 0.0;
+            case TRIANGLE:
+                return n % 2 == 1 ? (n % 4 == 1 ? 1.0 : -1.0) / ((double) n * n) : 0.0;
+            case CLASSIC:
+                return n == 1 ? AudioConfig.BASE_AMPLITUDE
+                     : n == 2 ? AudioConfig.HARMONIC_AMPLITUDE : 0.0;
+            default:
+                throw new AssertionError(this);
+        }
+    }
+
+    /**
+     * Returns the precomputed tables for this waveform, building them on
+     * first use.
+     */
+    Wavetable wavetable() {
+        Wavetable table = wavetable;
+        if (table == null) {
+            synchronized (this) {
+                table = wavetable;
+                if (table == null) {
+                    table = new Wavetable(this);
+                    wavetable = table;
+                }
+            }
+        }
+        return table;
+    }
+}
+
+// Wavetable.java
+/**
+ * Precomputed single-cycle tables of one waveform, one per octave of
+ * harmonic content.
+ *
+ * <p>Level {@code k} contains harmonics {@code 1..2^k}. A voice picks the
+ * richest level whose highest harmonic stays below Nyquist for its pitch,
+ * which keeps every waveform band-limited without any per-sample work.
+ * Each table has one guard sample so linear interpolation never has to
+ * wrap its index.</p>
+ */
+final class Wavetable {
+    /** Samples per cycle; a power of two */
+    static final int SIZE = 2048;
+
+    private static final int LEVELS = Integer.numberOfTrailingZeros(SIZE / 2) + 1;
+
+    /** Peak level of the normalized waveforms, matching the classic preset's headroom */
+    private static final double PEAK = AudioConfig.BASE_AMPLITUDE + AudioConfig.HARMONIC_AMPLITUDE;
+
+    private final float[][] levels = new float[LEVELS][];
+
+    Wavetable(Waveform waveform) {
+        for (int k = 0; k < LEVELS; k++) {
+            levels[k] = build(waveform, 1 << k);
+        }
+        if (waveform != Waveform.CLASSIC) {
+            double peak = 0;
+            for (float s : levels[LEVELS - 1]) {
+                peak = Math.max(peak, Math.abs(s));
+            }
+            for (float[] table : levels) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (float) (table[i] * PEAK / peak);
+                }
+            }
+        }
+    }
+
+    private static float[] build(Waveform waveform, int harmonics) {
+        double[] sum = new double[SIZE];
+        for (int n = 1; n <= harmonics; n++) {
+            double amplitude = waveform.harmonic(n);
+            if (amplitude == 0) {
+                continue;
+            }
+            for (int i = 0; i < SIZE; i++) {
+                sum[i] += amplitude * Math.sin(2.0 * Math.PI * n * i / SIZE);
+            }
+        }
+        float[] table = new float[SIZE + 1];
+        for (int i = 0; i < SIZE; i++) {
+            table[i] = (float) sum[i];
+        }
+        table[SIZE] = table[0];
+        return table;
+    }
+
+    /**
+     * Returns the richest table that does not alias at the given pitch.
+     *
+     * @param increment Phase advance per sample in cycles, i.e. frequency / sample rate
+     * @return A table of {@code SIZE + 1} samples
+     */
+    float[] forIncrement(double increment) {
+        double maxHarmonic = 0.5 / increment;
+        if (maxHarmonic < 2) {
+            return levels[0];
+        }
+        return levels[Math.min(LEVELS - 1, Math.getExponent(maxHarmonic))];
+    }
+}
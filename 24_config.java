@@ -0,0 +1,139 @@
+package com.synthwave.piano;
+
+// AudioConfig.java
+/**
+ * Configuration class for audio-related constants and settings.
+ * 
+ * <p>This class contains all audio-related configuration parameters
+ * used throughout the application.</p>
+ */
+class AudioConfig {
+    /** Default sample rate for audio synthesis */
+    public static final int SAMPLE_RATE = 44100;
+    
+    /** Output rates tried during format negotiation, most preferred first */
+    public static final int[] PREFERRED_SAMPLE_RATES = {48000, 44100, 96000};
+    
+    /** Largest block the render thread can produce, in bytes of 16-bit mono ({@code BUFFER_SIZE / 2} frames) */
+    public static final int BUFFER_SIZE = 4096;
+    
+    /** Default number of frames rendered per block */
+    public static final int BLOCK_FRAMES = 512;
+    
+    /** Smallest block size the engine or auto-tuner will use */
+    public static final int MIN_BLOCK_FRAMES = 64;
+    
+    /** Output line buffer size as a multiple of the block size */
+    public static final int LINE_BUFFER_BLOCKS = 4;
+    
+    /** Underrun-free time auto-tuning waits before shrinking buffers again */
+    public static final double AUTOTUNE_STABLE_SECONDS = 2.0;
+    
+    /** Reference pitch of A4 (MIDI note 69) in Hz */
+    public static final double A4_FREQUENCY = 440.0;
+    
+    /** Default MIDI note number of the leftmost key (C4) */
+    public static final int LOWEST_KEY = 60;
+    
+    /** Default MIDI note number of the rightmost key (B5) */
+    public static final int HIGHEST_KEY = 83;
+    
+    /** Base amplitude for the fundamental frequency */
+    public static final double BASE_AMPLITUDE = 0.2;
+    
+    /** Amplitude for harmonic frequencies */
+    public static final double HARMONIC_AMPLITUDE = 0.1;
+    
+    /** Voices the engine is opened with unless {@code synth.polyphony} says otherwise */
+    public static final int MAX_POLYPHONY = 16;
+    
+    /** Capacity of the lock-free note event queue feeding the render thread */
+    public static final int EVENT_QUEUE_CAPACITY = 4096;
+    
+    /** Maximum number of producer threads posting note events to one engine */
+    public static final int MAX_EVENT_INPUTS = 8;
+    
+    /** Default envelope attack time in seconds */
+    public static final double ATTACK_SECONDS = 0.005;
+    
+    /** Default envelope decay time in seconds */
+    public static final double DECAY_SECONDS = 0.1;
+    
+    /** Default envelope sustain level */
+    public static final float SUSTAIN_LEVEL = 0.8f;
+    
+    /** Default envelope release time in seconds */
+    public static final double RELEASE_SECONDS = 0.25;
+    
+    /** Time constant of the glide applied to effect parameter changes */
+    public static final double PARAMETER_SMOOTHING_SECONDS = 0.02;
+    
+    /** Fade applied to voices cut to make room under the voice limit */
+    public static final double STEAL_FADE_SECONDS = 0.005;
+    
+    /** Smoothed render load, as a fraction of each block's duration, above which voices are shed */
+    public static final double LOAD_HIGH = 0.7;
+    
+    /** Smoothed render load below which the voice limit is raised again */
+    public static final double LOAD_LOW = 0.4;
+    
+    /** Stereo position of the outermost keys, 0 (centre) to 1 (hard left and right) */
+    public static final float KEY_PAN_WIDTH = 0.6f;
+    
+    /** Fewest voices load shedding will leave */
+    public static final int MIN_VOICE_LIMIT = 4;
+    
+    /** Blocks to wait after changing the voice limit before changing it again */
+    public static final int LOAD_HOLD_BLOCKS = 8;
+    
+    /** Length of the attack a note cache keeps per note, in seconds */
+    public static final double NOTE_CACHE_ATTACK_SECONDS = 0.05;
+    
+    /** Default spread of a unison stack, flattest to sharpest, in cents */
+    public static final double UNISON_DETUNE_CENTS = 25;
+    
+    /** Default stereo width of a unison stack, 0..1 */
+    public static final float UNISON_WIDTH = 0.8f;
+}
+
+// StyleConstants.java
+/**
+ * Constants class for visual styling and dimensions.
+ * 
+ * <p>This class contains all visual-related constants used
+ * for styling and sizing the piano interface.</p>
+ */
+class StyleConstants {
+    /** Width of white keys in pixels */
+    public static final int WHITE_KEY_WIDTH = 60;
+    
+    /** Height of white keys in pixels */
+    public static final int WHITE_KEY_HEIGHT = 300;
+    
+    /** Width of black keys in pixels */
+    public static final int BLACK_KEY_WIDTH = 40;
+    
+    /** Height of black keys in pixels */
+    public static final int BLACK_KEY_HEIGHT = 180;
+    
+    /** Background color for the application */
+    public static final String BACKGROUND_COLOR = "#120458";
+}
+
+// AudioInitializationException.java
+/**
+ * Exception thrown when audio initialization fails.
+ * 
+ * <p>This exception is thrown when the audio system cannot be
+ * properly initialized or when audio resources are unavailable.</p>
+ */
+class AudioInitializationException extends RuntimeException {
+    /**
+     * Constructs a new AudioInitializationException with the specified message.
+     *
+     * @param message The detail message
+     */
+    public AudioInitializationException(String message) {
+        super(message);
+    }
+}
\ No newline at end of file
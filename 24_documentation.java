@@ -13,15 +13,20 @@ package com.synthwave.piano;
 /**
  * A JavaFX application that implements a synthwave-styled virtual piano with
  * real-time audio synthesis capabilities. The piano features two octaves of
- * playable keys with responsive touch interaction and visual feedback.
+ * playable keys by default, or any range up to the full 88, with responsive
+ * touch interaction and visual feedback.
  * 
  * <p>The piano generates synthesized sounds using sine waves with harmonics
  * to create a rich, synthwave-inspired sound. Each key has distinct visual
  * feedback when pressed and proper audio resource management.</p>
+ *
+ * <p>All synthesis lives in {@link PianoSynth}, which has no JavaFX
+ * dependency and can be embedded or tested on its own; this class is one
+ * client of it.</p>
  * 
  * <p>Key features:</p>
  * <ul>
- *   <li>Two octaves of playable keys (white and black)</li>
+ *   <li>Two octaves of playable keys (white and black), or a configurable range</li>
  *   <li>Real-time sound synthesis</li>
  *   <li>Synthwave-inspired visual design</li>
  *   <li>Responsive touch interaction</li>
@@ -34,19 +39,22 @@ package com.synthwave.piano;
  */
 public class SynthwavePiano extends Application {
     
-    /** The sample rate for audio synthesis in Hz */
-    private static final int SAMPLE_RATE = 44100;
-    
-    /** Maps piano keys to their corresponding frequencies */
-    private Map<Rectangle, Integer> keyFrequencies;
-    
-    /** Maps active keys to their audio output lines */
-    private Map<Rectangle, SourceDataLine> activeNotes;
+    /**
+     * Sound, MIDI, recording and metrics; this class only draws the keys
+     * and forwards input to it
+     */
+    private PianoSynth synth;
+
+    /** The whole keyboard, drawn on a single canvas */
+    private KeyboardCanvas keyboard;
+
+    /** Note held down by the mouse, or -1 */
+    private int mouseNote = -1;
 
     /**
      * Initializes and starts the piano application.
-     * Creates the main window, sets up the piano interface,
-     * and initializes audio components.
+     * Opens the synthesizer with {@link PianoSynth#open()}, then creates
+     * the main window and the piano interface.
      *
      * @param primaryStage The primary stage for the application
      * @throws IllegalStateException if audio system initialization fails
@@ -57,79 +65,99 @@ public class SynthwavePiano extends Application {
     }
 
     /**
-     * Creates and arranges the piano keys on the interface.
-     * Sets up both white and black keys with their corresponding
-     * frequencies and event handlers.
+     * Creates the keyboard canvas for the range given by the
+     * {@code synth.keys.low} and {@code synth.keys.high} system properties
+     * (MIDI note numbers of white keys; C4 to B5 by default, 21 to 108 for
+     * 88 keys). The canvas tracks the window width and carries the only
+     * mouse handlers; keys are found by arithmetic hit-testing. The same
+     * range is spread across the stereo field, low keys on the left.
      *
-     * @param root The parent pane to which keys will be added
+     * @param root The parent pane to which the keyboard will be added
      */
-    private void createPianoKeys(Pane root) {
+    private void createKeyboard(Pane root) {
         // Implementation details...
     }
 
     /**
-     * Creates a white piano key with specific dimensions and styling.
+     * Plays the key under the mouse. Dragging onto another key releases
+     * the previous one first.
      *
-     * @param x The x-coordinate position of the key
-     * @param width The width of the key
-     * @param height The height of the key
-     * @return A styled Rectangle representing a white key
+     * @param x Mouse position relative to the keyboard
+     * @param y Mouse position relative to the keyboard
      */
-    private Rectangle createWhiteKey(int x, int width, int height) {
+    private void pressAt(double x, double y) {
         // Implementation details...
     }
 
     /**
-     * Creates a black piano key with specific dimensions and styling.
-     *
-     * @param x The x-coordinate position of the key
-     * @param width The width of the key
-     * @param height The height of the key
-     * @return A styled Rectangle representing a black key
+     * Releases the key held by the mouse, if any.
      */
-    private Rectangle createBlackKey(int x, int width, int height) {
+    private void releaseMouse() {
         // Implementation details...
     }
 
     /**
      * Initiates sound generation for a pressed key.
-     * Creates a new audio line and starts sound synthesis in a separate thread.
+     * Starts the note on the synthesizer, which posts a note-on event to
+     * the shared audio engine; never blocks. Only the pressed key is
+     * repainted.
      *
-     * @param key The piano key that was pressed
-     * @throws LineUnavailableException if audio system resources are unavailable
+     * @param note The key's MIDI note number
      */
-    private void startNote(Rectangle key) {
+    private void startNote(int note) {
         // Implementation details...
     }
 
     /**
      * Stops sound generation for a released key.
-     * Properly closes audio resources and resets key appearance.
+     * Releases the note on the synthesizer and resets key appearance.
+     * The note fades out over its envelope's release stage on the render
+     * thread; this method never waits for it.
      *
-     * @param key The piano key that was released
+     * @param note The key's MIDI note number
+     */
+    private void stopNote(int note) {
+        // Implementation details...
+    }
+
+    /**
+     * Closes the synthesizer, which finishes the recording, stops the
+     * metrics server, disconnects MIDI devices and releases the shared
+     * output line.
      */
-    private void stopNote(Rectangle key) {
+    @Override
+    public void stop() {
         // Implementation details...
     }
 
     /**
-     * Returns the mapping of piano keys to their frequencies.
+     * Returns the keyboard canvas.
      * Used primarily for testing purposes.
      *
-     * @return Map of Rectangle keys to their corresponding frequencies in Hz
+     * @return The canvas holding every key
      */
-    public Map<Rectangle, Integer> getKeyFrequencies() {
-        return Collections.unmodifiableMap(keyFrequencies);
+    public KeyboardCanvas getKeyboard() {
+        return keyboard;
     }
 
     /**
-     * Returns the mapping of currently active notes.
+     * Returns the tuning used to turn key note numbers into pitches.
      * Used primarily for testing purposes.
      *
-     * @return Map of Rectangle keys to their active SourceDataLines
+     * @return The audio engine's current note table
      */
-    public Map<Rectangle, SourceDataLine> getActiveNotes() {
-        return Collections.unmodifiableMap(activeNotes);
+    public NoteTable getNoteTable() {
+        return synth.noteTable();
+    }
+
+    /**
+     * Returns the number of keys currently sounding.
+     * Used primarily for testing purposes.
+     *
+     * @return Count of notes with an active engine identifier
+     */
+    public int getActiveNoteCount() {
+        return synth.activeNoteCount();
     }
 
     /**
@@ -150,63 +178,3 @@ public class SynthwavePiano extends Application {
 class SynthwavePianoTest {
     // Test class documentation...
 }
-
-/**
- * Configuration class for audio-related constants and settings.
- * 
- * <p>This class contains all audio-related configuration parameters
- * used throughout the application.</p>
- */
-class AudioConfig {
-    /** Default sample rate for audio synthesis */
-    public static final int SAMPLE_RATE = 44100;
-    
-    /** Default buffer size for audio processing */
-    public static final int BUFFER_SIZE = 4096;
-    
-    /** Base amplitude for the fundamental frequency */
-    public static final double BASE_AMPLITUDE = 0.2;
-    
-    /** Amplitude for harmonic frequencies */
-    public static final double HARMONIC_AMPLITUDE = 0.1;
-}
-
-/**
- * Constants class for visual styling and dimensions.
- * 
- * <p>This class contains all visual-related constants used
- * for styling and sizing the piano interface.</p>
- */
-class StyleConstants {
-    /** Width of white keys in pixels */
-    public static final int WHITE_KEY_WIDTH = 60;
-    
-    /** Height of white keys in pixels */
-    public static final int WHITE_KEY_HEIGHT = 300;
-    
-    /** Width of black keys in pixels */
-    public static final int BLACK_KEY_WIDTH = 40;
-    
-    /** Height of black keys in pixels */
-    public static final int BLACK_KEY_HEIGHT = 180;
-    
-    /** Background color for the application */
-    public static final String BACKGROUND_COLOR = "#120458";
-}
-
-/**
- * Exception thrown when audio initialization fails.
- * 
- * <p>This exception is thrown when the audio system cannot be
- * properly initialized or when audio resources are unavailable.</p>
- */
-class AudioInitializationException extends RuntimeException {
-    /**
-     * Constructs a new AudioInitializationException with the specified message.
-     *
-     * @param message The detail message
-     */
-    public AudioInitializationException(String message) {
-        super(message);
-    }
-}
\ No newline at end of file
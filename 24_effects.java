@@ -0,0 +1,591 @@
+package com.synthwave.piano;
+
+// Effect.java
+/**
+ * One stage of the effects chain, applied to the mixed stereo signal.
+ *
+ * <p>Implementations allocate every buffer in their constructor and keep
+ * {@link #process} allocation-free. Parameter setters may be called from
+ * any thread; they only store a target that the render thread glides
+ * towards (see {@link SmoothedParameter}).</p>
+ */
+interface Effect {
+    /**
+     * Processes a stereo block in place. Render thread only.
+     *
+     * @param left Left channel, samples in the range -1..1
+     * @param right Right channel
+     * @param frames Number of frames to process
+     */
+    void process(float[] left, float[] right, int frames);
+
+    /**
+     * Clears internal state such as delay lines. Render thread only.
+     */
+    void reset();
+}
+
+// EffectsChain.java
+/**
+ * Ordered list of effects run on the render thread after voice mixing.
+ *
+ * <p>The list is an immutable array behind a volatile reference: the UI
+ * swaps in a new array and the render thread picks it up at the next
+ * block, so reconfiguring never blocks or tears a block.</p>
+ */
+final class EffectsChain {
+    private volatile Effect[] effects = new Effect[0];
+
+    /**
+     * Replaces the whole chain. May be called from any thread.
+     *
+     * @param chain Effects in processing order
+     */
+    synchronized void set(Effect... chain) {
+        effects = chain.clone();
+    }
+
+    /**
+     * Appends an effect. May be called from any thread.
+     */
+    synchronized void add(Effect effect) {
+        Effect[] current = effects;
+        Effect[] grown = java.util.Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = effect;
+        effects = grown;
+    }
+
+    /**
+     * Removes an effect if present. May be called from any thread.
+     */
+    synchronized void remove(Effect effect) {
+        Effect[] current = effects;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == effect) {
+                Effect[] shrunk = new Effect[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                effects = shrunk;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return A copy of the current chain
+     */
+    Effect[] effects() {
+        return effects.clone();
+    }
+
+    /**
+     * Runs every effect over the block. Render thread only.
+     */
+    void process(float[] left, float[] right, int frames) {
+        for (Effect effect : effects) {
+            effect.process(left, right, frames);
+        }
+    }
+}
+
+// SmoothedParameter.java
+/**
+ * Effect parameter that can be set from any thread and changes smoothly
+ * on the render thread.
+ *
+ * <p>The target is a volatile field, so setting it is a single lock-free
+ * write. The render thread reads the target once per block in
+ * {@link #beginBlock()} and moves the current value towards it with a
+ * one-pole glide on every {@link #next()}, which avoids zipper noise.</p>
+ */
+final class SmoothedParameter {
+    /**
+     * Relative difference at which the glide snaps to the target; float
+     * rounding would otherwise stall it just short
+     */
+    private static final float SETTLED = 1e-4f;
+
+    private final float coefficient;
+    private volatile float target;
+    private float blockTarget;
+    private float current;
+
+    /**
+     * @param initial Starting value
+     * @param smoothingSeconds Time constant of the glide
+     * @param sampleRate Rate at which {@link #next()} is called
+     */
+    SmoothedParameter(float initial, double smoothingSeconds, int sampleRate) {
+        this.target = initial;
+        this.blockTarget = initial;
+        this.current = initial;
+        this.coefficient = (float) (1 - Math.exp(-1.0 / (smoothingSeconds * sampleRate)));
+    }
+
+    /**
+     * Sets the value to glide towards. May be called from any thread.
+     */
+    void set(float value) {
+        target = value;
+    }
+
+    float target() {
+        return target;
+    }
+
+    /** Render thread: latches the target for the coming block */
+    void beginBlock() {
+        blockTarget = target;
+    }
+
+    /** Render thread: advances the glide by one sample */
+    float next() {
+        float delta = blockTarget - current;
+        current = Math.abs(delta) < SETTLED * Math.max(1f, Math.abs(blockTarget))
+            ? blockTarget : current + delta * coefficient;
+        return current;
+    }
+
+    /** Render thread: the value last returned by {@link #next()} */
+    float current() {
+        return current;
+    }
+
+    /** Render thread: whether the value has reached the latched target */
+    boolean isSettled() {
+        return current == blockTarget;
+    }
+
+    /** Render thread: jumps straight to the target */
+    void snap() {
+        blockTarget = target;
+        current = blockTarget;
+    }
+}
+
+// DelayLine.java
+/**
+ * Preallocated circular buffer with fractional-delay reads.
+ */
+final class DelayLine {
+    private final float[] buffer;
+    private final int mask;
+    private int write;
+
+    /**
+     * @param maxSamples Longest delay that will be read
+     */
+    DelayLine(int maxSamples) {
+        int size = Integer.highestOneBit(Math.max(2, maxSamples + 1) - 1) << 1;
+        buffer = new float[size];
+        mask = size - 1;
+    }
+
+    void push(float sample) {
+        buffer[write] = sample;
+        write = (write + 1) & mask;
+    }
+
+    /**
+     * @param delay Samples back from the most recent push, at least 1;
+     *        fractions are linearly interpolated
+     */
+    float read(float delay) {
+        int whole = (int) delay;
+        float fraction = delay - whole;
+        float a = buffer[(write - whole) & mask];
+        float b = buffer[(write - whole - 1) & mask];
+        return a + (b - a) * fraction;
+    }
+
+    /**
+     * @param delay Whole samples back from the most recent push, at least 1
+     */
+    float read(int delay) {
+        return buffer[(write - delay) & mask];
+    }
+
+    int capacity() {
+        return mask;
+    }
+
+    void clear() {
+        java.util.Arrays.fill(buffer, 0f);
+        write = 0;
+    }
+}
+
+// FilterEffect.java
+/**
+ * Resonant low-pass filter: a zero-delay-feedback state variable filter,
+ * stable for any cutoff below Nyquist and any resonance below 1. Both
+ * channels share the coefficients and keep their own state.
+ */
+final class FilterEffect implements Effect {
+    private final int sampleRate;
+    private final SmoothedParameter cutoff;
+    private final SmoothedParameter resonance;
+    private float a1;
+    private float a2;
+    private float a3;
+    private float ic1Left;
+    private float ic2Left;
+    private float ic1Right;
+    private float ic2Right;
+
+    FilterEffect(int sampleRate) {
+        this.sampleRate = sampleRate;
+        this.cutoff = new SmoothedParameter(8000f, AudioConfig.PARAMETER_SMOOTHING_SECONDS, sampleRate);
+        this.resonance = new SmoothedParameter(0.2f, AudioConfig.PARAMETER_SMOOTHING_SECONDS, sampleRate);
+        updateCoefficients(cutoff.current(), resonance.current());
+    }
+
+    /**
+     * @param hz Cutoff frequency, clamped below Nyquist
+     */
+    void setCutoff(double hz) {
+        cutoff.set((float) Math.max(20, Math.min(hz, sampleRate * 0.45)));
+    }
+
+    /**
+     * @param amount 0 for a gentle slope up to just below 1 for a sharp peak
+     */
+    void setResonance(double amount) {
+        resonance.set((float) Math.max(0, Math.min(amount, 0.98)));
+    }
+
+    private void updateCoefficients(float hz, float res) {
+        double g = Math.tan(Math.PI * hz / sampleRate);
+        double k = 2 - 2 * res;
+        a1 = (float) (1 / (1 + g * (g + k)));
+        a2 = (float) (g * a1);
+        a3 = (float) (g * a2);
+    }
+
+    @Override
+    public void process(float[] left, float[] right, int frames) {
+        cutoff.beginBlock();
+        resonance.beginBlock();
+        boolean gliding = !cutoff.isSettled() || !resonance.isSettled();
+        for (int i = 0; i < frames; i++) {
+            // tan() is only paid for while a parameter is still moving
+            if (gliding) {
+                updateCoefficients(cutoff.next(), resonance.next());
+            }
+            float v3 = left[i] - ic2Left;
+            float v1 = a1 * ic1Left + a2 * v3;
+            float v2 = ic2Left + a2 * ic1Left + a3 * v3;
+            ic1Left = 2 * v1 - ic1Left;
+            ic2Left = 2 * v2 - ic2Left;
+            left[i] = v2;
+
+            v3 = right[i] - ic2Right;
+            v1 = a1 * ic1Right + a2 * v3;
+            v2 = ic2Right + a2 * ic1Right + a3 * v3;
+            ic1Right = 2 * v1 - ic1Right;
+            ic2Right = 2 * v2 - ic2Right;
+            right[i] = v2;
+        }
+    }
+
+    @Override
+    public void reset() {
+        ic1Left = 0;
+        ic2Left = 0;
+        ic1Right = 0;
+        ic2Right = 0;
+    }
+}
+
+// DelayEffect.java
+/**
+ * Feedback echo with a smoothly adjustable delay time, one delay line per
+ * channel.
+ */
+final class DelayEffect implements Effect {
+    /** Longest supported delay */
+    static final double MAX_SECONDS = 2.0;
+
+    private final int sampleRate;
+    private final DelayLine leftLine;
+    private final DelayLine rightLine;
+    private final SmoothedParameter time;
+    private final SmoothedParameter feedback;
+    private final SmoothedParameter mix;
+
+    DelayEffect(int sampleRate) {
+        this.sampleRate = sampleRate;
+        this.leftLine = new DelayLine((int) (MAX_SECONDS * sampleRate) + 2);
+        this.rightLine = new DelayLine((int) (MAX_SECONDS * sampleRate) + 2);
+        double smoothing = AudioConfig.PARAMETER_SMOOTHING_SECONDS;
+        this.time = new SmoothedParameter(0.3f * sampleRate, smoothing, sampleRate);
+        this.feedback = new SmoothedParameter(0.35f, smoothing, sampleRate);
+        this.mix = new SmoothedParameter(0.25f, smoothing, sampleRate);
+    }
+
+    /**
+     * @param seconds Echo spacing, up to {@link #MAX_SECONDS}
+     */
+    void setTime(double seconds) {
+        time.set((float) (Math.max(1.0 / sampleRate, Math.min(seconds, MAX_SECONDS)) * sampleRate));
+    }
+
+    /**
+     * @param amount Level of each echo relative to the previous, 0..0.95
+     */
+    void setFeedback(double amount) {
+        feedback.set((float) Math.max(0, Math.min(amount, 0.95)));
+    }
+
+    /**
+     * @param amount Echo level added to the dry signal, 0..1
+     */
+    void setMix(double amount) {
+        mix.set((float) Math.max(0, Math.min(amount, 1)));
+    }
+
+    @Override
+    public void process(float[] left, float[] right, int frames) {
+        time.beginBlock();
+        feedback.beginBlock();
+        mix.beginBlock();
+        for (int i = 0; i < frames; i++) {
+            float delay = time.next();
+            float amount = feedback.next();
+            float wet = mix.next();
+            float dry = left[i];
+            float echo = leftLine.read(delay);
+            leftLine.push(dry + echo * amount);
+            left[i] = dry + echo * wet;
+
+            dry = right[i];
+            echo = rightLine.read(delay);
+            rightLine.push(dry + echo * amount);
+            right[i] = dry + echo * wet;
+        }
+    }
+
+    @Override
+    public void reset() {
+        leftLine.clear();
+        rightLine.clear();
+    }
+}
+
+// ChorusEffect.java
+/**
+ * Chorus: a short delay swept by a sine LFO and blended with the dry
+ * signal. The right channel's sweep runs a quarter cycle behind the left,
+ * which widens the image.
+ *
+ * <p>The LFO is a rotating phasor updated with one complex multiply per
+ * sample and renormalized once per block, so no trigonometry runs in the
+ * sample loop.</p>
+ */
+final class ChorusEffect implements Effect {
+    private static final float BASE_SECONDS = 0.015f;
+    private static final float MAX_DEPTH_SECONDS = 0.010f;
+
+    private final int sampleRate;
+    private final DelayLine leftLine;
+    private final DelayLine rightLine;
+    private final SmoothedParameter depth;
+    private final SmoothedParameter mix;
+    private volatile double rate = 0.8;
+    private double appliedRate = -1;
+    private float cos;
+    private float sin;
+    private float x = 1;
+    private float y;
+
+    ChorusEffect(int sampleRate) {
+        this.sampleRate = sampleRate;
+        this.leftLine = new DelayLine((int) ((BASE_SECONDS + MAX_DEPTH_SECONDS) * sampleRate) + 2);
+        this.rightLine = new DelayLine((int) ((BASE_SECONDS + MAX_DEPTH_SECONDS) * sampleRate) + 2);
+        double smoothing = AudioConfig.PARAMETER_SMOOTHING_SECONDS;
+        this.depth = new SmoothedParameter(0.003f * sampleRate, smoothing, sampleRate);
+        this.mix = new SmoothedParameter(0.3f, smoothing, sampleRate);
+    }
+
+    /**
+     * @param hz LFO rate
+     */
+    void setRate(double hz) {
+        rate = Math.max(0.01, Math.min(hz, 20));
+    }
+
+    /**
+     * @param seconds Sweep depth, up to 10 ms
+     */
+    void setDepth(double seconds) {
+        depth.set((float) (Math.max(0, Math.min(seconds, MAX_DEPTH_SECONDS)) * sampleRate));
+    }
+
+    /**
+     * @param amount Wet share of the output, 0..1
+     */
+    void setMix(double amount) {
+        mix.set((float) Math.max(0, Math.min(amount, 1)));
+    }
+
+    @Override
+    public void process(float[] left, float[] right, int frames) {
+        double r = rate;
+        if (r != appliedRate) {
+            appliedRate = r;
+            cos = (float) Math.cos(2 * Math.PI * r / sampleRate);
+            sin = (float) Math.sin(2 * Math.PI * r / sampleRate);
+        }
+        float norm = (float) (1 / Math.sqrt(x * x + y * y));
+        x *= norm;
+        y *= norm;
+        depth.beginBlock();
+        mix.beginBlock();
+        float base = BASE_SECONDS * sampleRate;
+        for (int i = 0; i < frames; i++) {
+            float nx = x * cos - y * sin;
+            y = x * sin + y * cos;
+            x = nx;
+            float sweep = depth.next();
+            float m = mix.next();
+            float dry = left[i];
+            leftLine.push(dry);
+            float wet = leftLine.read(base + sweep * y);
+            left[i] = dry + (wet - dry) * m;
+
+            dry = right[i];
+            rightLine.push(dry);
+            wet = rightLine.read(base + sweep * x);
+            right[i] = dry + (wet - dry) * m;
+        }
+    }
+
+    @Override
+    public void reset() {
+        leftLine.clear();
+        rightLine.clear();
+        x = 1;
+        y = 0;
+    }
+}
+
+// ReverbEffect.java
+/**
+ * Schroeder-Moorer reverb in the Freeverb arrangement: eight damped comb
+ * filters in parallel followed by four allpass diffusers, with delay
+ * lengths scaled from their 44.1 kHz values to the sample rate.
+ *
+ * <p>Both channels are fed the same mono sum; the right channel's delays
+ * are {@link #STEREO_SPREAD} samples longer, so the two tails decorrelate
+ * as in Freeverb.</p>
+ */
+final class ReverbEffect implements Effect {
+    private static final int[] COMB_TUNING = {1116, 1188, 1277, 1356, 1422, 1491, 1557, 1617};
+    private static final int[] ALLPASS_TUNING = {556, 441, 341, 225};
+    private static final int STEREO_SPREAD = 23;
+    private static final float INPUT_GAIN = 0.015f;
+    private static final float ALLPASS_FEEDBACK = 0.5f;
+
+    /** Per channel, left then right */
+    private final DelayLine[][] combs = new DelayLine[2][COMB_TUNING.length];
+    private final int[][] combLength = new int[2][COMB_TUNING.length];
+    private final float[][] combFilter = new float[2][COMB_TUNING.length];
+    private final DelayLine[][] allpasses = new DelayLine[2][ALLPASS_TUNING.length];
+    private final int[][] allpassLength = new int[2][ALLPASS_TUNING.length];
+    private final SmoothedParameter roomSize;
+    private final SmoothedParameter damping;
+    private final SmoothedParameter mix;
+
+    ReverbEffect(int sampleRate) {
+        double scale = sampleRate / 44100.0;
+        for (int channel = 0; channel < 2; channel++) {
+            int spread = channel * STEREO_SPREAD;
+            for (int c = 0; c < COMB_TUNING.length; c++) {
+                combLength[channel][c] = (int) Math.round((COMB_TUNING[c] + spread) * scale);
+                combs[channel][c] = new DelayLine(combLength[channel][c]);
+            }
+            for (int a = 0; a < ALLPASS_TUNING.length; a++) {
+                allpassLength[channel][a] = (int) Math.round((ALLPASS_TUNING[a] + spread) * scale);
+                allpasses[channel][a] = new DelayLine(allpassLength[channel][a]);
+            }
+        }
+        double smoothing = AudioConfig.PARAMETER_SMOOTHING_SECONDS;
+        this.roomSize = new SmoothedParameter(feedbackFor(0.7f), smoothing, sampleRate);
+        this.damping = new SmoothedParameter(0.5f * 0.4f, smoothing, sampleRate);
+        this.mix = new SmoothedParameter(0.25f, smoothing, sampleRate);
+    }
+
+    private static float feedbackFor(float room) {
+        return 0.7f + 0.28f * room;
+    }
+
+    /**
+     * @param size 0 for a small room up to 1 for a long tail
+     */
+    void setRoomSize(double size) {
+        roomSize.set(feedbackFor((float) Math.max(0, Math.min(size, 1))));
+    }
+
+    /**
+     * @param amount High-frequency absorption, 0..1
+     */
+    void setDamping(double amount) {
+        damping.set((float) Math.max(0, Math.min(amount, 1)) * 0.4f);
+    }
+
+    /**
+     * @param amount Wet share of the output, 0..1
+     */
+    void setMix(double amount) {
+        mix.set((float) Math.max(0, Math.min(amount, 1)));
+    }
+
+    @Override
+    public void process(float[] left, float[] right, int frames) {
+        roomSize.beginBlock();
+        damping.beginBlock();
+        mix.beginBlock();
+        for (int i = 0; i < frames; i++) {
+            float input = (left[i] + right[i]) * 0.5f * INPUT_GAIN;
+            float feedback = roomSize.next();
+            float damp = damping.next();
+            float m = mix.next();
+            left[i] += (tail(0, input, feedback, damp) - left[i]) * m;
+            right[i] += (tail(1, input, feedback, damp) - right[i]) * m;
+        }
+    }
+
+    /** Advances one channel's combs and allpasses by a sample */
+    private float tail(int channel, float input, float feedback, float damp) {
+        DelayLine[] channelCombs = combs[channel];
+        int[] lengths = combLength[channel];
+        float[] filters = combFilter[channel];
+        float wet = 0;
+        for (int c = 0; c < channelCombs.length; c++) {
+            float out = channelCombs[c].read(lengths[c]);
+            filters[c] = out * (1 - damp) + filters[c] * damp;
+            channelCombs[c].push(input + filters[c] * feedback);
+            wet += out;
+        }
+        DelayLine[] channelAllpasses = allpasses[channel];
+        for (int a = 0; a < channelAllpasses.length; a++) {
+            float delayed = channelAllpasses[a].read(allpassLength[channel][a]);
+            channelAllpasses[a].push(wet + delayed * ALLPASS_FEEDBACK);
+            wet = delayed - wet;
+        }
+        return wet;
+    }
+
+    @Override
+    public void reset() {
+        for (int channel = 0; channel < 2; channel++) {
+            for (DelayLine comb : combs[channel]) {
+                comb.clear();
+            }
+            for (DelayLine allpass : allpasses[channel]) {
+                allpass.clear();
+            }
+            java.util.Arrays.fill(combFilter[channel], 0f);
+        }
+    }
+}
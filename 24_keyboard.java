@@ -0,0 +1,252 @@
+package com.synthwave.piano;
+
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+
+// KeyboardLayout.java
+/**
+ * Geometry of a piano keyboard spanning a range of MIDI notes, computed
+ * arithmetically so that no per-key objects are needed.
+ *
+ * <p>White keys share the width evenly; each black key is centred on the
+ * boundary between its two white neighbours, as on the original
+ * two-octave layout. The range must start and end on a white key.</p>
+ */
+final class KeyboardLayout {
+    /** Semitone offsets of the seven white keys above C */
+    private static final int[] WHITE_OFFSETS = {0, 2, 4, 5, 7, 9, 11};
+
+    /** Index among the white keys of an octave, for each pitch class; a black key maps to its left neighbour */
+    private static final int[] WHITE_ORDINAL = {0, 0, 1, 1, 2, 3, 3, 4, 4, 5, 5, 6};
+
+    private final int lowNote;
+    private final int highNote;
+    private final int lowOrdinal;
+    private final int whiteKeys;
+    private final double whiteWidth;
+    private final double whiteHeight;
+    private final double blackWidth;
+    private final double blackHeight;
+
+    /**
+     * @param lowNote Lowest MIDI note, a white key
+     * @param highNote Highest MIDI note, a white key
+     * @param width Total width in pixels
+     * @param whiteHeight Height of the white keys
+     * @param blackHeight Height of the black keys
+     * @throws IllegalArgumentException if the range is empty, outside
+     *         0..127 or starts or ends on a black key
+     */
+    KeyboardLayout(int lowNote, int highNote, double width, double whiteHeight, double blackHeight) {
+        if (lowNote < 0 || highNote >= NoteTable.NOTES || lowNote > highNote
+                || isBlack(lowNote) || isBlack(highNote)) {
+            throw new IllegalArgumentException("Keyboard range must run between white keys within 0..127: "
+                + lowNote + ".." + highNote);
+        }
+        this.lowNote = lowNote;
+        this.highNote = highNote;
+        this.lowOrdinal = whiteOrdinal(lowNote);
+        this.whiteKeys = whiteOrdinal(highNote) - lowOrdinal + 1;
+        this.whiteWidth = width / whiteKeys;
+        this.whiteHeight = whiteHeight;
+        // Same proportion as the original 60 px white and 40 px black keys
+        this.blackWidth = whiteWidth * 2 / 3;
+        this.blackHeight = blackHeight;
+    }
+
+    static boolean isBlack(int note) {
+        int pitchClass = note % 12;
+        return pitchClass == 1 || pitchClass == 3 || pitchClass == 6 || pitchClass == 8 || pitchClass == 10;
+    }
+
+    private static int whiteOrdinal(int note) {
+        return note / 12 * 7 + WHITE_ORDINAL[note % 12];
+    }
+
+    private static int whiteNote(int ordinal) {
+        return ordinal / 7 * 12 + WHITE_OFFSETS[ordinal % 7];
+    }
+
+    /**
+     * @param x Horizontal position in pixels
+     * @param y Vertical position in pixels
+     * @return The MIDI note under the point, or -1 if there is no key
+     */
+    int noteAt(double x, double y) {
+        if (x < 0 || y < 0 || y >= whiteHeight || x >= whiteWidth * whiteKeys) {
+            return -1;
+        }
+        if (y < blackHeight) {
+            int boundary = (int) Math.round(x / whiteWidth);
+            if (boundary > 0 && boundary < whiteKeys && Math.abs(x - boundary * whiteWidth) < blackWidth / 2) {
+                int black = whiteNote(lowOrdinal + boundary - 1) + 1;
+                if (isBlack(black)) {
+                    return black;
+                }
+            }
+        }
+        return whiteNote(lowOrdinal + (int) (x / whiteWidth));
+    }
+
+    /**
+     * @return Left edge of the key in pixels
+     */
+    double keyX(int note) {
+        double left = (whiteOrdinal(note) - lowOrdinal) * whiteWidth;
+        return isBlack(note) ? left + whiteWidth - blackWidth / 2 : left;
+    }
+
+    double keyWidth(int note) {
+        return isBlack(note) ? blackWidth : whiteWidth;
+    }
+
+    double keyHeight(int note) {
+        return isBlack(note) ? blackHeight : whiteHeight;
+    }
+
+    /**
+     * @return The lowest note whose key may overlap {@code x} or anything
+     *         to its right
+     */
+    int firstNoteFrom(double x) {
+        int ordinal = (int) Math.floor((x - blackWidth / 2) / whiteWidth);
+        return whiteNote(lowOrdinal + Math.max(0, Math.min(whiteKeys - 1, ordinal)));
+    }
+
+    /**
+     * @return The highest note whose key may overlap {@code x} or anything
+     *         to its left
+     */
+    int lastNoteTo(double x) {
+        int ordinal = (int) Math.floor((x + blackWidth / 2) / whiteWidth);
+        int note = whiteNote(lowOrdinal + Math.max(0, Math.min(whiteKeys - 1, ordinal)));
+        return Math.min(highNote, note + 1);
+    }
+
+    int lowNote() {
+        return lowNote;
+    }
+
+    int highNote() {
+        return highNote;
+    }
+
+    int whiteKeyCount() {
+        return whiteKeys;
+    }
+
+    int keyCount() {
+        return highNote - lowNote + 1;
+    }
+
+    double width() {
+        return whiteWidth * whiteKeys;
+    }
+
+    double height() {
+        return whiteHeight;
+    }
+}
+
+// KeyboardCanvas.java
+/**
+ * The whole keyboard drawn on one {@link Canvas}.
+ *
+ * <p>Pressing or releasing a key repaints only that key's bounding box,
+ * clipped, together with the neighbours overlapping it, so the cost of a
+ * state change does not depend on how many keys the keyboard has. Hit
+ * testing is delegated to {@link KeyboardLayout}. Must be used on the
+ * JavaFX application thread.</p>
+ */
+class KeyboardCanvas extends Canvas {
+    private static final Color WHITE_KEY = Color.WHITE;
+    private static final Color WHITE_KEY_PRESSED = Color.rgb(200, 200, 255);
+    private static final Color WHITE_KEY_STROKE = Color.rgb(138, 43, 226); // Purple stroke for synthwave effect
+    private static final Color BLACK_KEY = Color.rgb(25, 25, 25);
+    private static final Color BLACK_KEY_PRESSED = Color.rgb(50, 50, 75);
+    private static final Color BLACK_KEY_STROKE = Color.rgb(255, 50, 255); // Pink stroke for synthwave effect
+    private static final double STROKE_WIDTH = 2;
+
+    private final int lowNote;
+    private final int highNote;
+    private final boolean[] pressed = new boolean[NoteTable.NOTES];
+    private KeyboardLayout layout;
+
+    KeyboardCanvas(int lowNote, int highNote, double width, double height) {
+        super(width, height);
+        this.lowNote = lowNote;
+        this.highNote = highNote;
+        relayout();
+        widthProperty().addListener((observable, oldWidth, newWidth) -> relayout());
+        heightProperty().addListener((observable, oldHeight, newHeight) -> relayout());
+    }
+
+    private void relayout() {
+        double height = getHeight();
+        layout = new KeyboardLayout(lowNote, highNote, getWidth(), height,
+            height * StyleConstants.BLACK_KEY_HEIGHT / StyleConstants.WHITE_KEY_HEIGHT);
+        redraw(0, getWidth());
+    }
+
+    KeyboardLayout layout() {
+        return layout;
+    }
+
+    boolean isPressed(int note) {
+        return pressed[note];
+    }
+
+    /**
+     * Changes a key's highlight, repainting only the area it covers.
+     *
+     * @param note MIDI note within the keyboard's range
+     * @param down Whether the key is held
+     */
+    void setPressed(int note, boolean down) {
+        if (pressed[note] == down) {
+            return;
+        }
+        pressed[note] = down;
+        redraw(layout.keyX(note) - STROKE_WIDTH, layout.keyWidth(note) + 2 * STROKE_WIDTH);
+    }
+
+    /**
+     * Repaints the horizontal strip {@code [x, x + width)}: white keys
+     * first, then the black keys on top of them.
+     */
+    private void redraw(double x, double width) {
+        GraphicsContext gc = getGraphicsContext2D();
+        gc.save();
+        gc.beginPath();
+        gc.rect(x, 0, width, getHeight());
+        gc.clip();
+        gc.clearRect(x, 0, width, getHeight());
+        gc.setLineWidth(STROKE_WIDTH);
+        int first = layout.firstNoteFrom(x);
+        int last = layout.lastNoteTo(x + width);
+        for (int note = first; note <= last; note++) {
+            if (!KeyboardLayout.isBlack(note)) {
+                drawKey(gc, note, pressed[note] ? WHITE_KEY_PRESSED : WHITE_KEY, WHITE_KEY_STROKE, 10);
+            }
+        }
+        for (int note = first; note <= last; note++) {
+            if (KeyboardLayout.isBlack(note)) {
+                drawKey(gc, note, pressed[note] ? BLACK_KEY_PRESSED : BLACK_KEY, BLACK_KEY_STROKE, 5);
+            }
+        }
+        gc.restore();
+    }
+
+    private void drawKey(GraphicsContext gc, int note, Color fill, Color stroke, double arc) {
+        // Inset by half the stroke so the outline stays inside the key
+        double inset = STROKE_WIDTH / 2;
+        double x = layout.keyX(note) + inset;
+        double width = layout.keyWidth(note) - STROKE_WIDTH;
+        double height = layout.keyHeight(note) - STROKE_WIDTH;
+        gc.setFill(fill);
+        gc.fillRoundRect(x, inset, width, height, arc, arc);
+        gc.setStroke(stroke);
+        gc.strokeRoundRect(x, inset, width, height, arc, arc);
+    }
+}
@@ -0,0 +1,462 @@
+package com.synthwave.piano;
+
+import javax.sound.midi.*;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+// MidiInput.java
+/**
+ * MIDI receiver that plays incoming notes on an {@link AudioEngine}.
+ *
+ * <p>Messages are handled on the transmitter's own thread and posted
+ * straight to a dedicated engine input, so MIDI never passes through the
+ * JavaFX application thread. Note-on velocity sets the voice gain; the
+ * sustain pedal (controller 64) holds released notes until it is lifted.
+ * All sixteen channels play the same instrument.</p>
+ */
+final class MidiInput implements Receiver {
+    private static final int CHANNELS = 16;
+    private static final int SUSTAIN = 64;
+    private static final int ALL_SOUND_OFF = 120;
+    private static final int ALL_NOTES_OFF = 123;
+
+    private final NoteInput input;
+
+    /** Engine note id per channel and note, 0 when silent */
+    private final int[] playing = new int[CHANNELS * NoteTable.NOTES];
+
+    /** Notes released while the pedal was down, per channel and note */
+    private final boolean[] held = new boolean[CHANNELS * NoteTable.NOTES];
+    private final boolean[] pedal = new boolean[CHANNELS];
+    private volatile boolean closed;
+
+    /**
+     * @param engine The engine to play; one of its inputs is claimed
+     * @throws IllegalStateException if the engine has no free input
+     */
+    MidiInput(AudioEngine engine) {
+        this.input = engine.openInput();
+    }
+
+    /**
+     * Opens the first MIDI device whose name contains {@code name} and
+     * connects its transmitter to a new {@code MidiInput}.
+     *
+     * @param engine The engine to play
+     * @param name Part of the device name, as listed by
+     *        {@link MidiSystem#getMidiDeviceInfo()}
+     * @return The opened device; close it to disconnect
+     * @throws MidiUnavailableException if no such device can be opened
+     */
+    static MidiDevice connect(AudioEngine engine, String name) throws MidiUnavailableException {
+        MidiDevice device = MidiDevices.find(name, true);
+        device.open();
+        try {
+            device.getTransmitter().setReceiver(new MidiInput(engine));
+        } catch (MidiUnavailableException | RuntimeException e) {
+            device.close();
+            throw e;
+        }
+        return device;
+    }
+
+    /**
+     * Velocity curve: gain rises with the square of velocity, which sounds
+     * closer to even steps in loudness than a linear mapping.
+     */
+    static float velocityGain(int velocity) {
+        float v = velocity / 127f;
+        return v * v;
+    }
+
+    /**
+     * Inverse of {@link #velocityGain(int)}, for choosing velocity layers
+     * of notes that only carry a gain.
+     *
+     * @return Velocity 1..127
+     */
+    static int gainVelocity(float gain) {
+        return (int) Math.max(1, Math.min(127, Math.round(Math.sqrt(gain) * 127)));
+    }
+
+    /**
+     * Handles one message. Synchronized so that several transmitters may
+     * share this receiver while the engine input still sees one producer
+     * at a time.
+     */
+    @Override
+    public synchronized void send(MidiMessage message, long timeStamp) {
+        if (closed || !(message instanceof ShortMessage)) {
+            return;
+        }
+        ShortMessage shortMessage = (ShortMessage) message;
+        int channel = shortMessage.getChannel();
+        int data1 = shortMessage.getData1();
+        int data2 = shortMessage.getData2();
+        switch (shortMessage.getCommand()) {
+            case ShortMessage.NOTE_ON:
+                if (data2 > 0) {
+                    noteOn(channel, data1, data2);
+                } else {
+                    noteOff(channel, data1);
+                }
+                break;
+            case ShortMessage.NOTE_OFF:
+                noteOff(channel, data1);
+                break;
+            case ShortMessage.CONTROL_CHANGE:
+                controlChange(channel, data1, data2);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void noteOn(int channel, int note, int velocity) {
+        int slot = channel * NoteTable.NOTES + note;
+        // Re-striking a sounding or held note restarts it
+        if (playing[slot] != 0) {
+            input.noteOff(playing[slot]);
+        }
+        held[slot] = false;
+        playing[slot] = input.playNote(note, velocityGain(velocity));
+    }
+
+    private void noteOff(int channel, int note) {
+        int slot = channel * NoteTable.NOTES + note;
+        if (playing[slot] == 0) {
+            return;
+        }
+        if (pedal[channel]) {
+            held[slot] = true;
+        } else {
+            release(slot);
+        }
+    }
+
+    private void controlChange(int channel, int controller, int value) {
+        if (controller == SUSTAIN) {
+            boolean down = value >= 64;
+            if (pedal[channel] && !down) {
+                for (int slot = channel * NoteTable.NOTES; slot < (channel + 1) * NoteTable.NOTES; slot++) {
+                    if (held[slot]) {
+                        release(slot);
+                    }
+                }
+            }
+            pedal[channel] = down;
+        } else if (controller == ALL_NOTES_OFF || controller == ALL_SOUND_OFF) {
+            pedal[channel] = false;
+            for (int slot = channel * NoteTable.NOTES; slot < (channel + 1) * NoteTable.NOTES; slot++) {
+                if (playing[slot] != 0) {
+                    release(slot);
+                }
+            }
+        }
+    }
+
+    private void release(int slot) {
+        input.noteOff(playing[slot]);
+        playing[slot] = 0;
+        held[slot] = false;
+    }
+
+    /**
+     * Releases every sounding note, ignores further messages and gives
+     * the engine input back once the releases have played.
+     */
+    @Override
+    public synchronized void close() {
+        for (int slot = 0; slot < playing.length; slot++) {
+            if (playing[slot] != 0) {
+                release(slot);
+            }
+        }
+        Arrays.fill(pedal, false);
+        closed = true;
+        input.close();
+    }
+}
+
+// MidiOutput.java
+/**
+ * MIDI transmitter that mirrors notes played on the on-screen keyboard to
+ * an external receiver, such as a sequencer recording the performance.
+ *
+ * <p>Sends are synchronous on the caller's thread; with no receiver
+ * attached they do nothing.</p>
+ */
+final class MidiOutput implements Transmitter {
+    private final int channel;
+    private final MidiDevice device;
+    private volatile Receiver receiver;
+
+    /**
+     * @param channel MIDI channel, 0..15
+     */
+    MidiOutput(int channel) {
+        this(channel, null);
+    }
+
+    private MidiOutput(int channel, MidiDevice device) {
+        this.channel = channel;
+        this.device = device;
+    }
+
+    /**
+     * Opens the first MIDI device whose name contains {@code name} and
+     * attaches its receiver to a new {@code MidiOutput} on channel 0.
+     *
+     * @param name Part of the device name
+     * @return The output; closing it also closes the device
+     * @throws MidiUnavailableException if no such device can be opened
+     */
+    static MidiOutput connect(String name) throws MidiUnavailableException {
+        MidiDevice device = MidiDevices.find(name, false);
+        device.open();
+        MidiOutput output = new MidiOutput(0, device);
+        try {
+            output.setReceiver(device.getReceiver());
+        } catch (MidiUnavailableException | RuntimeException e) {
+            device.close();
+            throw e;
+        }
+        return output;
+    }
+
+    void noteOn(int note, int velocity) {
+        send(ShortMessage.NOTE_ON, note, velocity);
+    }
+
+    void noteOff(int note) {
+        send(ShortMessage.NOTE_OFF, note, 0);
+    }
+
+    void sustain(boolean down) {
+        send(ShortMessage.CONTROL_CHANGE, 64, down ? 127 : 0);
+    }
+
+    private void send(int command, int data1, int data2) {
+        Receiver target = receiver;
+        if (target == null) {
+            return;
+        }
+        try {
+            target.send(new ShortMessage(command, channel, data1, data2), -1);
+        } catch (InvalidMidiDataException e) {
+            throw new IllegalArgumentException("Invalid MIDI data: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    @Override
+    public void close() {
+        Receiver target = receiver;
+        receiver = null;
+        if (target != null) {
+            target.close();
+        }
+        if (device != null) {
+            device.close();
+        }
+    }
+}
+
+// MidiDevices.java
+/**
+ * Lookup of hardware and software MIDI ports by name.
+ */
+final class MidiDevices {
+    private MidiDevices() {
+    }
+
+    /**
+     * @param name Part of the device name, case-insensitive
+     * @param input {@code true} for a device that sends MIDI to us (has a
+     *        transmitter), {@code false} for one we send to
+     * @return The first matching device, not yet opened
+     * @throws MidiUnavailableException if no device matches
+     */
+    static MidiDevice find(String name, boolean input) throws MidiUnavailableException {
+        String wanted = name.toLowerCase();
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            if (!info.getName().toLowerCase().contains(wanted)) {
+                continue;
+            }
+            MidiDevice device = MidiSystem.getMidiDevice(info);
+            if (device instanceof Sequencer || device instanceof Synthesizer) {
+                continue;
+            }
+            int ports = input ? device.getMaxTransmitters() : device.getMaxReceivers();
+            if (ports != 0) {
+                return device;
+            }
+        }
+        throw new MidiUnavailableException("No MIDI " + (input ? "input" : "output") + " matching '" + name + "'");
+    }
+}
+
+// MidiLatencyProbe.java
+/**
+ * Measures latency and jitter of a MIDI path.
+ *
+ * <p>The probe sends note-on messages at a fixed period into the head of
+ * the path and receives them at the tail. Latency is the time from send to
+ * arrival; jitter is the standard deviation of that latency. Connect the
+ * head and tail through a loopback cable or a virtual port to measure a
+ * driver, or through {@link MidiInput}'s transport to measure this
+ * process alone. Time from the engine's input queue to the first audible
+ * sample is reported separately by {@link AudioEngine#metrics()}.</p>
+ *
+ * <p>Run from the command line with an output and an input device name:
+ * {@code java com.synthwave.piano.MidiLatencyProbe "Loopback" "Loopback" [count] [periodMillis]}.</p>
+ */
+final class MidiLatencyProbe implements Receiver {
+    private final long[] sent;
+    private final long[] arrived;
+    private volatile int received;
+
+    /**
+     * @param count Number of messages to send
+     */
+    MidiLatencyProbe(int count) {
+        sent = new long[count];
+        arrived = new long[count];
+    }
+
+    /**
+     * Sends all messages into {@code head}, paced at {@code periodNanos},
+     * then waits up to {@code timeoutNanos} for the stragglers.
+     *
+     * @param head Receiver at the start of the path; the tail must be
+     *        connected to this probe
+     * @return Statistics over the messages that arrived
+     * @throws InvalidMidiDataException never for the notes used here
+     */
+    Report run(Receiver head, long periodNanos, long timeoutNanos) throws InvalidMidiDataException {
+        long start = System.nanoTime();
+        for (int i = 0; i < sent.length; i++) {
+            long due = start + i * periodNanos;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            ShortMessage on = new ShortMessage(ShortMessage.NOTE_ON, 0, i % NoteTable.NOTES, 100);
+            sent[i] = System.nanoTime();
+            head.send(on, -1);
+            head.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, i % NoteTable.NOTES, 0), -1);
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (received < sent.length && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(1_000_000);
+        }
+        return report();
+    }
+
+    /**
+     * Records the arrival of each note-on, in order.
+     */
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        long now = System.nanoTime();
+        if (message instanceof ShortMessage) {
+            ShortMessage shortMessage = (ShortMessage) message;
+            int index = received;
+            if (shortMessage.getCommand() == ShortMessage.NOTE_ON && shortMessage.getData2() > 0
+                    && index < arrived.length) {
+                arrived[index] = now;
+                received = index + 1;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Report report() {
+        int count = received;
+        long[] latency = new long[count];
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            latency[i] = arrived[i] - sent[i];
+            sum += latency[i];
+        }
+        if (count == 0) {
+            return new Report(sent.length, 0, 0, 0, 0, 0, 0);
+        }
+        double mean = sum / count;
+        double squares = 0;
+        for (long l : latency) {
+            squares += (l - mean) * (l - mean);
+        }
+        Arrays.sort(latency);
+        return new Report(sent.length, count, (long) mean, latency[count / 2],
+            latency[Math.min(count - 1, (int) (count * 0.99))], latency[count - 1],
+            (long) Math.sqrt(squares / count));
+    }
+
+    /**
+     * Latency statistics in nanoseconds.
+     */
+    static final class Report {
+        final int sent;
+        final int received;
+        final long meanNanos;
+        final long medianNanos;
+        final long p99Nanos;
+        final long maxNanos;
+        final long jitterNanos;
+
+        Report(int sent, int received, long meanNanos, long medianNanos, long p99Nanos, long maxNanos,
+               long jitterNanos) {
+            this.sent = sent;
+            this.received = received;
+            this.meanNanos = meanNanos;
+            this.medianNanos = medianNanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+            this.jitterNanos = jitterNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d/%d received, latency mean %.3f ms, median %.3f ms, p99 %.3f ms, "
+                    + "max %.3f ms, jitter %.3f ms", received, sent, meanNanos / 1e6, medianNanos / 1e6,
+                p99Nanos / 1e6, maxNanos / 1e6, jitterNanos / 1e6);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: MidiLatencyProbe <output device> <input device> [count] [periodMillis]");
+            for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+                System.err.println("  " + info.getName() + " - " + info.getDescription());
+            }
+            return;
+        }
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        long period = (args.length > 3 ? Long.parseLong(args[3]) : 5) * 1_000_000L;
+        MidiDevice out = MidiDevices.find(args[0], false);
+        MidiDevice in = MidiDevices.find(args[1], true);
+        out.open();
+        in.open();
+        try {
+            MidiLatencyProbe probe = new MidiLatencyProbe(count);
+            in.getTransmitter().setReceiver(probe);
+            System.out.println(probe.run(out.getReceiver(), period, 1_000_000_000L));
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.synthwave.piano;
+
+// NoteCache.java
+/**
+ * Bounded store of pre-rendered note attacks, so a repeated note starts by
+ * copying samples instead of synthesizing them.
+ *
+ * <p>An entry holds the first {@link #frames()} raw frames of one sound
+ * source at one pitch: a {@link Waveform} at a phase increment, or a
+ * {@link SampleZone} at a read step. These are the frames
+ * {@link VoicePool#render} would produce, before envelope, gain and pan,
+ * so one entry serves every envelope, velocity and pan position. For the
+ * sampler it also means a repeated note never waits for its attack's
+ * mapped pages to be faulted in.</p>
+ *
+ * <p>Entries are filled as notes are played: the first voice to start a
+ * source and pitch records its output into a free or least recently used
+ * entry, and later voices play the entry back, then continue live from the
+ * phase the recording ended on. {@link #prerender} fills entries up front
+ * instead. The whole capacity is one preallocated array, so the cache
+ * never allocates once created, and its memory never exceeds the cap.</p>
+ *
+ * <p>Owned by one render thread, like the {@link VoicePool} it serves;
+ * only the figures may be read from other threads. Finding an entry is a
+ * linear scan, which costs nothing next to rendering a block at the entry
+ * counts a few megabytes allow.</p>
+ */
+final class NoteCache {
+    private static final int FREE = 0;
+    private static final int RECORDING = 1;
+    private static final int READY = 2;
+
+    private final int frames;
+    private final int entries;
+    private final float[] store;
+
+    /** Waveform or sample zone of each entry, null when free */
+    private final Object[] source;
+
+    /** Phase increment or sample step of each entry */
+    private final double[] rate;
+
+    /** Phase or sample position a voice continues from after the entry */
+    private final double[] endPosition;
+
+    private final int[] state;
+
+    /** Voices playing each entry; entries in use are never evicted */
+    private final int[] readers;
+
+    /** Use order for least-recently-used eviction; 0 for never used */
+    private final long[] lastUsed;
+    private long clock;
+
+    private volatile long hits;
+    private volatile long misses;
+    private volatile long evictions;
+    private volatile int ready;
+
+    /**
+     * @param maxBytes Memory the cache may use; it holds
+     *        {@code maxBytes / (4 * attackFrames)} entries
+     * @param attackFrames Frames cached per note
+     * @throws IllegalArgumentException if not even one entry fits
+     */
+    NoteCache(long maxBytes, int attackFrames) {
+        if (attackFrames < 1 || maxBytes < attackFrames * 4L) {
+            throw new IllegalArgumentException("No room for a " + attackFrames + " frame entry in "
+                + maxBytes + " bytes");
+        }
+        this.frames = attackFrames;
+        this.entries = (int) Math.min(maxBytes / (attackFrames * 4L), Integer.MAX_VALUE / attackFrames);
+        this.store = new float[entries * attackFrames];
+        source = new Object[entries];
+        rate = new double[entries];
+        endPosition = new double[entries];
+        state = new int[entries];
+        readers = new int[entries];
+        lastUsed = new long[entries];
+    }
+
+    /**
+     * Creates a cache holding {@code AudioConfig.NOTE_CACHE_ATTACK_SECONDS}
+     * per note at the given rate.
+     */
+    static NoteCache forRate(long maxBytes, int sampleRate) {
+        return new NoteCache(maxBytes, (int) Math.ceil(AudioConfig.NOTE_CACHE_ATTACK_SECONDS * sampleRate));
+    }
+
+    /**
+     * Looks up the attack of a note that is starting. On a hit the entry
+     * is pinned until {@link #release}; on a miss the least recently used
+     * idle entry is claimed for the caller to record into, unless another
+     * voice is already recording this source and pitch.
+     *
+     * @param src The waveform or sample zone
+     * @param step Its phase increment or sample step
+     * @return The entry, ready to play if {@link #isReady} and to be
+     *         recorded otherwise, or -1 to play live
+     */
+    int lookup(Object src, double step) {
+        int victim = -1;
+        for (int e = 0; e < entries; e++) {
+            if (state[e] != FREE && source[e] == src && rate[e] == step) {
+                if (state[e] == RECORDING) {
+                    misses++;
+                    return -1;
+                }
+                hits++;
+                readers[e]++;
+                lastUsed[e] = ++clock;
+                return e;
+            }
+            if (state[e] != RECORDING && readers[e] == 0
+                    && (victim < 0 || lastUsed[e] < lastUsed[victim])) {
+                victim = e;
+            }
+        }
+        misses++;
+        if (victim >= 0) {
+            if (state[victim] == READY) {
+                ready--;
+                evictions++;
+            }
+            source[victim] = src;
+            rate[victim] = step;
+            state[victim] = RECORDING;
+            lastUsed[victim] = ++clock;
+        }
+        return victim;
+    }
+
+    boolean isReady(int entry) {
+        return state[entry] == READY;
+    }
+
+    /**
+     * Copies frames of a ready entry.
+     *
+     * @param position First frame of the entry to copy
+     * @param block Destination, written from index 0
+     * @param count Frames wanted
+     * @return Frames copied; fewer than {@code count} at the end of the entry
+     */
+    int read(int entry, int position, float[] block, int count) {
+        int n = Math.min(count, frames - position);
+        System.arraycopy(store, entry * frames + position, block, 0, n);
+        return n;
+    }
+
+    /**
+     * Appends frames to an entry being recorded.
+     *
+     * @param position Frame of the entry the first one goes to; the
+     *        frames must fit
+     */
+    void write(int entry, int position, float[] block, int count) {
+        System.arraycopy(block, 0, store, entry * frames + position, count);
+    }
+
+    /**
+     * Makes a fully recorded entry available.
+     *
+     * @param end Phase or sample position the voice had after the last
+     *        recorded frame
+     */
+    void finish(int entry, double end) {
+        endPosition[entry] = end;
+        state[entry] = READY;
+        ready++;
+    }
+
+    /**
+     * Frees an entry whose recording was cut short, e.g. by a steal.
+     */
+    void abandon(int entry) {
+        state[entry] = FREE;
+        source[entry] = null;
+        lastUsed[entry] = 0;
+    }
+
+    /**
+     * Unpins an entry a voice has stopped playing.
+     */
+    void release(int entry) {
+        readers[entry]--;
+    }
+
+    /**
+     * @return The phase or sample position to continue live from after
+     *         the entry
+     */
+    double endPosition(int entry) {
+        return endPosition[entry];
+    }
+
+    /**
+     * Fills the cache with the attacks of a range of notes, as if each had
+     * been played once. Call before handing the cache to an engine, or
+     * from the render thread; allocates a scratch voice per note.
+     *
+     * @param table Tuning; its sample rate must match the engine's
+     * @param gain Voice gain, which picks the sampler's velocity layer
+     * @param shape Waveform to cache when {@code bank} is null
+     * @param bank Sample bank, or null
+     */
+    void prerender(NoteTable table, int lowNote, int highNote, float gain, Waveform shape, SampleBank bank) {
+        // Filling the cache is not playing, so it does not count towards the hit rate
+        long playedHits = hits;
+        long playedMisses = misses;
+        float[] block = new float[frames];
+        for (int note = lowNote; note <= highNote; note++) {
+            VoicePool voice = new VoicePool(1, table.sampleRate());
+            voice.setCache(this);
+            voice.tuning = table;
+            int v = voice.allocate(note + 1, table.frequency(note), gain, 0f, shape, Envelope.DEFAULT, bank);
+            voice.render(v, block, frames);
+            voice.setCache(null);
+        }
+        hits = playedHits;
+        misses = playedMisses;
+    }
+
+    /**
+     * @return Frames cached per note
+     */
+    int frames() {
+        return frames;
+    }
+
+    /**
+     * @return Entries the cap allows
+     */
+    int capacity() {
+        return entries;
+    }
+
+    /**
+     * @return Note-ons that started from a cached attack
+     */
+    long hits() {
+        return hits;
+    }
+
+    /**
+     * @return Note-ons that were synthesized from the first frame
+     */
+    long misses() {
+        return misses;
+    }
+
+    /**
+     * @return Fraction of note-ons that hit, or 0 before the first
+     */
+    double hitRate() {
+        long h = hits;
+        long total = h + misses;
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return Ready entries dropped to make room for another note
+     */
+    long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Bytes of cached attacks ready to play
+     */
+    long memoryBytes() {
+        return (long) ready * frames * 4;
+    }
+
+    /**
+     * @return Bytes reserved for the cache, the cap rounded down to whole
+     *         entries
+     */
+    long capacityBytes() {
+        return store.length * 4L;
+    }
+}
@@ -0,0 +1,317 @@
+package com.synthwave.piano;
+
+import javax.sound.sampled.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+// SampleEncoding.java
+/**
+ * Sample types the engine can write to an output line.
+ */
+enum SampleEncoding {
+    FLOAT_32(4, AudioFormat.Encoding.PCM_FLOAT),
+    PCM_24(3, AudioFormat.Encoding.PCM_SIGNED),
+    PCM_16(2, AudioFormat.Encoding.PCM_SIGNED);
+
+    final int bytes;
+    final AudioFormat.Encoding encoding;
+
+    SampleEncoding(int bytes, AudioFormat.Encoding encoding) {
+        this.bytes = bytes;
+        this.encoding = encoding;
+    }
+}
+
+// OutputFormat.java
+/**
+ * Sample rate, channel count, sample type and byte order of the live
+ * output line.
+ *
+ * <p>{@link #negotiate()} asks Java Sound which formats the default output
+ * accepts and picks the one the device is most likely to run natively, so
+ * that the OS mixer has nothing to resample or convert. Preference goes
+ * first to the sample rate, then stereo over mono, then float over 24-bit
+ * over 16-bit samples, then the platform's byte order.</p>
+ */
+final class OutputFormat {
+    /** The original line format: 44.1 kHz, 16-bit, mono, big-endian */
+    static final OutputFormat DEFAULT = new OutputFormat(AudioConfig.SAMPLE_RATE, 1, SampleEncoding.PCM_16, true);
+
+    final int sampleRate;
+    final int channels;
+    final SampleEncoding encoding;
+    final boolean bigEndian;
+
+    /**
+     * @throws IllegalArgumentException if {@code channels} is not 1 or 2
+     *         or the rate is not positive
+     */
+    OutputFormat(int sampleRate, int channels, SampleEncoding encoding, boolean bigEndian) {
+        if (channels < 1 || channels > 2 || sampleRate <= 0) {
+            throw new IllegalArgumentException("Unsupported output: " + sampleRate + " Hz, "
+                + channels + " channels");
+        }
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.encoding = encoding;
+        this.bigEndian = bigEndian;
+    }
+
+    int frameBytes() {
+        return channels * encoding.bytes;
+    }
+
+    AudioFormat toAudioFormat() {
+        int bits = encoding.bytes * 8;
+        return new AudioFormat(encoding.encoding, sampleRate, bits, channels, frameBytes(), sampleRate, bigEndian);
+    }
+
+    /**
+     * @return A converter from the mixer's float bus to this format
+     */
+    FrameEncoder encoder() {
+        return FrameEncoder.forFormat(this);
+    }
+
+    /**
+     * Picks the best format the default output line supports.
+     *
+     * @return The negotiated format, or {@link #DEFAULT} if the system
+     *         reports none of the candidates
+     */
+    static OutputFormat negotiate() {
+        List<Integer> advertised = new ArrayList<>();
+        for (Line.Info info : AudioSystem.getSourceLineInfo(new Line.Info(SourceDataLine.class))) {
+            if (info instanceof DataLine.Info) {
+                for (AudioFormat format : ((DataLine.Info) info).getFormats()) {
+                    int rate = (int) format.getSampleRate();
+                    if (format.getSampleRate() != AudioSystem.NOT_SPECIFIED && !advertised.contains(rate)) {
+                        advertised.add(rate);
+                    }
+                }
+            }
+        }
+        return negotiate(advertised,
+            format -> AudioSystem.isLineSupported(new DataLine.Info(SourceDataLine.class, format)));
+    }
+
+    /**
+     * Picks the most preferred candidate that {@code supported} accepts.
+     * Rates the device advertises come first, in the order of
+     * {@code PREFERRED_SAMPLE_RATES}; then the preferred rates themselves,
+     * for devices that leave the rate unspecified.
+     *
+     * @param advertised Concrete sample rates listed by the device
+     * @param supported Whether a line in a given format can be opened
+     * @return The chosen format, or {@link #DEFAULT}
+     */
+    static OutputFormat negotiate(List<Integer> advertised, Predicate<AudioFormat> supported) {
+        List<Integer> rates = new ArrayList<>();
+        for (int rate : AudioConfig.PREFERRED_SAMPLE_RATES) {
+            if (advertised.contains(rate)) {
+                rates.add(rate);
+            }
+        }
+        for (int rate : AudioConfig.PREFERRED_SAMPLE_RATES) {
+            if (!rates.contains(rate)) {
+                rates.add(rate);
+            }
+        }
+        boolean nativeBigEndian = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+        for (int rate : rates) {
+            for (int channels = 2; channels >= 1; channels--) {
+                for (SampleEncoding encoding : SampleEncoding.values()) {
+                    for (boolean bigEndian : new boolean[] {nativeBigEndian, !nativeBigEndian}) {
+                        OutputFormat candidate = new OutputFormat(rate, channels, encoding, bigEndian);
+                        if (supported.test(candidate.toAudioFormat())) {
+                            return candidate;
+                        }
+                    }
+                }
+            }
+        }
+        return DEFAULT;
+    }
+
+    @Override
+    public String toString() {
+        return sampleRate + " Hz, " + (channels == 2 ? "stereo" : "mono") + ", " + encoding
+            + (bigEndian ? " big-endian" : " little-endian");
+    }
+}
+
+// FrameEncoder.java
+/**
+ * Converts the mixer's planar float bus (left and right blocks, already
+ * clipped to -1..1) into interleaved output frames.
+ *
+ * <p>One subclass per sample type, with the channel count and byte order
+ * fixed when it is created, so the per-sample loops contain no branches.
+ * For the integer types byte order is a permutation of byte positions
+ * within a sample, computed once; a mono output is the average of the two
+ * channels.</p>
+ */
+abstract class FrameEncoder {
+    final int channels;
+
+    /** Position of each byte of a sample, most significant first */
+    final int b0;
+    final int b1;
+    final int b2;
+
+    FrameEncoder(int channels, int sampleBytes, boolean bigEndian) {
+        this.channels = channels;
+        int last = sampleBytes - 1;
+        b0 = bigEndian ? 0 : last;
+        b1 = bigEndian ? 1 : last - 1;
+        b2 = bigEndian ? 2 : last - 2;
+    }
+
+    static FrameEncoder forFormat(OutputFormat format) {
+        switch (format.encoding) {
+            case FLOAT_32:
+                return new Float32(format.channels, format.bigEndian);
+            case PCM_24:
+                return new Pcm24(format.channels, format.bigEndian);
+            default:
+                return new Pcm16(format.channels, format.bigEndian);
+        }
+    }
+
+    /**
+     * Writes {@code frames} frames to {@code out}.
+     *
+     * @param left Left channel, -1..1
+     * @param right Right channel, -1..1
+     * @param frames Number of frames
+     * @param out Destination buffer
+     * @param offset Byte offset into {@code out}
+     */
+    final void encode(float[] left, float[] right, int frames, byte[] out, int offset) {
+        if (channels == 2) {
+            encodeStereo(left, right, frames, out, offset);
+        } else {
+            encodeMono(left, right, frames, out, offset);
+        }
+    }
+
+    abstract void encodeStereo(float[] left, float[] right, int frames, byte[] out, int offset);
+
+    abstract void encodeMono(float[] left, float[] right, int frames, byte[] out, int offset);
+
+    /** 16-bit signed integers */
+    static final class Pcm16 extends FrameEncoder {
+        private static final float SCALE = Short.MAX_VALUE;
+
+        Pcm16(int channels, boolean bigEndian) {
+            super(channels, 2, bigEndian);
+        }
+
+        @Override
+        void encodeStereo(float[] left, float[] right, int frames, byte[] out, int offset) {
+            for (int i = 0; i < frames; i++) {
+                int at = offset + 4 * i;
+                int l = (int) (left[i] * SCALE);
+                int r = (int) (right[i] * SCALE);
+                out[at + b0] = (byte) (l >> 8);
+                out[at + b1] = (byte) l;
+                out[at + 2 + b0] = (byte) (r >> 8);
+                out[at + 2 + b1] = (byte) r;
+            }
+        }
+
+        @Override
+        void encodeMono(float[] left, float[] right, int frames, byte[] out, int offset) {
+            for (int i = 0; i < frames; i++) {
+                int at = offset + 2 * i;
+                int s = (int) ((left[i] + right[i]) * 0.5f * SCALE);
+                out[at + b0] = (byte) (s >> 8);
+                out[at + b1] = (byte) s;
+            }
+        }
+    }
+
+    /** 24-bit signed integers, three bytes per sample */
+    static final class Pcm24 extends FrameEncoder {
+        private static final float SCALE = (1 << 23) - 1;
+
+        Pcm24(int channels, boolean bigEndian) {
+            super(channels, 3, bigEndian);
+        }
+
+        @Override
+        void encodeStereo(float[] left, float[] right, int frames, byte[] out, int offset) {
+            for (int i = 0; i < frames; i++) {
+                int at = offset + 6 * i;
+                int l = (int) (left[i] * SCALE);
+                int r = (int) (right[i] * SCALE);
+                out[at + b0] = (byte) (l >> 16);
+                out[at + b1] = (byte) (l >> 8);
+                out[at + b2] = (byte) l;
+                out[at + 3 + b0] = (byte) (r >> 16);
+                out[at + 3 + b1] = (byte) (r >> 8);
+                out[at + 3 + b2] = (byte) r;
+            }
+        }
+
+        @Override
+        void encodeMono(float[] left, float[] right, int frames, byte[] out, int offset) {
+            for (int i = 0; i < frames; i++) {
+                int at = offset + 3 * i;
+                int s = (int) ((left[i] + right[i]) * 0.5f * SCALE);
+                out[at + b0] = (byte) (s >> 16);
+                out[at + b1] = (byte) (s >> 8);
+                out[at + b2] = (byte) s;
+            }
+        }
+    }
+
+    /**
+     * 32-bit IEEE floats, written as they are. Stored four bytes at a time
+     * through a byte-array view, one loop per byte order, which measured
+     * several times faster than assembling the bytes one by one.
+     */
+    static final class Float32 extends FrameEncoder {
+        private static final VarHandle BIG = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.BIG_ENDIAN);
+        private static final VarHandle LITTLE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+
+        private final boolean bigEndian;
+
+        Float32(int channels, boolean bigEndian) {
+            super(channels, 4, bigEndian);
+            this.bigEndian = bigEndian;
+        }
+
+        @Override
+        void encodeStereo(float[] left, float[] right, int frames, byte[] out, int offset) {
+            if (bigEndian) {
+                for (int i = 0; i < frames; i++) {
+                    BIG.set(out, offset + 8 * i, left[i]);
+                    BIG.set(out, offset + 8 * i + 4, right[i]);
+                }
+            } else {
+                for (int i = 0; i < frames; i++) {
+                    LITTLE.set(out, offset + 8 * i, left[i]);
+                    LITTLE.set(out, offset + 8 * i + 4, right[i]);
+                }
+            }
+        }
+
+        @Override
+        void encodeMono(float[] left, float[] right, int frames, byte[] out, int offset) {
+            if (bigEndian) {
+                for (int i = 0; i < frames; i++) {
+                    BIG.set(out, offset + 4 * i, (left[i] + right[i]) * 0.5f);
+                }
+            } else {
+                for (int i = 0; i < frames; i++) {
+                    LITTLE.set(out, offset + 4 * i, (left[i] + right[i]) * 0.5f);
+                }
+            }
+        }
+    }
+}
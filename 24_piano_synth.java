@@ -0,0 +1,305 @@
+package com.synthwave.piano;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiUnavailableException;
+import java.io.IOException;
+import java.nio.file.Path;
+
+// PianoSynth.java
+/**
+ * The piano without its window: notes in by MIDI number, PCM out.
+ *
+ * <p>Owns the {@link AudioEngine} and everything that hangs off a key
+ * press apart from drawing it: which keys are sounding, the MIDI
+ * connections, the performance recording and the metrics server. Nothing
+ * here touches JavaFX, so a server-side renderer or a test can create one
+ * in milliseconds without loading the FX toolkit. The JavaFX application
+ * is one client; it forwards key presses to {@link #noteOn(int, int)} and
+ * releases to {@link #noteOff(int)} and only repaints the keys itself.</p>
+ *
+ * <p>{@link #open()} plays through the default output line, configured
+ * from the {@code synth.*} system properties. {@link #headless(OutputFormat)}
+ * opens no device; the caller pulls PCM with {@link #render(byte[], int)}.</p>
+ *
+ * <p>{@code noteOn} and {@code noteOff} must come from one thread, as with
+ * {@link AudioEngine#noteOn(double)}. MIDI input plays the engine on its
+ * own input and does not go through this class.</p>
+ */
+final class PianoSynth implements AutoCloseable {
+    private final AudioEngine engine;
+    private final int[] activeNotes = new int[NoteTable.NOTES]; // Engine note id per MIDI note, 0 when silent
+    private MidiDevice midiIn;
+    private MidiOutput midiOut = new MidiOutput(0); // Unconnected until a device is configured
+    private PerformanceRecorder recorder; // Set while synth.record is recording
+    private MetricsServer metricsServer; // Set when synth.metrics.port is given
+
+    /**
+     * Wraps an engine as it is; see {@link #open()} and
+     * {@link #headless(OutputFormat)} for configured ones.
+     */
+    PianoSynth(AudioEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Opens and starts a live synthesizer on the default output line, set
+     * up from the system properties: {@code synth.polyphony},
+     * {@code synth.steal}, {@code synth.autotune}, {@code synth.a4},
+     * {@code synth.temperament}, {@code synth.dry}, {@code synth.samples},
+     * {@code synth.notecache.mb}, {@code synth.unison},
+     * {@code synth.unison.detune}, {@code synth.unison.width},
+     * {@code synth.midi.in}, {@code synth.midi.out}, {@code synth.record}
+     * and {@code synth.metrics.port}. A sample bank, MIDI device, recording
+     * file or metrics port that is unavailable is reported and left out.
+     *
+     * @throws AudioInitializationException if no output line is available
+     */
+    static PianoSynth open() {
+        PianoSynth synth = new PianoSynth(AudioEngine.open(polyphony()));
+        synth.configure();
+        synth.engine.start();
+        synth.connectMidi();
+        synth.startRecording();
+        synth.startMetricsServer();
+        return synth;
+    }
+
+    /**
+     * Creates a synthesizer with no output line, configured from the same
+     * sound properties as {@link #open()}. No device, MIDI port, file or
+     * socket is opened.
+     *
+     * @param format Format {@link #render(byte[], int)} writes
+     */
+    static PianoSynth headless(OutputFormat format) {
+        PianoSynth synth = new PianoSynth(AudioEngine.headless(polyphony(), format));
+        synth.configure();
+        return synth;
+    }
+
+    private static int polyphony() {
+        return Integer.getInteger("synth.polyphony", AudioConfig.MAX_POLYPHONY);
+    }
+
+    private void configure() {
+        engine.setStealPolicy(StealPolicy.valueOf(System.getProperty("synth.steal", "OLDEST")));
+        engine.setAutoTune(Boolean.getBoolean("synth.autotune"));
+        engine.setNoteTable(new NoteTable(
+            Double.parseDouble(System.getProperty("synth.a4", String.valueOf(AudioConfig.A4_FREQUENCY))),
+            Temperament.valueOf(System.getProperty("synth.temperament", "EQUAL")),
+            engine.sampleRate()));
+        if (!Boolean.getBoolean("synth.dry")) {
+            createEffects();
+        }
+        loadInstrument();
+        Integer cacheMegabytes = Integer.getInteger("synth.notecache.mb");
+        if (cacheMegabytes != null) {
+            engine.setNoteCache(NoteCache.forRate((long) cacheMegabytes << 20, engine.sampleRate()));
+        }
+        engine.setUnison(new Unison(Integer.getInteger("synth.unison", 1),
+            Double.parseDouble(System.getProperty("synth.unison.detune",
+                String.valueOf(AudioConfig.UNISON_DETUNE_CENTS))),
+            Float.parseFloat(System.getProperty("synth.unison.width", String.valueOf(AudioConfig.UNISON_WIDTH)))));
+    }
+
+    private void loadInstrument() {
+        String file = System.getProperty("synth.samples");
+        if (file == null) {
+            return;
+        }
+        try {
+            engine.setInstrument(SampleBank.open(Path.of(file)));
+        } catch (IOException e) {
+            // Play the waveform instead
+            engine.metrics().recordError("samples", e);
+            e.printStackTrace();
+        }
+    }
+
+    private void createEffects() {
+        // Synthwave voicing: a softened top end, widened by chorus, echoed and placed in a room
+        int rate = engine.sampleRate();
+        FilterEffect filter = new FilterEffect(rate);
+        filter.setCutoff(6000);
+        filter.setResonance(0.3);
+        engine.effects().set(filter,
+            new ChorusEffect(rate),
+            new DelayEffect(rate),
+            new ReverbEffect(rate));
+    }
+
+    private void connectMidi() {
+        // MIDI input plays the engine directly on the device's thread
+        String input = System.getProperty("synth.midi.in");
+        String output = System.getProperty("synth.midi.out");
+        try {
+            if (input != null) {
+                midiIn = MidiInput.connect(engine, input);
+            }
+            if (output != null) {
+                midiOut = MidiOutput.connect(output);
+            }
+        } catch (MidiUnavailableException e) {
+            engine.metrics().recordError("midi", e);
+            e.printStackTrace();
+        }
+    }
+
+    private void startRecording() {
+        String file = System.getProperty("synth.record");
+        if (file == null) {
+            return;
+        }
+        try {
+            recorder = new PerformanceRecorder(Path.of(file));
+        } catch (IOException e) {
+            engine.metrics().recordError("recording", e);
+            e.printStackTrace();
+        }
+    }
+
+    private void startMetricsServer() {
+        Integer port = Integer.getInteger("synth.metrics.port");
+        if (port == null) {
+            return;
+        }
+        try {
+            metricsServer = new MetricsServer(engine.metrics().registry(), port);
+        } catch (IOException e) {
+            // Telemetry is optional; play on without it
+            engine.metrics().recordError("metrics", e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts a key, unless it is already sounding. Also sent to the MIDI
+     * output and the recording, if any; never blocks.
+     *
+     * @param note MIDI note number, 0..127
+     * @param velocity 1..127
+     * @return Whether the note started
+     */
+    boolean noteOn(int note, int velocity) {
+        if (activeNotes[note] != 0) {
+            return false;
+        }
+        activeNotes[note] = engine.playNote(note, MidiInput.velocityGain(velocity));
+        midiOut.noteOn(note, velocity);
+        record(note, velocity);
+        return true;
+    }
+
+    /**
+     * Releases a key if it is sounding; it fades out over the envelope's
+     * release stage.
+     *
+     * @param note MIDI note number, 0..127
+     */
+    void noteOff(int note) {
+        if (activeNotes[note] != 0) {
+            engine.noteOff(activeNotes[note]);
+            activeNotes[note] = 0;
+            midiOut.noteOff(note);
+            record(note, 0);
+        }
+    }
+
+    /**
+     * Releases every sounding key.
+     */
+    void allNotesOff() {
+        for (int note = 0; note < activeNotes.length; note++) {
+            noteOff(note);
+        }
+    }
+
+    boolean isSounding(int note) {
+        return activeNotes[note] != 0;
+    }
+
+    /**
+     * @return Keys pressed and not yet released
+     */
+    int activeNoteCount() {
+        int count = 0;
+        for (int id : activeNotes) {
+            if (id != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The tuning keys are played in
+     */
+    NoteTable noteTable() {
+        return engine.noteTable();
+    }
+
+    /**
+     * @return The engine, for settings this class does not cover
+     */
+    AudioEngine engine() {
+        return engine;
+    }
+
+    /**
+     * Pulls the next {@code frames} frames of a headless synthesizer; see
+     * {@link AudioEngine#render(byte[], int)}.
+     */
+    void render(byte[] out, int frames) {
+        engine.render(out, frames);
+    }
+
+    /**
+     * @param velocity Note-on velocity, or 0 for a note-off
+     */
+    private void record(int note, int velocity) {
+        if (recorder == null) {
+            return;
+        }
+        try {
+            if (velocity > 0) {
+                recorder.noteOn(note, velocity);
+            } else {
+                recorder.noteOff(note);
+            }
+        } catch (IOException e) {
+            // Keep playing; only the recording is lost
+            engine.metrics().recordError("recording", e);
+            e.printStackTrace();
+            stopRecording();
+        }
+    }
+
+    private void stopRecording() {
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                engine.metrics().recordError("recording", e);
+                e.printStackTrace();
+            }
+            recorder = null;
+        }
+    }
+
+    /**
+     * Finishes the recording, stops the metrics server, disconnects MIDI
+     * devices and shuts down the engine.
+     */
+    @Override
+    public void close() {
+        stopRecording();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        midiOut.close();
+        if (midiIn != null) {
+            midiIn.close();
+        }
+        engine.close();
+    }
+}
@@ -0,0 +1,442 @@
+package com.synthwave.piano;
+
+import javax.sound.midi.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+// PerformanceRecorder.java
+/**
+ * Logs note-on and note-off events, stamped with {@code System.nanoTime()},
+ * to a compact binary file.
+ *
+ * <p>The file starts with the magic number {@link #MAGIC} and a version
+ * byte. Each event follows as the nanoseconds since the previous event in
+ * unsigned LEB128, one byte holding the note number with the top bit set
+ * for a note-on, and for note-ons one velocity byte: usually five to six
+ * bytes per event. Events are collected in a 64 KiB direct buffer and
+ * written through a {@link FileChannel} when it fills and on close, so
+ * recording only touches the disk every few thousand events.</p>
+ *
+ * <p>Not thread-safe; record from one thread, such as the JavaFX
+ * application thread.</p>
+ */
+final class PerformanceRecorder implements AutoCloseable {
+    /** "SWPR" */
+    static final int MAGIC = 0x53575052;
+    static final int VERSION = 1;
+
+    /** Longest encoding of one event: ten varint bytes, status and velocity */
+    private static final int MAX_EVENT_BYTES = 12;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    private final long origin;
+    private long last;
+    private int events;
+
+    /**
+     * Creates or truncates {@code file} and starts the clock now.
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    PerformanceRecorder(Path file) throws IOException {
+        this(file, System.nanoTime());
+    }
+
+    /**
+     * @param file Destination, created or truncated
+     * @param origin {@code System.nanoTime()} that maps to time zero
+     * @throws IOException if the file cannot be opened
+     */
+    PerformanceRecorder(Path file, long origin) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        this.origin = origin;
+        buffer.putInt(MAGIC).put((byte) VERSION);
+    }
+
+    void noteOn(int note, int velocity) throws IOException {
+        noteOn(System.nanoTime(), note, velocity);
+    }
+
+    void noteOff(int note) throws IOException {
+        noteOff(System.nanoTime(), note);
+    }
+
+    /**
+     * @param time {@code System.nanoTime()} of the event; earlier than the
+     *        previous event counts as simultaneous with it
+     * @param note MIDI note number, 0..127
+     * @param velocity 1..127
+     */
+    void noteOn(long time, int note, int velocity) throws IOException {
+        if (velocity < 1 || velocity > 127) {
+            throw new IllegalArgumentException("Velocity must be 1..127: " + velocity);
+        }
+        put(time, note, true);
+        buffer.put((byte) velocity);
+    }
+
+    void noteOff(long time, int note) throws IOException {
+        put(time, note, false);
+    }
+
+    private void put(long time, int note, boolean on) throws IOException {
+        if (note < 0 || note >= NoteTable.NOTES) {
+            throw new IllegalArgumentException("Note must be 0..127: " + note);
+        }
+        if (buffer.remaining() < MAX_EVENT_BYTES) {
+            flush();
+        }
+        long at = Math.max(last, time - origin);
+        long delta = at - last;
+        last = at;
+        while ((delta & ~0x7FL) != 0) {
+            buffer.put((byte) (delta & 0x7F | 0x80));
+            delta >>>= 7;
+        }
+        buffer.put((byte) delta);
+        buffer.put((byte) (on ? note | 0x80 : note));
+        events++;
+    }
+
+    /**
+     * @return Events recorded so far
+     */
+    int events() {
+        return events;
+    }
+
+    /**
+     * Writes buffered events to the file.
+     *
+     * @throws IOException if writing fails
+     */
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
+
+// Performance.java
+/**
+ * A recorded performance loaded into memory, ready to be replayed live,
+ * rendered offline or exported as a Standard MIDI File.
+ *
+ * <p>Times are nanoseconds from the start of the recording. They are
+ * turned into sample frames only when replaying, with
+ * {@link #frameAt(long, int)}, so the same recording renders with the same
+ * sample timing at any rate the live engine or the offline renderer
+ * runs at.</p>
+ */
+final class Performance {
+    /** MIDI file resolution; at 120 bpm one tick is about 0.52 ms */
+    static final int TICKS_PER_QUARTER = 960;
+    private static final int MICROS_PER_QUARTER = 500_000;
+
+    private final long[] times;
+    private final byte[] notes;
+    /** Note-on velocity, or 0 for a note-off */
+    private final byte[] velocities;
+
+    private Performance(long[] times, byte[] notes, byte[] velocities) {
+        this.times = times;
+        this.notes = notes;
+        this.velocities = velocities;
+    }
+
+    /**
+     * Loads a file written by {@link PerformanceRecorder}, reading it
+     * through a memory mapping.
+     *
+     * @throws IOException if the file cannot be read, is not a recording
+     *         or is truncated
+     */
+    static Performance read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.remaining() < 5 || data.getInt() != PerformanceRecorder.MAGIC) {
+                throw new IOException("Not a performance recording: " + file);
+            }
+            int version = data.get();
+            if (version != PerformanceRecorder.VERSION) {
+                throw new IOException("Unsupported recording version " + version + ": " + file);
+            }
+            // Every event takes at least two bytes
+            int capacity = data.remaining() / 2;
+            long[] times = new long[capacity];
+            byte[] notes = new byte[capacity];
+            byte[] velocities = new byte[capacity];
+            int size = 0;
+            long time = 0;
+            try {
+                while (data.hasRemaining()) {
+                    long delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = data.get();
+                        delta |= (long) (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    time += delta;
+                    int status = data.get() & 0xFF;
+                    times[size] = time;
+                    notes[size] = (byte) (status & 0x7F);
+                    velocities[size] = (status & 0x80) != 0 ? data.get() : 0;
+                    size++;
+                }
+            } catch (java.nio.BufferUnderflowException e) {
+                throw new IOException("Truncated recording: " + file);
+            }
+            return new Performance(Arrays.copyOf(times, size), Arrays.copyOf(notes, size),
+                Arrays.copyOf(velocities, size));
+        }
+    }
+
+    int size() {
+        return times.length;
+    }
+
+    /**
+     * @return Nanoseconds from the start of the recording to event {@code i}
+     */
+    long time(int i) {
+        return times[i];
+    }
+
+    int note(int i) {
+        return notes[i];
+    }
+
+    /**
+     * @return Note-on velocity 1..127, or 0 for a note-off
+     */
+    int velocity(int i) {
+        return velocities[i];
+    }
+
+    boolean isNoteOn(int i) {
+        return velocities[i] != 0;
+    }
+
+    /**
+     * @return Time of the last event, or 0 for an empty recording
+     */
+    long durationNanos() {
+        return times.length == 0 ? 0 : times[times.length - 1];
+    }
+
+    /**
+     * The sample frame a recorded time falls on: the frame that is
+     * playing at that instant, as in the live engine.
+     *
+     * @param nanos Nanoseconds from the start
+     * @param sampleRate Frames per second
+     */
+    static long frameAt(long nanos, int sampleRate) {
+        // Split into whole seconds so long recordings cannot overflow
+        return nanos / 1_000_000_000L * sampleRate + nanos % 1_000_000_000L * sampleRate / 1_000_000_000L;
+    }
+
+    /**
+     * Converts the recording for the {@link OfflineRenderer}.
+     *
+     * @param tuning Pitch of each note
+     * @param sampleRate Rate the events will be rendered at
+     * @return Note events with frames at {@code sampleRate}, in order
+     */
+    List<NoteEvent> toNoteEvents(NoteTable tuning, int sampleRate) {
+        List<NoteEvent> events = new ArrayList<>(times.length);
+        int[] playing = new int[NoteTable.NOTES];
+        int nextId = 1;
+        for (int i = 0; i < times.length; i++) {
+            long frame = frameAt(times[i], sampleRate);
+            int note = notes[i];
+            if (playing[note] != 0) {
+                events.add(NoteEvent.noteOff(frame, playing[note]));
+                playing[note] = 0;
+            }
+            if (isNoteOn(i)) {
+                playing[note] = nextId++;
+                events.add(NoteEvent.noteOn(frame, playing[note], tuning.frequency(note),
+                    MidiInput.velocityGain(velocities[i])));
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Converts the recording to a one-track MIDI sequence on channel 0 at
+     * 120 bpm and {@link #TICKS_PER_QUARTER} ticks per quarter note.
+     */
+    Sequence toSequence() throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, TICKS_PER_QUARTER);
+        Track track = sequence.createTrack();
+        byte[] tempo = {(byte) (MICROS_PER_QUARTER >> 16), (byte) (MICROS_PER_QUARTER >> 8), (byte) MICROS_PER_QUARTER};
+        track.add(new MidiEvent(new MetaMessage(0x51, tempo, tempo.length), 0));
+        for (int i = 0; i < times.length; i++) {
+            ShortMessage message = isNoteOn(i)
+                ? new ShortMessage(ShortMessage.NOTE_ON, 0, notes[i], velocities[i])
+                : new ShortMessage(ShortMessage.NOTE_OFF, 0, notes[i], 0);
+            track.add(new MidiEvent(message, tickAt(times[i])));
+        }
+        return sequence;
+    }
+
+    static long tickAt(long nanos) {
+        return Math.round(nanos / 1000.0 * TICKS_PER_QUARTER / MICROS_PER_QUARTER);
+    }
+
+    /**
+     * Writes the recording as a type 0 Standard MIDI File.
+     *
+     * @throws IOException if writing fails
+     */
+    void writeMidi(Path file) throws IOException {
+        try {
+            MidiSystem.write(toSequence(), 0, file.toFile());
+        } catch (InvalidMidiDataException e) {
+            throw new IOException("Cannot convert recording to MIDI: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Renders a recording to WAV, or exports it to MIDI when the output
+     * name ends in {@code .mid}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: Performance <recording> <output.wav|output.mid> [sampleRate] [a4Hz]");
+            return;
+        }
+        Performance performance = read(Path.of(args[0]));
+        Path out = Path.of(args[1]);
+        if (args[1].endsWith(".mid")) {
+            performance.writeMidi(out);
+            return;
+        }
+        int sampleRate = args.length > 2 ? Integer.parseInt(args[2]) : AudioConfig.SAMPLE_RATE;
+        double a4 = args.length > 3 ? Double.parseDouble(args[3]) : AudioConfig.A4_FREQUENCY;
+        NoteTable tuning = new NoteTable(a4, Temperament.EQUAL, sampleRate);
+        OfflineRenderer renderer = new OfflineRenderer(AudioConfig.MAX_POLYPHONY, sampleRate,
+            Envelope.DEFAULT.releaseFrames(sampleRate));
+        renderer.setMixerSetup(mixer -> mixer.setNoteTable(tuning));
+        renderer.renderWav(performance.toNoteEvents(tuning, sampleRate), out);
+    }
+}
+
+// PerformancePlayer.java
+/**
+ * Replays a {@link Performance} into the live engine.
+ *
+ * <p>A background thread posts each event {@link #LEAD_NANOS} ahead of its
+ * time, stamped with the exact time it should sound. The render thread
+ * holds it until the block that covers that time and starts it at the
+ * matching offset, so the replay keeps the recording's sample timing
+ * regardless of when the thread happened to wake up. Pitches come from
+ * the engine's current {@link NoteTable}.</p>
+ */
+final class PerformancePlayer implements AutoCloseable {
+    /** Must exceed the longest block, or events would miss their window */
+    static final long LEAD_NANOS = 50_000_000L;
+
+    private final NoteInput input;
+    private final Performance performance;
+    private final Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param input Engine input used only by this player's thread from now on
+     * @param performance Events to replay
+     */
+    PerformancePlayer(NoteInput input, Performance performance) {
+        this.input = input;
+        this.performance = performance;
+        this.thread = new Thread(this::play, "performance-replay");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the replay; the first event sounds {@link #LEAD_NANOS} from now
+     * plus its recorded time.
+     */
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Waits for the last event to be posted.
+     *
+     * @return Whether the replay finished within the timeout
+     */
+    boolean await(long timeoutMillis) throws InterruptedException {
+        thread.join(timeoutMillis);
+        return !thread.isAlive();
+    }
+
+    private void play() {
+        int[] playing = new int[NoteTable.NOTES];
+        long origin = System.nanoTime() + LEAD_NANOS;
+        long last = origin;
+        for (int i = 0; i < performance.size() && running; i++) {
+            long at = origin + performance.time(i);
+            long wait;
+            while (running && (wait = at - LEAD_NANOS - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int note = performance.note(i);
+            if (playing[note] != 0) {
+                input.noteOffAt(at, playing[note]);
+                playing[note] = 0;
+            }
+            if (performance.isNoteOn(i)) {
+                playing[note] = input.playNoteAt(at, note, MidiInput.velocityGain(performance.velocity(i)));
+            }
+            last = at;
+        }
+        // Stopped early: release what is still sounding straight after the last event posted
+        for (int note = 0; note < playing.length; note++) {
+            if (playing[note] != 0) {
+                input.noteOffAt(last, playing[note]);
+            }
+        }
+    }
+
+    /**
+     * Stops the replay, releasing any notes it left sounding, and gives
+     * the engine input back once those releases have played.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        input.close();
+    }
+}
@@ -0,0 +1,526 @@
+package com.synthwave.piano;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// NoteScript.java
+/**
+ * A fixed sequence of note events and the mixer settings to play it with,
+ * used as a regression case by {@link AudioRegression}.
+ *
+ * <p>Events are timed by sample frame, so a script renders to the same
+ * samples on every run and every machine, with no device and no clock
+ * involved.</p>
+ */
+final class NoteScript {
+    /** Rate every script is rendered at */
+    static final int SAMPLE_RATE = AudioConfig.SAMPLE_RATE;
+
+    final String name;
+    final int polyphony;
+    final long frames;
+    final List<NoteEvent> events;
+    private final Consumer<VoiceMixer> setup;
+
+    /**
+     * @param name Key of the script in the golden and baseline files
+     * @param polyphony Voices to mix with
+     * @param frames Length to render
+     * @param events Note events; need not be sorted
+     * @param setup Configures a new mixer before the first event
+     */
+    NoteScript(String name, int polyphony, long frames, List<NoteEvent> events, Consumer<VoiceMixer> setup) {
+        this.name = name;
+        this.polyphony = polyphony;
+        this.frames = frames;
+        this.events = Collections.unmodifiableList(OfflineRenderer.sorted(events));
+        this.setup = setup;
+    }
+
+    /**
+     * @return A mixer configured for this script, with no note sounding
+     */
+    VoiceMixer newMixer() {
+        VoiceMixer mixer = new VoiceMixer(polyphony, SAMPLE_RATE);
+        setup.accept(mixer);
+        return mixer;
+    }
+
+    /**
+     * The scripts the regression tests render. They cover the waveforms,
+     * envelopes, velocity and pan, voice stealing, the effects chain,
+     * unison stacks, the sampler and the note cache, and together run for
+     * about 20 seconds of audio.
+     *
+     * @param scratch Directory for the sampler's generated bank
+     * @throws IOException if the bank cannot be written
+     */
+    static List<NoteScript> standard(Path scratch) throws IOException {
+        List<NoteScript> scripts = new ArrayList<>();
+        NoteTable tuning = NoteTable.DEFAULT;
+
+        List<NoteEvent> scale = new ArrayList<>();
+        int[] major = {60, 62, 64, 65, 67, 69, 71, 72};
+        for (int i = 0; i < major.length; i++) {
+            long start = i * seconds(0.25);
+            scale.add(NoteEvent.noteOn(start, i + 1, tuning.frequency(major[i])));
+            scale.add(NoteEvent.noteOff(start + seconds(0.2), i + 1));
+        }
+        scripts.add(new NoteScript("scale", 4, seconds(2.5), scale, mixer -> { }));
+
+        List<NoteEvent> chord = new ArrayList<>();
+        int[] minorSeventh = {57, 60, 64, 67};
+        for (int i = 0; i < minorSeventh.length; i++) {
+            chord.add(NoteEvent.noteOn(i * seconds(0.01), i + 1, tuning.frequency(minorSeventh[i])));
+            chord.add(NoteEvent.noteOff(seconds(1), i + 1));
+        }
+        for (Waveform shape : new Waveform[] {Waveform.SAW, Waveform.SQUARE, Waveform.TRIANGLE}) {
+            scripts.add(new NoteScript("chord_" + shape.name().toLowerCase(), 8, seconds(1.5), chord,
+                mixer -> mixer.setWaveform(shape)));
+        }
+
+        List<NoteEvent> dynamics = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            long start = i * seconds(0.15);
+            float pan = -1 + i * 0.4f;
+            dynamics.add(NoteEvent.noteOn(start, i + 1, tuning.frequency(48 + 7 * i), (i + 1) / 6f, pan));
+            dynamics.add(NoteEvent.noteOff(start + seconds(0.5), i + 1));
+        }
+        scripts.add(new NoteScript("velocity_pan", 8, seconds(1.5), dynamics,
+            mixer -> mixer.setEnvelope(new Envelope(0.02, 0.2, 0.5f, 0.3))));
+
+        // The keyboard's rapid-repeat pattern: one key struck 100 times
+        List<NoteEvent> repeat = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            long start = i * seconds(0.02);
+            repeat.add(NoteEvent.noteOn(start, i + 1, tuning.frequency(60)));
+            repeat.add(NoteEvent.noteOff(start + seconds(0.01), i + 1));
+        }
+        scripts.add(new NoteScript("rapid_repeat", AudioConfig.MAX_POLYPHONY, seconds(2.5), repeat,
+            mixer -> mixer.setStealPolicy(StealPolicy.OLDEST)));
+        scripts.add(new NoteScript("rapid_repeat_cached", AudioConfig.MAX_POLYPHONY, seconds(2.5), repeat,
+            mixer -> {
+                mixer.setStealPolicy(StealPolicy.OLDEST);
+                mixer.setNoteCache(NoteCache.forRate(1 << 20, SAMPLE_RATE));
+            }));
+
+        List<NoteEvent> crowd = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            crowd.add(NoteEvent.noteOn(i * seconds(0.05), i + 1, tuning.frequency(40 + 3 * i)));
+        }
+        for (StealPolicy policy : new StealPolicy[] {StealPolicy.OLDEST, StealPolicy.QUIETEST}) {
+            scripts.add(new NoteScript("steal_" + policy.name().toLowerCase(), 4, seconds(1), crowd,
+                mixer -> mixer.setStealPolicy(policy)));
+        }
+
+        scripts.add(new NoteScript("effects", 8, seconds(2.5), chord, mixer -> {
+            FilterEffect filter = new FilterEffect(SAMPLE_RATE);
+            filter.setCutoff(6000);
+            filter.setResonance(0.3);
+            mixer.setWaveform(Waveform.SAW);
+            mixer.effects().set(filter, new ChorusEffect(SAMPLE_RATE), new DelayEffect(SAMPLE_RATE),
+                new ReverbEffect(SAMPLE_RATE));
+        }));
+
+        scripts.add(new NoteScript("unison_supersaw", 8, seconds(1.5), chord, mixer -> {
+            mixer.setWaveform(Waveform.SAW);
+            mixer.setUnison(new Unison(7, AudioConfig.UNISON_DETUNE_CENTS, AudioConfig.UNISON_WIDTH));
+        }));
+
+        SampleBank bank = SampleBank.open(writeBank(scratch.resolve("regression.swsb")));
+        scripts.add(new NoteScript("sampler", 8, seconds(2), dynamics, mixer -> mixer.setInstrument(bank)));
+        return scripts;
+    }
+
+    private static long seconds(double s) {
+        return Math.round(s * SAMPLE_RATE);
+    }
+
+    /**
+     * Two velocity layers of a generated decaying tone, so the sampler
+     * script needs no recording checked in.
+     */
+    private static Path writeBank(Path file) throws IOException {
+        SampleBankWriter writer = new SampleBankWriter();
+        for (int layer = 0; layer < 2; layer++) {
+            short[] pcm = new short[SAMPLE_RATE / 2];
+            double hz = NoteTable.DEFAULT.frequency(60);
+            for (int i = 0; i < pcm.length; i++) {
+                double t = (double) i / SAMPLE_RATE;
+                double tone = StrictMath.sin(2 * Math.PI * hz * t) + (layer + 1) * 0.3 * StrictMath.sin(4 * Math.PI * hz * t);
+                pcm[i] = (short) (12000 * StrictMath.exp(-3 * t) * tone);
+            }
+            writer.add(pcm, SAMPLE_RATE, 60, 0, 127, layer == 0 ? 1 : 64, layer == 0 ? 63 : 127,
+                SAMPLE_RATE / 4, SAMPLE_RATE / 2);
+        }
+        writer.write(file);
+        return file;
+    }
+}
+
+// SpectralFingerprint.java
+/**
+ * Coarse long-term spectrum of a rendering: the level of each of
+ * {@link #BANDS} log-spaced frequency bands relative to the total, plus
+ * the overall RMS level.
+ *
+ * <p>Unlike a checksum it tolerates changes too small to hear, such as a
+ * last-bit difference in a wavetable from another JVM's {@code Math.sin},
+ * while still catching a wrong pitch, a missing harmonic or a level
+ * change.</p>
+ */
+final class SpectralFingerprint {
+    static final int BANDS = 24;
+    private static final int FFT_SIZE = 2048;
+    private static final double LOW_HZ = 50;
+    private static final double HIGH_HZ = 16000;
+
+    /** Level given to bands with no energy, in dB */
+    private static final double FLOOR_DB = -90;
+
+    /** Band levels in dB relative to the total power */
+    final double[] bands;
+
+    /** RMS of the signal in dB full scale */
+    final double rms;
+
+    SpectralFingerprint(double[] bands, double rms) {
+        this.bands = bands;
+        this.rms = rms;
+    }
+
+    /**
+     * @param mono Samples in -1..1
+     * @param sampleRate Rate of {@code mono}
+     */
+    static SpectralFingerprint of(float[] mono, int sampleRate) {
+        double[] power = new double[BANDS];
+        double[] re = new double[FFT_SIZE];
+        double[] im = new double[FFT_SIZE];
+        for (int start = 0; start + FFT_SIZE <= mono.length; start += FFT_SIZE) {
+            for (int i = 0; i < FFT_SIZE; i++) {
+                double hann = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / FFT_SIZE);
+                re[i] = mono[start + i] * hann;
+                im[i] = 0;
+            }
+            fft(re, im);
+            for (int bin = 1; bin < FFT_SIZE / 2; bin++) {
+                int band = band(bin * (double) sampleRate / FFT_SIZE);
+                if (band >= 0) {
+                    power[band] += re[bin] * re[bin] + im[bin] * im[bin];
+                }
+            }
+        }
+        double total = 0;
+        for (double p : power) {
+            total += p;
+        }
+        double[] bands = new double[BANDS];
+        for (int b = 0; b < BANDS; b++) {
+            bands[b] = total == 0 || power[b] == 0 ? FLOOR_DB
+                : Math.max(FLOOR_DB, 10 * Math.log10(power[b] / total));
+        }
+        double sum = 0;
+        for (float s : mono) {
+            sum += s * s;
+        }
+        double rms = sum == 0 ? FLOOR_DB : Math.max(FLOOR_DB, 10 * Math.log10(sum / mono.length));
+        return new SpectralFingerprint(bands, rms);
+    }
+
+    private static int band(double hz) {
+        if (hz < LOW_HZ || hz >= HIGH_HZ) {
+            return -1;
+        }
+        return (int) (BANDS * Math.log(hz / LOW_HZ) / Math.log(HIGH_HZ / LOW_HZ));
+    }
+
+    /** In-place iterative radix-2 FFT */
+    private static void fft(double[] re, double[] im) {
+        int n = re.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j |= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = -2 * Math.PI / length;
+            for (int i = 0; i < n; i += length) {
+                for (int k = 0; k < length / 2; k++) {
+                    double wr = Math.cos(angle * k);
+                    double wi = Math.sin(angle * k);
+                    int a = i + k;
+                    int b = a + length / 2;
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The largest difference, in dB, between any band or the RMS
+     *         level of the two fingerprints
+     */
+    double distance(SpectralFingerprint other) {
+        double worst = Math.abs(rms - other.rms);
+        for (int b = 0; b < BANDS; b++) {
+            worst = Math.max(worst, Math.abs(bands[b] - other.bands[b]));
+        }
+        return worst;
+    }
+
+    /**
+     * @return The RMS level and band levels, comma-separated, to 0.1 dB
+     */
+    String encode() {
+        StringBuilder text = new StringBuilder(String.format(java.util.Locale.ROOT, "%.1f", rms));
+        for (double band : bands) {
+            text.append(',').append(String.format(java.util.Locale.ROOT, "%.1f", band));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Inverse of {@link #encode()}.
+     *
+     * @throws IllegalArgumentException if {@code text} has the wrong
+     *         number of values
+     */
+    static SpectralFingerprint decode(String text) {
+        String[] values = text.split(",");
+        if (values.length != BANDS + 1) {
+            throw new IllegalArgumentException("Expected " + (BANDS + 1) + " values: " + text);
+        }
+        double[] bands = new double[BANDS];
+        for (int b = 0; b < BANDS; b++) {
+            bands[b] = Double.parseDouble(values[b + 1]);
+        }
+        return new SpectralFingerprint(bands, Double.parseDouble(values[0]));
+    }
+}
+
+// AudioRegression.java
+/**
+ * Renders {@link NoteScript}s into memory and checks them against stored
+ * results: a CRC-32 and a {@link SpectralFingerprint} of each output in
+ * the golden file, and render time and allocation per frame in the
+ * baseline file.
+ *
+ * <p>Rendering drives a {@link VoiceMixer} the way {@link OfflineRenderer}
+ * does, splitting blocks at event frames so each event lands on its exact
+ * sample, and encodes the stereo bus as 16-bit little-endian PCM. Nothing
+ * depends on an audio device or on the wall clock, except the timing
+ * figures, which are only compared against the baselines.</p>
+ *
+ * <p>Both files hold one {@code key=value} line per figure, sorted, so a
+ * change shows up as a readable diff. When a change to the sound is
+ * intended, regenerate the golden file with
+ * {@code java com.synthwave.piano.AudioRegression golden}; regenerate the
+ * baselines on the machine that runs the gate with
+ * {@code java com.synthwave.piano.AudioRegression baselines}.
+ * Render times only mean something on that machine, so the time gate
+ * runs only when {@code -Dsynth.perf.gate=true}; the allocation gate,
+ * which does not depend on the machine, always runs.</p>
+ */
+final class AudioRegression {
+    /** Stereo, so panning is covered; 16-bit, so the checksum ignores float noise below audibility */
+    static final OutputFormat FORMAT = new OutputFormat(NoteScript.SAMPLE_RATE, 2, SampleEncoding.PCM_16, false);
+
+    static final Path GOLDEN_FILE = Path.of(System.getProperty("synth.golden", "24_golden_audio.txt"));
+    static final Path BASELINE_FILE = Path.of(System.getProperty("synth.baselines", "24_perf_baselines.txt"));
+
+    /** Largest band or level difference, in dB, still counted as the same sound */
+    static final double SPECTRUM_TOLERANCE_DB = 1.0;
+
+    /** How much slower than its baseline a script may render before the gate fails */
+    static final double TIME_TOLERANCE = Double.parseDouble(System.getProperty("synth.perf.tolerance", "1.0"));
+
+    /** Bytes per frame a script may allocate above its baseline */
+    static final double ALLOCATION_TOLERANCE = 0.01;
+
+    /** Timed renders per script for {@link #nanosPerFrame}, after three times as many untimed ones */
+    static final int TIMED_RUNS = 10;
+
+    private static final int BLOCK_FRAMES = AudioConfig.BLOCK_FRAMES;
+
+    private AudioRegression() {
+    }
+
+    /**
+     * Renders a script from silence.
+     *
+     * @return The whole output, {@code FORMAT.frameBytes()} per frame
+     */
+    static byte[] render(NoteScript script) {
+        byte[] out = new byte[(int) (script.frames * FORMAT.frameBytes())];
+        render(script, script.newMixer(), FORMAT.encoder(), out);
+        return out;
+    }
+
+    private static void render(NoteScript script, VoiceMixer mixer, FrameEncoder encoder, byte[] out) {
+        List<NoteEvent> events = script.events;
+        int next = 0;
+        long frame = 0;
+        while (frame < script.frames) {
+            while (next < events.size() && events.get(next).frame <= frame) {
+                mixer.apply(events.get(next++));
+            }
+            long until = Math.min(script.frames, frame + BLOCK_FRAMES);
+            if (next < events.size()) {
+                until = Math.min(until, events.get(next).frame);
+            }
+            mixer.render(out, (int) frame * FORMAT.frameBytes(), (int) (until - frame), encoder);
+            frame = until;
+        }
+    }
+
+    static long checksum(byte[] pcm) {
+        CRC32 crc = new CRC32();
+        crc.update(pcm);
+        return crc.getValue();
+    }
+
+    /**
+     * @param pcm Output of {@link #render(NoteScript)}
+     */
+    static SpectralFingerprint fingerprint(byte[] pcm) {
+        float[] mono = new float[pcm.length / FORMAT.frameBytes()];
+        for (int i = 0; i < mono.length; i++) {
+            int at = i * 4;
+            short left = (short) (pcm[at] & 0xFF | pcm[at + 1] << 8);
+            short right = (short) (pcm[at + 2] & 0xFF | pcm[at + 3] << 8);
+            mono[i] = (left + right) / (2f * Short.MAX_VALUE);
+        }
+        return SpectralFingerprint.of(mono, FORMAT.sampleRate);
+    }
+
+    /**
+     * Render time per output frame, the best of {@code runs} renders after
+     * three times as many warm-up renders, so that JIT compilation and
+     * one-off pauses do not count.
+     */
+    static double nanosPerFrame(NoteScript script, int runs) {
+        byte[] out = new byte[(int) (script.frames * FORMAT.frameBytes())];
+        FrameEncoder encoder = FORMAT.encoder();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 4 * runs; i++) {
+            VoiceMixer mixer = script.newMixer();
+            long start = System.nanoTime();
+            render(script, mixer, encoder, out);
+            long elapsed = System.nanoTime() - start;
+            if (i >= 3 * runs) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return (double) best / script.frames;
+    }
+
+    /**
+     * Heap bytes the render thread allocates per output frame once warmed
+     * up, not counting the mixer's own construction.
+     */
+    static double bytesPerFrame(NoteScript script) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        byte[] out = new byte[(int) (script.frames * FORMAT.frameBytes())];
+        FrameEncoder encoder = FORMAT.encoder();
+        for (int i = 0; i < 3; i++) {
+            render(script, script.newMixer(), encoder, out);
+        }
+        VoiceMixer mixer = script.newMixer();
+        long before = threads.getThreadAllocatedBytes(thread);
+        render(script, mixer, encoder, out);
+        return (double) (threads.getThreadAllocatedBytes(thread) - before) / script.frames;
+    }
+
+    /**
+     * Reads a golden or baseline file.
+     *
+     * @return Its entries, or none if the file does not exist
+     */
+    static Map<String, String> load(Path file) throws IOException {
+        Map<String, String> values = new TreeMap<>();
+        if (!Files.exists(file)) {
+            return values;
+        }
+        for (String line : Files.readAllLines(file)) {
+            int equals = line.indexOf('=');
+            if (!line.isBlank() && !line.startsWith("#") && equals > 0) {
+                values.put(line.substring(0, equals).trim(), line.substring(equals + 1).trim());
+            }
+        }
+        return values;
+    }
+
+    static void store(Path file, String comment, Map<String, String> values) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# " + comment);
+        for (Map.Entry<String, String> entry : new TreeMap<>(values).entrySet()) {
+            lines.add(entry.getKey() + "=" + entry.getValue());
+        }
+        Files.write(file, lines);
+    }
+
+    /**
+     * Regenerates the golden file ({@code golden}) or the baseline file
+     * ({@code baselines}) from the current code, or prints both sets of
+     * figures (no argument).
+     */
+    public static void main(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : "print";
+        Path scratch = Files.createTempDirectory("regression");
+        Map<String, String> golden = new TreeMap<>();
+        Map<String, String> baselines = new TreeMap<>();
+        for (NoteScript script : NoteScript.standard(scratch)) {
+            byte[] pcm = render(script);
+            golden.put(script.name + ".crc32", Long.toHexString(checksum(pcm)));
+            golden.put(script.name + ".spectrum", fingerprint(pcm).encode());
+            if (!mode.equals("golden")) {
+                baselines.put(script.name + ".ns_per_frame",
+                    String.format(java.util.Locale.ROOT, "%.2f", nanosPerFrame(script, TIMED_RUNS)));
+                baselines.put(script.name + ".bytes_per_frame",
+                    String.format(java.util.Locale.ROOT, "%.3f", bytesPerFrame(script)));
+            }
+        }
+        switch (mode) {
+            case "golden":
+                store(GOLDEN_FILE, "Expected output of each NoteScript: CRC-32 of the 16-bit stereo PCM and "
+                    + "RMS,band levels in dB. Regenerate with: java com.synthwave.piano.AudioRegression golden",
+                    golden);
+                break;
+            case "baselines":
+                store(BASELINE_FILE, "Render time and allocation per frame of each NoteScript on the gating "
+                    + "machine. Regenerate with: java com.synthwave.piano.AudioRegression baselines",
+                    baselines);
+                break;
+            default:
+                golden.forEach((key, value) -> System.out.println(key + "=" + value));
+                baselines.forEach((key, value) -> System.out.println(key + "=" + value));
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.synthwave.piano;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// SampleBank.java
+/**
+ * A multisampled instrument read straight from a memory-mapped file.
+ *
+ * <p>The file starts with the magic number {@link #MAGIC}, a version byte
+ * and the zone count, followed by one {@link #ZONE_BYTES}-byte header per
+ * zone and then the sample data: 16-bit little-endian mono PCM, as in a
+ * WAV file. Header fields are big-endian. {@link SampleBankWriter} writes
+ * this format.</p>
+ *
+ * <p>Each zone's data is mapped read-only on its own with
+ * {@link FileChannel#map}, and the channel is closed straight after. The
+ * heap only holds the zone headers, so a bank of several gigabytes costs
+ * the same heap as a small one; the OS pages sample data in as voices
+ * reach it and can drop it again under memory pressure. Every voice
+ * playing a zone reads the same mapping, so they share its pages, and so
+ * do other engines or processes that open the same file.</p>
+ *
+ * <p>Immutable once opened and safe to share between engines and render
+ * threads.</p>
+ */
+final class SampleBank {
+    /** "SWSB" */
+    static final int MAGIC = 0x53575342;
+    static final int VERSION = 1;
+
+    /** Bytes before the first zone header: magic, version and zone count */
+    static final int HEADER_BYTES = 9;
+
+    /** Bytes per zone header */
+    static final int ZONE_BYTES = 32;
+
+    private final List<SampleZone> zones;
+
+    /** Zones to pick from for each MIDI note, by ascending velocity range */
+    private final SampleZone[][] byNote = new SampleZone[NoteTable.NOTES][];
+
+    private SampleBank(List<SampleZone> zones) {
+        this.zones = List.copyOf(zones);
+        for (int note = 0; note < NoteTable.NOTES; note++) {
+            byNote[note] = nearestZones(note);
+        }
+    }
+
+    /**
+     * Maps a bank file written by {@link SampleBankWriter}.
+     *
+     * @throws IOException if the file cannot be read, is not a sample bank
+     *         or a zone points outside it
+     */
+    static SampleBank open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a sample bank: " + file);
+            }
+            int version = header.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported sample bank version " + version + ": " + file);
+            }
+            int count = header.getInt();
+            if (count < 1 || HEADER_BYTES + (long) count * ZONE_BYTES > size) {
+                throw new IOException("Truncated sample bank: " + file);
+            }
+            ByteBuffer table = ByteBuffer.allocate(count * ZONE_BYTES);
+            readFully(channel, table, HEADER_BYTES);
+            List<SampleZone> zones = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int lowNote = table.get();
+                int highNote = table.get();
+                int rootNote = table.get();
+                int lowVelocity = table.get();
+                int highVelocity = table.get();
+                table.position(table.position() + 3);
+                int sampleRate = table.getInt();
+                long offset = table.getLong();
+                int frames = table.getInt();
+                int loopStart = table.getInt();
+                int loopEnd = table.getInt();
+                if (frames < 2 || offset < 0 || offset + frames * 2L > size) {
+                    throw new IOException("Zone " + i + " lies outside the sample bank: " + file);
+                }
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset, frames * 2L);
+                zones.add(new SampleZone(data, lowNote, highNote, rootNote, lowVelocity, highVelocity,
+                    sampleRate, loopStart, loopEnd));
+            }
+            return new SampleBank(zones);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid sample bank " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated sample bank");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Zones covering {@code note}, or if none does, the zones of the
+     * nearest covered note, so every key sounds.
+     */
+    private SampleZone[] nearestZones(int note) {
+        for (int distance = 0; distance < NoteTable.NOTES; distance++) {
+            List<SampleZone> found = new ArrayList<>();
+            for (SampleZone zone : zones) {
+                if (zone.covers(note - distance) || zone.covers(note + distance)) {
+                    found.add(zone);
+                }
+            }
+            if (!found.isEmpty()) {
+                found.sort(Comparator.comparingInt(zone -> zone.lowVelocity));
+                return found.toArray(new SampleZone[0]);
+            }
+        }
+        throw new AssertionError("Bank has no zones");
+    }
+
+    /**
+     * Picks the zone for a note. Render thread safe and allocation-free.
+     *
+     * @param note MIDI note number, 0..127
+     * @param velocity 1..127; outside every velocity layer of the note,
+     *        the nearest layer is used
+     * @return The zone to play
+     */
+    SampleZone zone(int note, int velocity) {
+        SampleZone[] layers = byNote[note];
+        for (SampleZone layer : layers) {
+            if (velocity <= layer.highVelocity) {
+                return layer;
+            }
+        }
+        return layers[layers.length - 1];
+    }
+
+    /**
+     * Picks the zone for a note given as a frequency and voice gain, as
+     * they arrive with a note event.
+     *
+     * @param frequency Note frequency in Hz; mapped to the nearest note of
+     *        {@code tuning}
+     * @param gain Voice gain, 0..1, mapped back to a velocity with
+     *        {@link MidiInput#gainVelocity(float)}
+     * @param tuning The tuning the frequency was taken from
+     */
+    SampleZone zone(double frequency, float gain, NoteTable tuning) {
+        return zone(tuning.note(frequency), MidiInput.gainVelocity(gain));
+    }
+
+    /**
+     * @return The bank's zones, in file order
+     */
+    List<SampleZone> zones() {
+        return zones;
+    }
+}
+
+// SampleZone.java
+/**
+ * One recorded sample of a {@link SampleBank}, with the key and velocity
+ * range it plays for and its loop points.
+ *
+ * <p>Reads go straight to the mapped file with absolute
+ * {@link ByteBuffer#getShort(int)} calls, which do not touch the buffer's
+ * position, so any number of voices and threads can read one zone at
+ * once.</p>
+ */
+final class SampleZone {
+    /**
+     * Scales full-scale 16-bit samples to the oscillators' peak level, so
+     * switching between the sampler and a waveform keeps the loudness
+     */
+    private static final float SCALE = (float) ((AudioConfig.BASE_AMPLITUDE + AudioConfig.HARMONIC_AMPLITUDE)
+        / 32768.0);
+
+    private final ByteBuffer data;
+    final int lowNote;
+    final int highNote;
+    final int rootNote;
+    final int lowVelocity;
+    final int highVelocity;
+    final int sampleRate;
+    final int frames;
+
+    /** First frame of the loop, inclusive */
+    final int loopStart;
+
+    /** Frame after the last one of the loop; at or below {@code loopStart} when the zone plays once */
+    final int loopEnd;
+
+    /**
+     * @param data The sample frames, 16-bit little-endian, from position 0
+     * @throws IllegalArgumentException if a range is empty or out of
+     *         0..127, or the loop does not lie within the sample
+     */
+    SampleZone(ByteBuffer data, int lowNote, int highNote, int rootNote, int lowVelocity,
+               int highVelocity, int sampleRate, int loopStart, int loopEnd) {
+        if (lowNote < 0 || lowNote > highNote || highNote >= NoteTable.NOTES
+                || rootNote < 0 || rootNote >= NoteTable.NOTES) {
+            throw new IllegalArgumentException("Bad key range " + lowNote + ".." + highNote + ", root " + rootNote);
+        }
+        if (lowVelocity < 1 || lowVelocity > highVelocity || highVelocity > 127) {
+            throw new IllegalArgumentException("Bad velocity range " + lowVelocity + ".." + highVelocity);
+        }
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+        }
+        int frames = data.remaining() / 2;
+        if (loopEnd > loopStart && (loopStart < 0 || loopEnd > frames)) {
+            throw new IllegalArgumentException("Loop " + loopStart + ".." + loopEnd + " outside " + frames + " frames");
+        }
+        this.data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.lowNote = lowNote;
+        this.highNote = highNote;
+        this.rootNote = rootNote;
+        this.lowVelocity = lowVelocity;
+        this.highVelocity = highVelocity;
+        this.sampleRate = sampleRate;
+        this.frames = frames;
+        this.loopStart = loopStart;
+        this.loopEnd = loopEnd;
+    }
+
+    boolean covers(int note) {
+        return note >= lowNote && note <= highNote;
+    }
+
+    boolean isLooped() {
+        return loopEnd > loopStart;
+    }
+
+    /**
+     * Sample frames to advance per output frame so that the zone sounds at
+     * {@code frequency}.
+     *
+     * <p>The recording is taken to sound at its root note's standard
+     * pitch, A4 = {@code AudioConfig.A4_FREQUENCY}, whatever tuning it is
+     * played in: under {@code -Dsynth.a4=415} the root key asks for
+     * 415 Hz and the sample is resampled down to it, in tune with the
+     * oscillators.</p>
+     *
+     * @param frequency Pitch to play in Hz
+     * @param outputRate Rate the voice is rendered at
+     */
+    double step(double frequency, int outputRate) {
+        double root = AudioConfig.A4_FREQUENCY * Math.pow(2, (rootNote - NoteTable.A4) / 12.0);
+        return frequency / root * sampleRate / outputRate;
+    }
+
+    /**
+     * @return Frame {@code i} scaled to the oscillators' level
+     */
+    float sample(int i) {
+        return data.getShort(i * 2) * SCALE;
+    }
+
+    /**
+     * Whether a voice at {@code position} has played past the end of a
+     * zone without a loop.
+     */
+    boolean isFinished(double position) {
+        return !isLooped() && position >= frames - 1;
+    }
+
+    /**
+     * Writes {@code count} frames resampled by linear interpolation,
+     * wrapping from the loop end back to the loop start. Past the end of
+     * a zone without a loop the block is filled with silence.
+     *
+     * @param position Read position in sample frames
+     * @param step Frames to advance per output frame
+     * @param block Destination, written from index 0
+     * @param count Frames to write
+     * @return The read position after the last frame
+     */
+    double read(double position, double step, float[] block, int count) {
+        return read(position, step, block, 0, count);
+    }
+
+    /**
+     * Same as {@link #read(double, double, float[], int)} into indexes
+     * {@code from} (inclusive) to {@code to} (exclusive) of {@code block}.
+     */
+    double read(double position, double step, float[] block, int from, int to) {
+        boolean looped = isLooped();
+        int end = looped ? loopEnd : frames - 1;
+        for (int i = from; i < to; i++) {
+            if (position >= end) {
+                if (!looped) {
+                    Arrays.fill(block, i, to, 0f);
+                    return position;
+                }
+                // A step longer than the loop can pass it more than once
+                position = loopStart + (position - loopStart) % (loopEnd - loopStart);
+            }
+            int index = (int) position;
+            float frac = (float) (position - index);
+            float a = sample(index);
+            // The frame after the loop end is the loop start, so the seam interpolates smoothly
+            float b = sample(index + 1 == loopEnd && looped ? loopStart : index + 1);
+            block[i] = a + (b - a) * frac;
+            position += step;
+        }
+        return position;
+    }
+}
+
+// SampleBankWriter.java
+/**
+ * Builds a {@link SampleBank} file from PCM held in memory, e.g. to
+ * convert a set of WAV recordings once.
+ */
+final class SampleBankWriter {
+    private final List<short[]> samples = new ArrayList<>();
+    private final List<int[]> headers = new ArrayList<>();
+
+    /**
+     * Adds a zone.
+     *
+     * @param pcm Mono samples, at least two
+     * @param sampleRate Rate the samples were recorded at
+     * @param rootNote MIDI note the recording sounds at
+     * @param lowNote Lowest key the zone plays for
+     * @param highNote Highest key the zone plays for
+     * @param lowVelocity Lowest velocity the zone plays for, 1..127
+     * @param highVelocity Highest velocity the zone plays for, 1..127
+     * @param loopStart First looped frame
+     * @param loopEnd Frame after the loop; at or below {@code loopStart}
+     *        to play the sample once
+     * @return This writer
+     */
+    SampleBankWriter add(short[] pcm, int sampleRate, int rootNote, int lowNote, int highNote,
+                         int lowVelocity, int highVelocity, int loopStart, int loopEnd) {
+        if (pcm.length < 2) {
+            throw new IllegalArgumentException("A zone needs at least two samples");
+        }
+        samples.add(pcm);
+        headers.add(new int[] {lowNote, highNote, rootNote, lowVelocity, highVelocity, sampleRate,
+            loopStart, loopEnd});
+        return this;
+    }
+
+    /**
+     * Writes the bank, replacing {@code file} if it exists.
+     *
+     * @throws IOException if writing fails
+     */
+    void write(Path file) throws IOException {
+        if (samples.isEmpty()) {
+            throw new IllegalStateException("A sample bank needs at least one zone");
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(SampleBank.MAGIC);
+            out.writeByte(SampleBank.VERSION);
+            out.writeInt(samples.size());
+            long offset = SampleBank.HEADER_BYTES + (long) samples.size() * SampleBank.ZONE_BYTES;
+            for (int i = 0; i < samples.size(); i++) {
+                int[] h = headers.get(i);
+                for (int b = 0; b < 5; b++) {
+                    out.writeByte(h[b]);
+                }
+                out.write(new byte[3]);
+                out.writeInt(h[5]);
+                out.writeLong(offset);
+                out.writeInt(samples.get(i).length);
+                out.writeInt(h[6]);
+                out.writeInt(h[7]);
+                offset += samples.get(i).length * 2L;
+            }
+            for (short[] pcm : samples) {
+                writePcm(pcm, out);
+            }
+        }
+    }
+
+    private static void writePcm(short[] pcm, OutputStream out) throws IOException {
+        byte[] bytes = new byte[pcm.length * 2];
+        PcmEncoder.pack16LittleEndian(pcm, pcm.length, bytes, 0);
+        out.write(bytes);
+    }
+}
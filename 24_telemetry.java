@@ -0,0 +1,650 @@
+package com.synthwave.piano;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+// SynthEvents.java
+/**
+ * Emits the engine's Flight Recorder events.
+ *
+ * <p>Each method first checks a flag that a {@link FlightRecorderListener}
+ * keeps up to date, so while no recording is running an emit point costs
+ * one volatile read and nothing is allocated. Events are only created,
+ * and the event classes only loaded, once a recording starts, whether
+ * from {@code -XX:StartFlightRecording}, {@code jcmd JFR.start} or JDK
+ * Mission Control.</p>
+ *
+ * <p>All events are under the "Synthwave Piano" category, without stack
+ * traces. Correlate them with the JVM's own {@code jdk.GarbageCollection},
+ * {@code jdk.SafepointBegin} and {@code jdk.ThreadCPULoad} events to find
+ * what stalled the render thread before an underrun.</p>
+ */
+final class SynthEvents {
+    private static volatile boolean recording;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+
+            @Override
+            public void recordingStateChanged(Recording changed) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+
+    private SynthEvents() {
+    }
+
+    private static void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording r : recorder.getRecordings()) {
+            running |= r.getState() == RecordingState.RUNNING;
+        }
+        recording = running;
+    }
+
+    /**
+     * @return Whether a Flight Recorder recording is running
+     */
+    static boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * @param delayNanos Time from the event's timestamp to the render
+     *        thread applying it
+     */
+    static void noteOn(int id, double frequency, float gain, int offset, long delayNanos) {
+        if (recording) {
+            NoteOnEvent event = new NoteOnEvent();
+            if (event.shouldCommit()) {
+                event.noteId = id;
+                event.frequency = frequency;
+                event.gain = gain;
+                event.blockOffset = offset;
+                event.queueDelay = delayNanos;
+                event.commit();
+            }
+        }
+    }
+
+    static void noteOff(int id, int offset, long delayNanos) {
+        if (recording) {
+            NoteOffEvent event = new NoteOffEvent();
+            if (event.shouldCommit()) {
+                event.noteId = id;
+                event.blockOffset = offset;
+                event.queueDelay = delayNanos;
+                event.commit();
+            }
+        }
+    }
+
+    static void blockRendered(int frames, long renderNanos, double budget, int activeVoices, int voiceLimit) {
+        if (recording) {
+            BlockRenderEvent event = new BlockRenderEvent();
+            if (event.shouldCommit()) {
+                event.frames = frames;
+                event.renderTime = renderNanos;
+                event.budgetUsed = budget;
+                event.activeVoices = activeVoices;
+                event.voiceLimit = voiceLimit;
+                event.commit();
+            }
+        }
+    }
+
+    static void underrun(int blockFrames, int lineBufferFrames) {
+        if (recording) {
+            UnderrunEvent event = new UnderrunEvent();
+            if (event.shouldCommit()) {
+                event.blockFrames = blockFrames;
+                event.lineBufferFrames = lineBufferFrames;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * @param stolenId Note the voice was playing
+     * @param newId Note that took the voice over, or 0 if it was faded out
+     *        to lower the limit
+     */
+    static void voiceStolen(int stolenId, int newId, StealPolicy policy) {
+        if (recording) {
+            VoiceStealEvent event = new VoiceStealEvent();
+            if (event.shouldCommit()) {
+                event.stolenNoteId = stolenId;
+                event.newNoteId = newId;
+                event.policy = policy.name();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * @param source Where it happened, one of {@code AudioMetrics.ERROR_SOURCES}
+     */
+    static void error(String source, Throwable error) {
+        if (recording) {
+            ErrorEvent event = new ErrorEvent();
+            if (event.shouldCommit()) {
+                event.source = source;
+                event.errorClass = error.getClass().getName();
+                event.message = error.getMessage();
+                event.commit();
+            }
+        }
+    }
+}
+
+// NoteOnEvent.java
+@Name("synth.NoteOn")
+@Label("Note On")
+@Category({"Synthwave Piano", "Notes"})
+@Description("A note-on applied by the render thread")
+@StackTrace(false)
+final class NoteOnEvent extends Event {
+    @Label("Note Id")
+    int noteId;
+
+    @Label("Frequency")
+    @Frequency
+    double frequency;
+
+    @Label("Gain")
+    float gain;
+
+    @Label("Block Offset")
+    @Description("Frame of the block at which the note starts")
+    int blockOffset;
+
+    @Label("Queue Delay")
+    @Description("Time from the key press to the render thread picking it up")
+    @Timespan
+    long queueDelay;
+}
+
+// NoteOffEvent.java
+@Name("synth.NoteOff")
+@Label("Note Off")
+@Category({"Synthwave Piano", "Notes"})
+@Description("A note-off applied by the render thread")
+@StackTrace(false)
+final class NoteOffEvent extends Event {
+    @Label("Note Id")
+    int noteId;
+
+    @Label("Block Offset")
+    int blockOffset;
+
+    @Label("Queue Delay")
+    @Timespan
+    long queueDelay;
+}
+
+// BlockRenderEvent.java
+@Name("synth.BlockRender")
+@Label("Block Render")
+@Category({"Synthwave Piano", "Render"})
+@Description("One block mixed by the render thread")
+@StackTrace(false)
+final class BlockRenderEvent extends Event {
+    @Label("Frames")
+    int frames;
+
+    @Label("Render Time")
+    @Timespan
+    long renderTime;
+
+    @Label("Budget Used")
+    @Description("Render time as a fraction of the block's duration")
+    @Percentage
+    double budgetUsed;
+
+    @Label("Active Voices")
+    int activeVoices;
+
+    @Label("Voice Limit")
+    int voiceLimit;
+}
+
+// UnderrunEvent.java
+@Name("synth.Underrun")
+@Label("Underrun")
+@Category({"Synthwave Piano", "Render"})
+@Description("The output line ran dry before a block was written")
+@StackTrace(false)
+final class UnderrunEvent extends Event {
+    @Label("Block Frames")
+    int blockFrames;
+
+    @Label("Line Buffer Frames")
+    int lineBufferFrames;
+}
+
+// VoiceStealEvent.java
+@Name("synth.VoiceSteal")
+@Label("Voice Steal")
+@Category({"Synthwave Piano", "Notes"})
+@Description("A sounding voice taken over by a new note or faded out to lower the voice limit")
+@StackTrace(false)
+final class VoiceStealEvent extends Event {
+    @Label("Stolen Note Id")
+    int stolenNoteId;
+
+    @Label("New Note Id")
+    @Description("0 when the voice was faded out to lower the limit")
+    int newNoteId;
+
+    @Label("Policy")
+    String policy;
+}
+
+// ErrorEvent.java
+@Name("synth.Error")
+@Label("Error")
+@Category({"Synthwave Piano", "Errors"})
+@Description("A failure the synthesizer recovered from by playing on without the failed part")
+@StackTrace(false)
+final class ErrorEvent extends Event {
+    @Label("Source")
+    @Description("Render, line, samples, midi, recording or metrics")
+    String source;
+
+    @Label("Error Class")
+    String errorClass;
+
+    @Label("Message")
+    String message;
+}
+
+// MetricsRegistry.java
+/**
+ * In-process counters, gauges and histograms, written out in the
+ * Prometheus text exposition format.
+ *
+ * <p>Updating a metric is lock-free and allocation-free, so the render
+ * thread can do it every block. Reading is done on demand with
+ * {@link #dump()}, or by scraping a {@link MetricsServer}.</p>
+ */
+final class MetricsRegistry {
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    /**
+     * @throws IllegalArgumentException if the name is malformed or taken
+     */
+    Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    /**
+     * Registers a counter whose value is read from {@code value} at each
+     * dump, for totals already kept elsewhere.
+     *
+     * @throws IllegalArgumentException if the name is malformed or taken
+     */
+    void counter(String name, String help, LongSupplier value) {
+        register(new Metric(name, help, "counter") {
+            @Override
+            void write(Appendable out) throws IOException {
+                sample(out, name, "", value.getAsLong());
+            }
+        });
+    }
+
+    /**
+     * @throws IllegalArgumentException if the name is malformed or taken
+     */
+    void gauge(String name, String help, DoubleSupplier value) {
+        register(new Metric(name, help, "gauge") {
+            @Override
+            void write(Appendable out) throws IOException {
+                sample(out, name, "", value.getAsDouble());
+            }
+        });
+    }
+
+    /**
+     * Registers a counter split by one label whose values are all known up
+     * front, e.g. {@code synth_errors_total{source="render"}}. Every value
+     * is written, zeros included, so a rate over it is defined from the
+     * first scrape.
+     *
+     * @param label Label name
+     * @param values Every value the label takes
+     * @throws IllegalArgumentException if the name is malformed or taken
+     */
+    LabeledCounter labeledCounter(String name, String help, String label, String... values) {
+        return register(new LabeledCounter(name, help, label, values));
+    }
+
+    /**
+     * @param bounds Upper bucket bounds in ascending order; an unbounded
+     *        bucket is added after the last
+     * @throws IllegalArgumentException if the name is malformed or taken,
+     *         or the bounds are not ascending
+     */
+    Histogram histogram(String name, String help, double... bounds) {
+        return register(new Histogram(name, help, bounds));
+    }
+
+    /**
+     * Adds the JVM's garbage collection totals, so that dropouts can be
+     * lined up with collections. The collector beans are looked up at each
+     * dump rather than here; the management factory takes tens of
+     * milliseconds to start.
+     */
+    void registerJvmMetrics() {
+        counter("jvm_gc_collections_total", "Garbage collections since the JVM started", () -> {
+            long total = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                total += Math.max(0, gc.getCollectionCount());
+            }
+            return total;
+        });
+        register(new Metric("jvm_gc_collection_seconds_total", "Time spent in garbage collection since the JVM started",
+                "counter") {
+            @Override
+            void write(Appendable out) throws IOException {
+                long millis = 0;
+                for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                    millis += Math.max(0, gc.getCollectionTime());
+                }
+                sample(out, name, "", millis / 1000.0);
+            }
+        });
+    }
+
+    private synchronized <M extends Metric> M register(M metric) {
+        if (!NAME.matcher(metric.name).matches()) {
+            throw new IllegalArgumentException("Invalid metric name: " + metric.name);
+        }
+        for (Metric existing : metrics) {
+            if (existing.name.equals(metric.name)) {
+                throw new IllegalArgumentException("Metric already registered: " + metric.name);
+            }
+        }
+        metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * Writes every metric in registration order.
+     */
+    void writeTo(Appendable out) throws IOException {
+        for (Metric metric : metrics) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            metric.write(out);
+        }
+    }
+
+    /**
+     * @return Every metric in the Prometheus text format
+     */
+    String dump() {
+        StringBuilder out = new StringBuilder();
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    private static void sample(Appendable out, String name, String labels, double value) throws IOException {
+        out.append(name).append(labels).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, String labels, long value) throws IOException {
+        out.append(name).append(labels).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        if (value == Double.NEGATIVE_INFINITY) {
+            return "-Inf";
+        }
+        return Double.toString(value);
+    }
+
+    /** One named metric and how to write its samples */
+    abstract static class Metric {
+        final String name;
+        final String help;
+        final String type;
+
+        Metric(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        abstract void write(Appendable out) throws IOException;
+    }
+
+    /** Total that only goes up */
+    static final class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(String name, String help) {
+            super(name, help, "counter");
+        }
+
+        void increment() {
+            value.incrementAndGet();
+        }
+
+        void add(long amount) {
+            value.addAndGet(amount);
+        }
+
+        long get() {
+            return value.get();
+        }
+
+        @Override
+        void write(Appendable out) throws IOException {
+            sample(out, name, "", value.get());
+        }
+    }
+
+    /** Totals that only go up, one per value of a label */
+    static final class LabeledCounter extends Metric {
+        private final String label;
+        private final String[] values;
+        private final AtomicLongArray counts;
+
+        LabeledCounter(String name, String help, String label, String[] values) {
+            super(name, help, "counter");
+            this.label = label;
+            this.values = values.clone();
+            this.counts = new AtomicLongArray(values.length);
+        }
+
+        /**
+         * @throws IllegalArgumentException if {@code value} was not given
+         *         at registration
+         */
+        void increment(String value) {
+            counts.incrementAndGet(index(value));
+        }
+
+        long get(String value) {
+            return counts.get(index(value));
+        }
+
+        private int index(String value) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i].equals(value)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("No " + label + " \"" + value + "\" in " + name);
+        }
+
+        @Override
+        void write(Appendable out) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                sample(out, name, "{" + label + "=\"" + values[i] + "\"}", counts.get(i));
+            }
+        }
+    }
+
+    /**
+     * Distribution of observed values over fixed buckets. The bounds are
+     * few, so {@link #observe} finds the bucket with a linear scan.
+     */
+    static final class Histogram extends Metric {
+        private final double[] bounds;
+        private final AtomicLongArray buckets;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(String name, String help, double[] bounds) {
+            super(name, help, "histogram");
+            for (int i = 1; i < bounds.length; i++) {
+                if (!(bounds[i] > bounds[i - 1])) {
+                    throw new IllegalArgumentException("Histogram bounds must ascend: " + name);
+                }
+            }
+            this.bounds = bounds.clone();
+            this.buckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            sum.add(value);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        double sum() {
+            return sum.sum();
+        }
+
+        @Override
+        void write(Appendable out) throws IOException {
+            // Buckets are cumulative; the count is their total so the two always agree
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                cumulative += buckets.get(i);
+                double le = i < bounds.length ? bounds[i] : Double.POSITIVE_INFINITY;
+                sample(out, name + "_bucket", "{le=\"" + format(le) + "\"}", cumulative);
+            }
+            sample(out, name + "_sum", "", sum.sum());
+            sample(out, name + "_count", "", cumulative);
+        }
+    }
+}
+
+// MetricsServer.java
+/**
+ * Serves a {@link MetricsRegistry} over HTTP at {@link #PATH}, for a
+ * Prometheus scraper or a quick {@code curl}.
+ *
+ * <p>Listens on the loopback interface only. Requests are answered on one
+ * daemon thread, well away from the render thread.</p>
+ */
+final class MetricsServer implements AutoCloseable {
+    static final String PATH = "/metrics";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param port Local port, or 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    MetricsServer(MetricsRegistry registry, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext(PATH, exchange -> respond(exchange, registry));
+        server.start();
+    }
+
+    private static void respond(HttpExchange exchange, MetricsRegistry registry) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.dump().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return The port actually bound
+     */
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,245 @@
+package com.synthwave.piano;
+
+// Unison.java
+/**
+ * Immutable unison settings: how many detuned copies of the waveform a
+ * note stacks, how far apart they are tuned and how wide they spread in
+ * the stereo field. Seven or more slightly detuned saws give the thick
+ * "supersaw" lead and pad sound.
+ *
+ * <p>Oscillators are tuned evenly across the detune range, from
+ * {@code -detune / 2} to {@code +detune / 2} cents around the note.
+ * Their stereo positions are spread evenly across {@code -width..width}
+ * on alternating sides, so flat and sharp oscillators reach both
+ * channels.</p>
+ */
+final class Unison {
+    /** Most oscillators one note can stack */
+    static final int MAX_OSCILLATORS = 16;
+
+    /** One oscillator: the plain voice */
+    static final Unison OFF = new Unison(1, 0, 0f);
+
+    final int oscillators;
+
+    /** Distance between the flattest and sharpest oscillator, in cents */
+    final double detune;
+
+    /** Stereo spread, 0 for mono to 1 for hard left and right */
+    final float width;
+
+    /**
+     * @param oscillators Copies per note, 1 to {@link #MAX_OSCILLATORS}
+     * @param detune Spread in cents, e.g. 20 to 50 for a supersaw
+     * @param width Stereo spread, 0..1
+     * @throws IllegalArgumentException if a value is out of range
+     */
+    Unison(int oscillators, double detune, float width) {
+        if (oscillators < 1 || oscillators > MAX_OSCILLATORS) {
+            throw new IllegalArgumentException("Unison needs 1 to " + MAX_OSCILLATORS + " oscillators: "
+                + oscillators);
+        }
+        if (detune < 0 || detune > 1200) {
+            throw new IllegalArgumentException("Detune must be within 0..1200 cents: " + detune);
+        }
+        if (width < 0f || width > 1f) {
+            throw new IllegalArgumentException("Width must be within 0..1: " + width);
+        }
+        this.oscillators = oscillators;
+        this.detune = detune;
+        this.width = width;
+    }
+
+    /**
+     * @return Frequency of oscillator {@code k} relative to the note's
+     */
+    double ratio(int k) {
+        return Math.pow(2, detune * (spread(k) * 0.5) / 1200);
+    }
+
+    /**
+     * @return Stereo position of oscillator {@code k}, -1 (left) to 1 (right)
+     */
+    float pan(int k) {
+        float side = k % 2 == 0 ? -1f : 1f;
+        return (float) (width * side * Math.abs(spread(k)));
+    }
+
+    /** Position of oscillator {@code k} across the stack, -1 to 1 */
+    private double spread(int k) {
+        return oscillators == 1 ? 0 : 2.0 * k / (oscillators - 1) - 1;
+    }
+}
+
+// UnisonBank.java
+/**
+ * Oscillator state of the unison voices in a {@link VoicePool}, as parallel
+ * primitive arrays.
+ *
+ * <p>Voice {@code v} owns entries {@code v * MAX_OSCILLATORS} up to its
+ * oscillator count. Phases are 32-bit fixed-point fractions of a cycle,
+ * so they wrap by overflow instead of a compare and branch, and the top
+ * bits index the wavetable directly. Rendering loads four oscillators'
+ * phases, increments and channel gains into locals and runs one flat
+ * loop over the block for all four: their table reads are independent,
+ * and each output sample is written once per group rather than once per
+ * oscillator. The cost of an extra oscillator is then little more than
+ * its table read.</p>
+ *
+ * <p>Owned by the pool's render thread; nothing is allocated after
+ * construction.</p>
+ */
+final class UnisonBank {
+    private static final int MAX = Unison.MAX_OSCILLATORS;
+
+    /** Phase bits below the wavetable index */
+    private static final int FRACTION_BITS = 32 - Integer.numberOfTrailingZeros(Wavetable.SIZE);
+    private static final int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+    private static final float FRACTION_SCALE = 1f / (1 << FRACTION_BITS);
+
+    /** One cycle in fixed point */
+    private static final double CYCLE = 0x1p32;
+
+    /** Golden-ratio offsets spread the start phases without lining up peaks */
+    private static final double PHASE_STEP = 0.6180339887498949;
+
+    /** Oscillators sounding per voice; 0 or 1 means the voice is not unison */
+    private final int[] count;
+
+    /** Fastest oscillator's increment per voice in cycles, which picks the wavetable */
+    private final double[] topIncrement;
+
+    /** Per oscillator: phase and increment in 2^-32 cycles, and channel gains */
+    private final int[] phase;
+    private final int[] increment;
+    private final float[] gainLeft;
+    private final float[] gainRight;
+
+    UnisonBank(int voices) {
+        count = new int[voices];
+        topIncrement = new double[voices];
+        phase = new int[voices * MAX];
+        increment = new int[voices * MAX];
+        gainLeft = new float[voices * MAX];
+        gainRight = new float[voices * MAX];
+    }
+
+    /**
+     * Tunes voice {@code v}'s oscillators to a new note. Oscillators it
+     * already had keep their phases, so a stolen or retriggered voice
+     * does not click; the rest start from spread phases.
+     *
+     * @param delta The note's phase increment in cycles
+     * @param fresh Whether the voice was silent, so every phase restarts
+     */
+    void start(int v, double delta, Unison settings, boolean fresh) {
+        int n = settings.oscillators;
+        int base = v * MAX;
+        int kept = fresh ? 0 : count[v];
+        // Equal power whatever the count: uncorrelated oscillators add up as the square root
+        double level = 1 / Math.sqrt(n);
+        double top = 0;
+        for (int k = 0; k < n; k++) {
+            int o = base + k;
+            if (k >= kept) {
+                phase[o] = (int) (long) (k * PHASE_STEP % 1.0 * CYCLE);
+            }
+            double step = delta * settings.ratio(k);
+            increment[o] = (int) (long) (step * CYCLE);
+            top = Math.max(top, step);
+            double angle = (settings.pan(k) + 1) * Math.PI / 4;
+            gainLeft[o] = (float) (level * Math.cos(angle) * Math.sqrt(2));
+            gainRight[o] = (float) (level * Math.sin(angle) * Math.sqrt(2));
+        }
+        count[v] = n;
+        topIncrement[v] = top;
+    }
+
+    /**
+     * Marks voice {@code v} as a plain single-oscillator voice.
+     */
+    void stop(int v) {
+        count[v] = 0;
+    }
+
+    /**
+     * @return Oscillators voice {@code v} stacks, 0 when it is not unison
+     */
+    int oscillators(int v) {
+        return count[v];
+    }
+
+    /**
+     * Writes {@code frames} frames of voice {@code v}'s stack into
+     * {@code left} and {@code right}, before envelope, gain and pan.
+     */
+    void render(int v, Waveform shape, float[] left, float[] right, int frames) {
+        java.util.Arrays.fill(left, 0, frames, 0f);
+        java.util.Arrays.fill(right, 0, frames, 0f);
+        float[] table = shape.wavetable().forIncrement(topIncrement[v]);
+        int o = v * MAX;
+        int end = o + count[v];
+        for (; o + 4 <= end; o += 4) {
+            renderFour(o, table, left, right, frames);
+        }
+        for (; o < end; o++) {
+            renderOne(o, table, left, right, frames);
+        }
+    }
+
+    private void renderFour(int o, float[] table, float[] left, float[] right, int frames) {
+        int p0 = phase[o];
+        int p1 = phase[o + 1];
+        int p2 = phase[o + 2];
+        int p3 = phase[o + 3];
+        int d0 = increment[o];
+        int d1 = increment[o + 1];
+        int d2 = increment[o + 2];
+        int d3 = increment[o + 3];
+        float l0 = gainLeft[o];
+        float l1 = gainLeft[o + 1];
+        float l2 = gainLeft[o + 2];
+        float l3 = gainLeft[o + 3];
+        float r0 = gainRight[o];
+        float r1 = gainRight[o + 1];
+        float r2 = gainRight[o + 2];
+        float r3 = gainRight[o + 3];
+        for (int i = 0; i < frames; i++) {
+            float s0 = read(table, p0);
+            float s1 = read(table, p1);
+            float s2 = read(table, p2);
+            float s3 = read(table, p3);
+            left[i] += s0 * l0 + s1 * l1 + s2 * l2 + s3 * l3;
+            right[i] += s0 * r0 + s1 * r1 + s2 * r2 + s3 * r3;
+            p0 += d0;
+            p1 += d1;
+            p2 += d2;
+            p3 += d3;
+        }
+        phase[o] = p0;
+        phase[o + 1] = p1;
+        phase[o + 2] = p2;
+        phase[o + 3] = p3;
+    }
+
+    private void renderOne(int o, float[] table, float[] left, float[] right, int frames) {
+        int p = phase[o];
+        int d = increment[o];
+        float l = gainLeft[o];
+        float r = gainRight[o];
+        for (int i = 0; i < frames; i++) {
+            float s = read(table, p);
+            left[i] += s * l;
+            right[i] += s * r;
+            p += d;
+        }
+        phase[o] = p;
+    }
+
+    /** Linearly interpolated table value at a fixed-point phase */
+    private static float read(float[] table, int p) {
+        int index = p >>> FRACTION_BITS;
+        float a = table[index];
+        return a + (table[index + 1] - a) * ((p & FRACTION_MASK) * FRACTION_SCALE);
+    }
+}
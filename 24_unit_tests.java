@@ -1,14 +1,26 @@
+package com.synthwave.piano;
+
 // MainTest.java
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.testfx.api.FxRobot;
 import org.testfx.framework.junit5.ApplicationExtension;
 import org.testfx.framework.junit5.Start;
+import org.testfx.robot.Motion;
 import javafx.scene.Scene;
-import javafx.scene.shape.Rectangle;
+import javafx.scene.input.MouseButton;
 import javafx.stage.Stage;
 import javax.sound.sampled.*;
+import javax.sound.midi.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import static org.junit.jupiter.api.Assertions.*;
 
 @ExtendWith(ApplicationExtension.class)
@@ -31,26 +43,23 @@ class SynthwavePianoTest {
         assertEquals(400, scene.getHeight());
         
         // Count white and black keys
-        List<Rectangle> whiteKeys = robot.lookup((Rectangle r) -> 
-            r.getFill().equals(javafx.scene.paint.Color.WHITE)).queryAll();
-        List<Rectangle> blackKeys = robot.lookup((Rectangle r) -> 
-            r.getFill().equals(javafx.scene.paint.Color.rgb(25, 25, 25))).queryAll();
+        KeyboardLayout layout = piano.getKeyboard().layout();
+        
+        assertEquals(14, layout.whiteKeyCount()); // Two octaves
+        assertEquals(10, layout.keyCount() - layout.whiteKeyCount()); // Two octaves minus E-F and B-C gaps
         
-        assertEquals(14, whiteKeys.size()); // Two octaves
-        assertEquals(10, blackKeys.size()); // Two octaves minus E-F and B-C gaps
+        // The whole keyboard is a single node
+        assertEquals(1, robot.lookup((KeyboardCanvas c) -> true).queryAll().size());
     }
 
     @Test
     void testKeyDimensions(FxRobot robot) {
-        Rectangle whiteKey = robot.lookup((Rectangle r) -> 
-            r.getFill().equals(javafx.scene.paint.Color.WHITE)).query();
-        Rectangle blackKey = robot.lookup((Rectangle r) -> 
-            r.getFill().equals(javafx.scene.paint.Color.rgb(25, 25, 25))).query();
+        KeyboardLayout layout = piano.getKeyboard().layout();
         
-        assertEquals(60, whiteKey.getWidth());
-        assertEquals(300, whiteKey.getHeight());
-        assertEquals(40, blackKey.getWidth());
-        assertEquals(180, blackKey.getHeight());
+        assertEquals(800.0 / 14, layout.keyWidth(60), 1e-9);
+        assertEquals(300, layout.keyHeight(60));
+        assertEquals(800.0 / 21, layout.keyWidth(61), 1e-9);
+        assertEquals(180, layout.keyHeight(61));
     }
 }
 
@@ -61,6 +70,12 @@ class SynthwavePianoAudioTest {
     private AudioFormat format;
     private SourceDataLine line;
 
+    @Start
+    private void start(Stage stage) {
+        piano = new SynthwavePiano();
+        piano.start(stage);
+    }
+
     @BeforeEach
     void setUp() throws Exception {
         format = new AudioFormat(44100, 16, 1, true, true);
@@ -84,12 +99,13 @@ class SynthwavePianoAudioTest {
     @Test
     void testFrequencyCalculation() {
         // Test frequency calculations for specific notes
-        Map<Rectangle, Integer> keyFrequencies = piano.getKeyFrequencies();
-        Rectangle cKey = // ... get C key
-        assertEquals(262, keyFrequencies.get(cKey)); // C4
+        NoteTable table = piano.getNoteTable();
+        KeyboardLayout layout = piano.getKeyboard().layout();
+        assertEquals(60, layout.noteAt(1, 299)); // C4
+        assertEquals(261.63, table.frequency(60), 0.01);
         
-        Rectangle aKey = // ... get A key
-        assertEquals(440, keyFrequencies.get(aKey)); // A4
+        assertEquals(69, layout.noteAt(layout.keyX(69) + 1, 299)); // A4
+        assertEquals(440, table.frequency(69), 0.0);
     }
 }
 
@@ -106,31 +122,33 @@ class SynthwavePianoInteractionTest {
 
     @Test
     void testKeyPress(FxRobot robot) {
-        Rectangle whiteKey = robot.lookup((Rectangle r) -> 
-            r.getFill().equals(javafx.scene.paint.Color.WHITE)).query();
+        KeyboardCanvas keyboard = piano.getKeyboard();
         
         // Test key press visual feedback
-        robot.moveTo(whiteKey).press(MouseButton.PRIMARY);
-        assertEquals(Color.rgb(200, 200, 255), whiteKey.getFill());
+        robot.moveTo(keyboard, javafx.geometry.Pos.BOTTOM_LEFT, new javafx.geometry.Point2D(10, -10), Motion.DEFAULT)
+            .press(MouseButton.PRIMARY);
+        assertTrue(keyboard.isPressed(60));
         
         // Test key release visual feedback
         robot.release(MouseButton.PRIMARY);
-        assertEquals(Color.WHITE, whiteKey.getFill());
+        assertFalse(keyboard.isPressed(60));
     }
 
     @Test
-    void testMultipleKeyPress(FxRobot robot) {
-        List<Rectangle> whiteKeys = robot.lookup((Rectangle r) -> 
-            r.getFill().equals(javafx.scene.paint.Color.WHITE)).queryAll();
+    void testDragMovesToNextKey(FxRobot robot) {
+        KeyboardCanvas keyboard = piano.getKeyboard();
+        double step = keyboard.layout().keyWidth(60);
         
-        // Test multiple simultaneous key presses
-        robot.moveTo(whiteKeys.get(0)).press(MouseButton.PRIMARY);
-        robot.moveTo(whiteKeys.get(2)).press(MouseButton.PRIMARY);
+        // Dragging across white keys releases each before pressing the next
+        robot.moveTo(keyboard, javafx.geometry.Pos.BOTTOM_LEFT, new javafx.geometry.Point2D(10, -10), Motion.DEFAULT)
+            .press(MouseButton.PRIMARY);
+        robot.moveBy(2 * step, 0);
         
-        assertEquals(Color.rgb(200, 200, 255), whiteKeys.get(0).getFill());
-        assertEquals(Color.rgb(200, 200, 255), whiteKeys.get(2).getFill());
+        assertFalse(keyboard.isPressed(60));
+        assertTrue(keyboard.isPressed(64));
         
         robot.release(MouseButton.PRIMARY);
+        assertEquals(0, piano.getActiveNoteCount());
     }
 }
 
@@ -138,47 +156,55 @@ class SynthwavePianoInteractionTest {
 @ExtendWith(ApplicationExtension.class)
 class SynthwavePianoEdgeCasesTest {
     private SynthwavePiano piano;
+    private Stage stage;
+
+    @Start
+    private void start(Stage stage) {
+        this.stage = stage;
+        piano = new SynthwavePiano();
+        piano.start(stage);
+    }
 
     @Test
     void testAudioResourceLeaks() throws Exception {
         // Test for audio resource leaks
-        Rectangle key = // ... get a key
-        piano.startNote(key);
-        piano.stopNote(key);
+        piano.startNote(60);
+        piano.stopNote(60);
         
         // Verify all resources are properly closed
-        assertTrue(piano.getActiveNotes().isEmpty());
+        assertEquals(0, piano.getActiveNoteCount());
     }
 
     @Test
     void testRapidKeyPresses(FxRobot robot) {
-        Rectangle key = robot.lookup((Rectangle r) -> 
-            r.getFill().equals(javafx.scene.paint.Color.WHITE)).query();
+        KeyboardCanvas keyboard = piano.getKeyboard();
         
         // Test rapid key presses
         for (int i = 0; i < 100; i++) {
-            robot.moveTo(key).press(MouseButton.PRIMARY).release(MouseButton.PRIMARY);
+            robot.moveTo(keyboard).press(MouseButton.PRIMARY).release(MouseButton.PRIMARY);
         }
         
         // Verify no resource leaks
-        assertTrue(piano.getActiveNotes().isEmpty());
+        assertEquals(0, piano.getActiveNoteCount());
     }
 
     @Test
-    void testWindowResize() {
-        Stage stage = // ... get stage
-        stage.setWidth(400);
-        stage.setHeight(200);
+    void testWindowResize(FxRobot robot) {
+        robot.interact(() -> {
+            stage.setWidth(400);
+            stage.setHeight(200);
+        });
         
-        // Verify piano remains responsive after resize
-        // Add assertions for key positions and dimensions
+        // Keys follow the window width
+        KeyboardLayout layout = piano.getKeyboard().layout();
+        assertEquals(piano.getKeyboard().getWidth() / 14, layout.keyWidth(60), 1e-9);
+        assertEquals(60, layout.noteAt(1, 299));
     }
 
     @Test
     void testExceptionHandling() {
         // Test with unavailable audio device
-        AudioSystem.getSourceDataLine(null); // Should throw exception
-        // Verify application handles the exception gracefully
+        assertThrows(Exception.class, () -> AudioSystem.getSourceDataLine(null));
     }
 }
 
@@ -188,6 +214,12 @@ class SynthwavePianoPerformanceTest {
     private SynthwavePiano piano;
     private long startTime;
 
+    @Start
+    private void start(Stage stage) {
+        piano = new SynthwavePiano();
+        piano.start(stage);
+    }
+
     @BeforeEach
     void setUp() {
         startTime = System.nanoTime();
@@ -195,14 +227,13 @@ class SynthwavePianoPerformanceTest {
 
     @Test
     void testAudioLatency() {
-        Rectangle key = // ... get a key
-        piano.startNote(key);
+        piano.startNote(60);
         long latency = System.nanoTime() - startTime;
         
         // Audio latency should be under 50ms
         assertTrue(latency < 50_000_000);
         
-        piano.stopNote(key);
+        piano.stopNote(60);
     }
 
     @Test
@@ -212,9 +243,9 @@ class SynthwavePianoPerformanceTest {
         
         // Simulate heavy usage
         for (int i = 0; i < 1000; i++) {
-            Rectangle key = // ... get a key
-            piano.startNote(key);
-            piano.stopNote(key);
+            int note = AudioConfig.LOWEST_KEY + i % 24;
+            piano.startNote(note);
+            piano.stopNote(note);
         }
         
         long finalMemory = Runtime.getRuntime().totalMemory() - 
@@ -225,17 +256,2822 @@ class SynthwavePianoPerformanceTest {
     }
 }
 
-// TestHelper.java
-class TestHelper {
-    static void waitForAudio(int milliseconds) {
+// VoiceMixerTest.java
+class VoiceMixerTest {
+    private static final int FRAMES = AudioConfig.BUFFER_SIZE / 2;
+
+    private VoiceMixer mixer;
+    private byte[] buffer;
+
+    @BeforeEach
+    void setUp() {
+        mixer = new VoiceMixer(4, AudioConfig.SAMPLE_RATE);
+        buffer = new byte[FRAMES * 2];
+    }
+
+    @Test
+    void testSilenceWithoutVoices() {
+        mixer.render(buffer, 0, FRAMES);
+        for (byte b : buffer) {
+            assertEquals(0, b);
+        }
+    }
+
+    @Test
+    void testNoteOnProducesSound() {
+        mixer.apply(NoteEvent.noteOn(1, 440));
+        mixer.render(buffer, 0, FRAMES);
+
+        assertEquals(1, mixer.activeVoices());
+        assertTrue(peak(buffer) > 0);
+    }
+
+    @Test
+    void testNoteOffReleasesVoice() {
+        mixer.apply(NoteEvent.noteOn(1, 440));
+        mixer.apply(NoteEvent.noteOn(2, 660));
+        mixer.apply(NoteEvent.noteOff(1));
+
+        // The released voice keeps sounding until its release stage ends
+        assertEquals(2, mixer.activeVoices());
+        long releaseFrames = Envelope.DEFAULT.releaseFrames(AudioConfig.SAMPLE_RATE);
+        for (long rendered = 0; rendered <= releaseFrames; rendered += FRAMES) {
+            mixer.render(buffer, 0, FRAMES);
+        }
+        assertEquals(1, mixer.activeVoices());
+    }
+
+    @Test
+    void testPolyphonyLimit() {
+        for (int id = 1; id <= 10; id++) {
+            mixer.apply(NoteEvent.noteOn(id, 220 + id * 10));
+        }
+        assertEquals(mixer.polyphony(), mixer.activeVoices());
+
+        // Output is clipped rather than wrapping around
+        mixer.render(buffer, 0, FRAMES);
+        assertTrue(peak(buffer) <= Short.MAX_VALUE);
+    }
+
+    private static int peak(byte[] pcm) {
+        int peak = 0;
+        for (int i = 0; i < pcm.length; i += 2) {
+            int s = (short) ((pcm[i] << 8) | (pcm[i + 1] & 0xFF));
+            peak = Math.max(peak, Math.abs(s));
+        }
+        return peak;
+    }
+}
+
+// VoicePoolTest.java
+class VoicePoolTest {
+    private static final int FRAMES = AudioConfig.BUFFER_SIZE / 2;
+
+    @Test
+    void testSlotsAreReused() {
+        VoicePool pool = new VoicePool(2, AudioConfig.SAMPLE_RATE);
+        int first = pool.allocate(1, 440, 1f, Waveform.CLASSIC);
+        pool.allocate(2, 550, 1f, Waveform.CLASSIC);
+        assertEquals(-1, pool.allocate(3, 660, 1f, Waveform.CLASSIC));
+
+        pool.release(1);
+        assertEquals(-1, pool.allocate(4, 660, 1f, Waveform.CLASSIC));
+
+        // The slot recycles itself once its release has faded out
+        float[] block = new float[FRAMES];
+        long releaseFrames = Envelope.DEFAULT.releaseFrames(AudioConfig.SAMPLE_RATE);
+        for (long rendered = 0; rendered <= releaseFrames; rendered += FRAMES) {
+            pool.applyEnvelope(first, block, FRAMES);
+        }
+        assertEquals(first, pool.allocate(4, 660, 1f, Waveform.CLASSIC));
+        assertEquals(4, pool.noteId[first]);
+        assertEquals(0.0, pool.phase[first], 0.0);
+    }
+
+    @Test
+    void testPhaseIsContinuousAcrossBlocks() {
+        VoicePool pool = new VoicePool(1, AudioConfig.SAMPLE_RATE);
+        int v = pool.allocate(1, 440, 1f, Waveform.CLASSIC);
+        float[] mix = new float[FRAMES];
+        pool.render(v, mix, FRAMES);
+
+        double expected = (440.0 / AudioConfig.SAMPLE_RATE * FRAMES) % 1.0;
+        assertEquals(expected, pool.phase[v], 1e-6);
+    }
+
+    @Test
+    void testSteadyStateRenderDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        VoiceMixer mixer = new VoiceMixer(AudioConfig.MAX_POLYPHONY, AudioConfig.SAMPLE_RATE);
+        NoteEvent[] presses = new NoteEvent[AudioConfig.MAX_POLYPHONY];
+        NoteEvent[] releases = new NoteEvent[AudioConfig.MAX_POLYPHONY];
+        for (int i = 0; i < presses.length; i++) {
+            presses[i] = NoteEvent.noteOn(i + 1, 220 + 20 * i);
+            releases[i] = NoteEvent.noteOff(i + 1);
+        }
+        byte[] buffer = new byte[FRAMES * 2];
+
+        // Warm up so the measured loop runs compiled code
+        for (int i = 0; i < 2_000; i++) {
+            playCycle(mixer, presses, releases, buffer);
+        }
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 200; i++) {
+            playCycle(mixer, presses, releases, buffer);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(0, allocated, "bytes allocated while rendering");
+    }
+
+    private static void playCycle(VoiceMixer mixer, NoteEvent[] presses,
+                                  NoteEvent[] releases, byte[] buffer) {
+        for (NoteEvent press : presses) {
+            mixer.apply(press);
+        }
+        mixer.render(buffer, 0, FRAMES);
+        for (NoteEvent release : releases) {
+            mixer.apply(release);
+        }
+        mixer.render(buffer, 0, FRAMES);
+    }
+}
+
+// OscillatorTest.java
+class OscillatorTest {
+    private static final int FRAMES = AudioConfig.BUFFER_SIZE / 2;
+
+    @Test
+    void testClassicPresetMatchesOriginalTimbre() {
+        VoicePool pool = new VoicePool(1, AudioConfig.SAMPLE_RATE);
+        int v = pool.allocate(1, 440, 1f, Waveform.CLASSIC);
+        float[] mix = new float[FRAMES];
+        pool.render(v, mix, FRAMES);
+
+        float[] expected = new float[FRAMES];
+        renderWithMathSin(expected, 440);
+        assertArrayEquals(expected, mix, 1e-4f);
+    }
+
+    @Test
+    void testTablesAreBandLimited() {
+        Wavetable saw = Waveform.SAW.wavetable();
+        double nyquist = AudioConfig.SAMPLE_RATE / 2.0;
+        for (double frequency : new double[] {27.5, 262, 1760, 4186, 12000}) {
+            float[] table = saw.forIncrement(frequency / AudioConfig.SAMPLE_RATE);
+            assertTrue(highestHarmonic(table) * frequency < nyquist,
+                "saw at " + frequency + " Hz aliases");
+        }
+    }
+
+    @Test
+    void testEveryWaveformStaysWithinHeadroom() {
+        double peak = AudioConfig.BASE_AMPLITUDE + AudioConfig.HARMONIC_AMPLITUDE;
+        for (Waveform waveform : Waveform.values()) {
+            float[] table = waveform.wavetable().forIncrement(1.0 / Wavetable.SIZE);
+            for (float s : table) {
+                assertTrue(Math.abs(s) <= peak + 1e-6, waveform + " exceeds headroom");
+            }
+        }
+    }
+
+    /** The per-sample loop the piano used before wavetables */
+    private static void renderWithMathSin(float[] mix, int frequency) {
+        double angle = 0;
+        double angleDelta = 2.0 * Math.PI * frequency / AudioConfig.SAMPLE_RATE;
+        for (int i = 0; i < mix.length; i++) {
+            double sample = Math.sin(angle) * AudioConfig.BASE_AMPLITUDE;
+            sample += Math.sin(angle * 2) * AudioConfig.HARMONIC_AMPLITUDE;
+            mix[i] = (float) sample;
+
+            angle += angleDelta;
+            if (angle > 2.0 * Math.PI) {
+                angle -= 2.0 * Math.PI;
+            }
+        }
+    }
+
+    /** Highest harmonic with significant energy, found by direct DFT */
+    private static int highestHarmonic(float[] table) {
+        int highest = 0;
+        for (int n = 1; n < Wavetable.SIZE / 2; n++) {
+            double re = 0;
+            double im = 0;
+            for (int i = 0; i < Wavetable.SIZE; i++) {
+                re += table[i] * Math.cos(2.0 * Math.PI * n * i / Wavetable.SIZE);
+                im += table[i] * Math.sin(2.0 * Math.PI * n * i / Wavetable.SIZE);
+            }
+            if (Math.hypot(re, im) / Wavetable.SIZE > 1e-5) {
+                highest = n;
+            }
+        }
+        return highest;
+    }
+}
+
+// OfflineRendererTest.java
+class OfflineRendererTest {
+    private static final int RATE = AudioConfig.SAMPLE_RATE;
+
+    @Test
+    void testWavOutputIsReadableWithoutDevice() throws Exception {
+        OfflineRenderer renderer = new OfflineRenderer(AudioConfig.MAX_POLYPHONY, RATE, 0);
+        List<NoteEvent> events = Arrays.asList(
+            NoteEvent.noteOn(0, 1, 262), NoteEvent.noteOff(RATE / 2, 1));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderer.renderWav(events, out);
+
+        AudioInputStream wav = AudioSystem.getAudioInputStream(
+            new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(RATE, wav.getFormat().getSampleRate());
+        assertEquals(16, wav.getFormat().getSampleSizeInBits());
+        assertEquals(1, wav.getFormat().getChannels());
+        assertFalse(wav.getFormat().isBigEndian());
+        assertEquals(RATE / 2, wav.getFrameLength());
+    }
+
+    @Test
+    void testEventsAreSampleAccurate() throws Exception {
+        int release = (int) Envelope.DEFAULT.releaseFrames(RATE);
+        OfflineRenderer renderer = new OfflineRenderer(4, RATE, release + 100);
+        // Deliberately unsorted and not aligned to the block size
+        List<NoteEvent> events = Arrays.asList(
+            NoteEvent.noteOff(3001, 1), NoteEvent.noteOn(1000, 1, 440));
+        short[] pcm = render(renderer, events);
+
+        assertEquals(3101 + release, pcm.length);
+        for (int i = 0; i <= 1000; i++) {
+            assertEquals(0, pcm[i], "sound before note-on at frame " + i);
+        }
+        assertNotEquals(0, pcm[1001]);
+        for (int i = 3001 + release; i < pcm.length; i++) {
+            assertEquals(0, pcm[i], "sound after note-off at frame " + i);
+        }
+    }
+
+    @Test
+    void testMatchesLiveMixer() throws Exception {
+        int frames = AudioConfig.BUFFER_SIZE / 2;
+        VoiceMixer mixer = new VoiceMixer(4, RATE);
+        mixer.apply(NoteEvent.noteOn(1, 330));
+        byte[] live = new byte[frames * 2];
+        mixer.render(live, 0, frames);
+
+        OfflineRenderer renderer = new OfflineRenderer(4, RATE, frames);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderer.render(Arrays.asList(NoteEvent.noteOn(0, 1, 330)), out);
+
+        assertArrayEquals(live, out.toByteArray());
+    }
+
+    @Test
+    void testRendersFasterThanRealTime() throws Exception {
+        OfflineRenderer renderer = new OfflineRenderer(AudioConfig.MAX_POLYPHONY, RATE, 0);
+        List<NoteEvent> events = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            events.add(NoteEvent.noteOn(0, i + 1, 220 + 40 * i));
+            events.add(NoteEvent.noteOff(10L * RATE, i + 1));
+        }
+
+        long start = System.nanoTime();
+        renderer.render(events, new ByteArrayOutputStream());
+        long elapsed = System.nanoTime() - start;
+
+        // Ten seconds of eight voices must take well under ten seconds
+        assertTrue(elapsed < 5_000_000_000L, "took " + elapsed / 1_000_000 + " ms");
+    }
+
+    @Test
+    void testMixerSetupAddsEffects() throws Exception {
+        int release = (int) Envelope.DEFAULT.releaseFrames(RATE);
+        List<NoteEvent> events = Arrays.asList(
+            NoteEvent.noteOn(0, 1, 440), NoteEvent.noteOff(RATE / 10, 1));
+        OfflineRenderer renderer = new OfflineRenderer(4, RATE, RATE);
+        short[] dry = render(renderer, events);
+
+        renderer.setMixerSetup(mixer -> {
+            DelayEffect delay = new DelayEffect(RATE);
+            delay.setTime(0.4);
+            mixer.effects().add(delay);
+        });
+        short[] wet = render(renderer, events);
+
+        assertEquals(dry.length, wet.length);
+        boolean echo = false;
+        for (int i = RATE / 10 + release; i < dry.length; i++) {
+            assertEquals(0, dry[i], "sound after the release at frame " + i);
+            echo |= wet[i] != 0;
+        }
+        assertTrue(echo, "no delay repeat after the release");
+    }
+
+    @Test
+    void testStereoWavCarriesBothChannels() throws Exception {
+        List<NoteEvent> events = Arrays.asList(
+            NoteEvent.noteOn(0, 1, 262), NoteEvent.noteOff(RATE / 4, 1));
+        OfflineRenderer renderer = new OfflineRenderer(4, RATE, 0);
+        short[] mono = render(renderer, events);
+
+        renderer.setChannels(2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderer.renderWav(events, out);
+        AudioInputStream wav = AudioSystem.getAudioInputStream(
+            new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(2, wav.getFormat().getChannels());
+        assertEquals(RATE / 4, wav.getFrameLength());
+
+        // A centred note is the mono signal on both sides
+        byte[] bytes = wav.readAllBytes();
+        assertEquals(mono.length * 4, bytes.length);
+        for (int i = 0; i < mono.length; i++) {
+            short left = (short) ((bytes[4 * i + 1] << 8) | (bytes[4 * i] & 0xFF));
+            short right = (short) ((bytes[4 * i + 3] << 8) | (bytes[4 * i + 2] & 0xFF));
+            assertEquals(mono[i], left, "left at frame " + i);
+            assertEquals(mono[i], right, "right at frame " + i);
+        }
+        assertThrows(IllegalArgumentException.class, () -> renderer.setChannels(3));
+    }
+
+    private static short[] render(OfflineRenderer renderer, List<NoteEvent> events) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderer.render(events, out);
+        byte[] bytes = out.toByteArray();
+        short[] pcm = new short[bytes.length / 2];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) ((bytes[2 * i] << 8) | (bytes[2 * i + 1] & 0xFF));
+        }
+        return pcm;
+    }
+}
+
+// BatchRendererTest.java
+class BatchRendererTest {
+    private static final int RATE = AudioConfig.SAMPLE_RATE;
+    private static final long TAIL = 500;
+
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = Files.createTempDirectory("batch-render");
+    }
+
+    @Test
+    void testCorpusMatchesSequentialRendering() throws Exception {
+        List<List<NoteEvent>> corpus = new ArrayList<>();
+        List<Path> outputs = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            corpus.add(phrase(0, 4, 200 + 25 * i));
+            outputs.add(directory.resolve("sequence-" + i + ".wav"));
+        }
+
+        try (BatchRenderer batch = new BatchRenderer(8, RATE, TAIL, 4)) {
+            batch.renderAll(corpus, outputs);
+        }
+
+        OfflineRenderer single = new OfflineRenderer(8, RATE, TAIL);
+        for (int i = 0; i < corpus.size(); i++) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            single.renderWav(corpus.get(i), expected);
+            assertArrayEquals(expected.toByteArray(), Files.readAllBytes(outputs.get(i)));
+        }
+    }
+
+    @Test
+    void testLongSequenceSegmentsMatchSingleRender() throws Exception {
+        List<NoteEvent> events = new ArrayList<>();
+        for (int bar = 0; bar < 6; bar++) {
+            // Each bar is followed by a rest longer than the tail
+            events.addAll(phrase(bar * RATE, bar * 10, 220 + 30 * bar));
+        }
+        Path output = directory.resolve("long.wav");
+
+        try (BatchRenderer batch = new BatchRenderer(8, RATE, TAIL, 4)) {
+            List<NoteEvent> sorted = OfflineRenderer.sorted(events);
+            long end = new OfflineRenderer(8, RATE, TAIL).lengthInFrames(sorted);
+            assertEquals(7, batch.splitPoints(sorted, end, RATE / 2).length);
+
+            batch.renderLong(events, output, RATE / 2);
+        }
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new OfflineRenderer(8, RATE, TAIL).renderWav(events, expected);
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(output));
+    }
+
+    @Test
+    void testNoSplitWhileNotesOverlap() {
+        List<NoteEvent> events = OfflineRenderer.sorted(Arrays.asList(
+            NoteEvent.noteOn(0, 1, 262), NoteEvent.noteOn(RATE, 2, 330),
+            NoteEvent.noteOff(RATE + 10, 1), NoteEvent.noteOff(3 * RATE, 2)));
+        try (BatchRenderer batch = new BatchRenderer(8, RATE, TAIL, 2)) {
+            assertArrayEquals(new long[] {0, 3 * RATE + TAIL},
+                              batch.splitPoints(events, 3 * RATE + TAIL, 1));
+        }
+    }
+
+    /** Three overlapping notes lasting about a third of a second */
+    private static List<NoteEvent> phrase(long start, int firstId, double root) {
+        List<NoteEvent> events = new ArrayList<>();
+        for (int n = 0; n < 3; n++) {
+            events.add(NoteEvent.noteOn(start + n * 1000, firstId + n, root * (1 + 0.25 * n)));
+            events.add(NoteEvent.noteOff(start + RATE / 3 + n * 700, firstId + n));
+        }
+        return events;
+    }
+}
+
+// BlockKernelTest.java
+class BlockKernelTest {
+    private static final int FRAMES = 1001;
+
+    @Test
+    void testScalarStages() {
+        BlockKernel kernel = ScalarBlockKernel.INSTANCE;
+        float[] src = {0.5f, -0.25f, 1f, -1f};
+        float[] mix = {0.1f, 0.1f, 0.5f, -0.5f};
+
+        kernel.accumulate(src, 0.5f, mix, 4);
+        assertArrayEquals(new float[] {0.35f, -0.025f, 1f, -1f}, mix, 1e-6f);
+
+        kernel.scaleAndClip(mix, 2f, 4);
+        assertArrayEquals(new float[] {0.7f, -0.05f, 1f, -1f}, mix, 1e-6f);
+
+        short[] pcm = new short[4];
+        kernel.toPcm16(mix, pcm, 4);
+        assertEquals(Short.MAX_VALUE, pcm[2]);
+        assertEquals(-Short.MAX_VALUE, pcm[3]);
+    }
+
+    @Test
+    void testDefaultKernelIsScalar() {
+        System.clearProperty("synth.kernel");
+        assertSame(ScalarBlockKernel.INSTANCE, BlockKernel.select());
+    }
+
+    @Test
+    void testSelectedKernelMatchesScalar() {
+        // Falls back to the scalar kernel when jdk.incubator.vector is absent
+        System.setProperty("synth.kernel", "vector");
+        BlockKernel kernel;
         try {
-            Thread.sleep(milliseconds);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            kernel = BlockKernel.select();
+        } finally {
+            System.clearProperty("synth.kernel");
         }
+
+        float[] src = new float[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            src[i] = (float) (1.5 * Math.sin(i * 0.05));
+        }
+        float[] expected = new float[FRAMES];
+        float[] actual = new float[FRAMES];
+        ScalarBlockKernel.INSTANCE.accumulate(src, 0.8f, expected, FRAMES);
+        kernel.accumulate(src, 0.8f, actual, FRAMES);
+        ScalarBlockKernel.INSTANCE.scaleAndClip(expected, 1.1f, FRAMES);
+        kernel.scaleAndClip(actual, 1.1f, FRAMES);
+        assertArrayEquals(expected, actual);
+
+        short[] expectedPcm = new short[FRAMES];
+        short[] actualPcm = new short[FRAMES];
+        ScalarBlockKernel.INSTANCE.toPcm16(expected, expectedPcm, FRAMES);
+        kernel.toPcm16(actual, actualPcm, FRAMES);
+        assertArrayEquals(expectedPcm, actualPcm);
     }
 
-    static boolean isAudioPlaying(SourceDataLine line) {
-        return line != null && line.isActive();
+    @Test
+    void testMasterGainIsAppliedBeforeClipping() {
+        VoiceMixer mixer = new VoiceMixer(1, AudioConfig.SAMPLE_RATE, ScalarBlockKernel.INSTANCE);
+        mixer.apply(NoteEvent.noteOn(1, 440));
+        float peak = peak(mixer.mix(AudioConfig.BUFFER_SIZE / 2));
+
+        mixer.setMasterGain(10f);
+        assertEquals(1f, peak(mixer.mix(AudioConfig.BUFFER_SIZE / 2)), 0f);
+        assertTrue(peak < 1f);
+    }
+
+    private static float peak(float[] block) {
+        float peak = 0;
+        for (float s : block) {
+            peak = Math.max(peak, Math.abs(s));
+        }
+        return peak;
+    }
+}
+
+// NoteEventQueueTest.java
+class NoteEventQueueTest {
+    @Test
+    void testFifoOrderAndCapacity() {
+        NoteEventQueue queue = new NoteEventQueue(5);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(NoteEvent.NOTE_ON, i, 100 + i, i));
+        }
+        assertFalse(queue.offer(NoteEvent.NOTE_ON, 8, 108, 8));
+
+        for (int i = 0; i < 8; i++) {
+            assertFalse(queue.isEmpty());
+            assertEquals(i, queue.peekId());
+            assertEquals(100.0 + i, queue.peekFrequency(), 0.0);
+            assertEquals(i, queue.peekTime());
+            queue.advance();
+        }
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.offer(NoteEvent.NOTE_OFF, 9, 0, 9));
+    }
+
+    @Test
+    void testStressHundredThousandPressReleasePairs() throws Exception {
+        int pairs = 100_000;
+        NoteEventQueue queue = new NoteEventQueue(AudioConfig.EVENT_QUEUE_CAPACITY);
+        VoiceMixer mixer = new VoiceMixer(AudioConfig.MAX_POLYPHONY, AudioConfig.SAMPLE_RATE);
+
+        Thread producer = new Thread(() -> {
+            for (int id = 1; id <= pairs; id++) {
+                while (!queue.offer(NoteEvent.NOTE_ON, id, 440, System.nanoTime())) {
+                    Thread.onSpinWait();
+                }
+                while (!queue.offer(NoteEvent.NOTE_OFF, id, 0, System.nanoTime())) {
+                    Thread.onSpinWait();
+                }
+            }
+        });
+
+        int[] received = new int[1];
+        String[] failure = new String[1];
+        long[] lastTime = {Long.MIN_VALUE};
+        Thread consumer = new Thread(() -> {
+            while (received[0] < 2 * pairs && failure[0] == null) {
+                if (queue.isEmpty()) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                int expectedId = received[0] / 2 + 1;
+                int expectedType = received[0] % 2 == 0 ? NoteEvent.NOTE_ON : NoteEvent.NOTE_OFF;
+                if (queue.peekId() != expectedId || queue.peekType() != expectedType
+                        || queue.peekTime() < lastTime[0]) {
+                    failure[0] = "event " + received[0] + " out of order";
+                }
+                lastTime[0] = queue.peekTime();
+                if (queue.peekType() == NoteEvent.NOTE_ON) {
+                    mixer.noteOn(queue.peekId(), queue.peekFrequency());
+                } else {
+                    mixer.noteOff(queue.peekId());
+                }
+                queue.advance();
+                received[0]++;
+            }
+        });
+
+        consumer.start();
+        producer.start();
+        producer.join(30_000);
+        consumer.join(30_000);
+
+        assertNull(failure[0]);
+        assertEquals(2 * pairs, received[0]);
+        assertTrue(queue.isEmpty());
+
+        byte[] block = new byte[AudioConfig.BUFFER_SIZE];
+        long releaseFrames = Envelope.DEFAULT.releaseFrames(AudioConfig.SAMPLE_RATE);
+        for (long rendered = 0; rendered <= releaseFrames; rendered += block.length / 2) {
+            mixer.render(block, 0, block.length / 2);
+        }
+        assertEquals(0, mixer.activeVoices());
+    }
+
+    @Test
+    void testEventsLandOnTheirSampleWithinTheBlock() {
+        int frames = AudioConfig.BUFFER_SIZE / 2;
+        long window = 10_000_000_000L;
+        AudioEngine engine = new AudioEngine(null, 4);
+        byte[] block = new byte[frames * 2];
+
+        // Posted in the middle of a very long window, so timing noise is far below one sample
+        long middle = System.nanoTime();
+        engine.noteOn(440);
+        engine.renderBlock(block, frames, middle - window / 2, middle + window / 2);
+
+        for (int i = 0; i <= frames / 2; i++) {
+            assertEquals(0, sample(block, i), "sound before the note at frame " + i);
+        }
+        assertNotEquals(0, sample(block, frames / 2 + 1));
+    }
+
+    @Test
+    void testLaterEventsWaitForTheirBlock() {
+        int frames = 64;
+        AudioEngine engine = new AudioEngine(null, 4);
+        byte[] block = new byte[frames * 2];
+
+        long before = System.nanoTime();
+        engine.noteOn(440);
+        engine.renderBlock(block, frames, before - 1_000_000, before - 1);
+        for (int i = 0; i < frames; i++) {
+            assertEquals(0, sample(block, i));
+        }
+
+        // A long window puts the event near the start of the block, whatever the call overhead
+        engine.renderBlock(block, frames, before - 1, System.nanoTime() + 1_000_000);
+        assertNotEquals(0, sample(block, frames - 1));
+    }
+
+    private static int sample(byte[] pcm, int frame) {
+        return (short) ((pcm[2 * frame] << 8) | (pcm[2 * frame + 1] & 0xFF));
+    }
+}
+
+// EnvelopeTest.java
+class EnvelopeTest {
+    private static final int RATE = AudioConfig.SAMPLE_RATE;
+
+    @Test
+    void testStagesFollowSettings() {
+        Envelope envelope = new Envelope(0.01, 0.02, 0.5f, 0.04);
+        VoicePool pool = new VoicePool(1, RATE);
+        int v = pool.allocate(1, 440, 1f, Waveform.CLASSIC, envelope);
+        float[] ones = new float[RATE / 10];
+
+        Arrays.fill(ones, 1f);
+        pool.applyEnvelope(v, ones, RATE / 100);
+        assertEquals(1f, ones[RATE / 100 - 1], 1e-3f);
+        assertEquals(VoicePool.DECAY, pool.envStage[v]);
+
+        Arrays.fill(ones, 1f);
+        pool.applyEnvelope(v, ones, RATE / 50 + 10);
+        assertEquals(VoicePool.SUSTAIN, pool.envStage[v]);
+        assertEquals(0.5f, pool.envLevel[v], 0f);
+
+        pool.release(1);
+        assertEquals(VoicePool.RELEASE, pool.envStage[v]);
+        // Released from half level, so half the release time reaches zero
+        Arrays.fill(ones, 1f);
+        pool.applyEnvelope(v, ones, RATE / 50 + 10);
+        assertEquals(VoicePool.IDLE, pool.envStage[v]);
+        assertEquals(0f, ones[RATE / 50 + 9], 0f);
+    }
+
+    @Test
+    void testReleaseHasNoClick() throws Exception {
+        OfflineRenderer renderer = new OfflineRenderer(1, RATE, Envelope.DEFAULT.releaseFrames(RATE));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderer.render(Arrays.asList(NoteEvent.noteOn(0, 1, 440), NoteEvent.noteOff(RATE / 4, 1)), out);
+        byte[] pcm = out.toByteArray();
+
+        // No jump between consecutive samples larger than the waveform itself produces
+        int largestStep = 0;
+        for (int i = 2; i < pcm.length; i += 2) {
+            int previous = (short) ((pcm[i - 2] << 8) | (pcm[i - 1] & 0xFF));
+            int current = (short) ((pcm[i] << 8) | (pcm[i + 1] & 0xFF));
+            largestStep = Math.max(largestStep, Math.abs(current - previous));
+        }
+        assertTrue(largestStep < 1000, "largest step " + largestStep);
+        assertEquals(0, pcm[pcm.length - 2]);
+        assertEquals(0, pcm[pcm.length - 1]);
+    }
+
+    @Test
+    void testInvalidSettingsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new Envelope(-1, 0, 0.5f, 0));
+        assertThrows(IllegalArgumentException.class, () -> new Envelope(0, 0, 1.5f, 0));
+    }
+
+    @Test
+    void testUiThreadNeverWaitsOnAudio() throws Exception {
+        // The device blocks in write() like a real line, at real-time pace
+        FakeSourceDataLine line = new FakeSourceDataLine();
+        AudioEngine engine = new AudioEngine(line, AudioConfig.MAX_POLYPHONY);
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean monitoring = threads.isThreadContentionMonitoringEnabled();
+        threads.setThreadContentionMonitoringEnabled(true);
+        long self = Thread.currentThread().getId();
+        engine.start();
+        try {
+            // Warm up, so class loading and initialization locks are out of the way
+            engine.noteOff(engine.noteOn(262));
+            java.lang.management.ThreadInfo before = threads.getThreadInfo(self);
+            long end = System.nanoTime() + 300_000_000L;
+            for (int i = 0; System.nanoTime() < end; i++) {
+                int id = engine.noteOn(262 + i % 24 * 10);
+                engine.noteOff(id);
+                // Spin rather than sleep, which would count as waiting
+                long next = System.nanoTime() + 1_000_000L;
+                while (System.nanoTime() < next) {
+                    Thread.onSpinWait();
+                }
+            }
+            java.lang.management.ThreadInfo after = threads.getThreadInfo(self);
+
+            assertTrue(line.blockedNanos() > 0, "device never blocked the render thread");
+            // Pause time of this thread, the FX thread's stand-in: never on a lock, never parked or waiting
+            assertEquals(0, after.getBlockedCount() - before.getBlockedCount(), "times blocked on a monitor");
+            assertEquals(0, after.getWaitedCount() - before.getWaitedCount(), "times waited or parked");
+            assertEquals(0, after.getBlockedTime() - before.getBlockedTime(), "ms blocked");
+            assertEquals(0, after.getWaitedTime() - before.getWaitedTime(), "ms waited");
+            assertFalse(line.writtenFrom(Thread.currentThread()), "noteOn or noteOff wrote to the line");
+            assertTrue(engine.metrics().notesOn() > 0);
+        } finally {
+            engine.close();
+            threads.setThreadContentionMonitoringEnabled(monitoring);
+        }
+    }
+}
+
+// LatencyTest.java
+class LatencyTest {
+    @Test
+    void testTunerHalvesUntilUnderrunThenBacksOff() {
+        LatencyTuner tuner = new LatencyTuner(512, 64, 1024);
+        assertFalse(tuner.onBlock(512, false));
+        assertTrue(tuner.onBlock(512, false));
+        assertEquals(256, tuner.blockFrames());
+        for (int i = 0; i < 3; i++) {
+            tuner.onBlock(256, false);
+        }
+        assertTrue(tuner.onBlock(256, false));
+        assertEquals(128, tuner.blockFrames());
+
+        assertTrue(tuner.onBlock(128, true));
+        assertEquals(256, tuner.blockFrames());
+        assertTrue(tuner.isSettled());
+        assertFalse(tuner.onBlock(256, true));
+        assertEquals(256, tuner.blockFrames());
+    }
+
+    @Test
+    void testTunerStopsAtMinimum() {
+        LatencyTuner tuner = new LatencyTuner(128, 64, 128);
+        assertTrue(tuner.onBlock(128, false));
+        assertFalse(tuner.onBlock(64, false));
+        assertFalse(tuner.onBlock(64, false));
+        assertEquals(64, tuner.blockFrames());
+        assertTrue(tuner.isSettled());
+    }
+
+    @Test
+    void testMetricsReportLatencyAndBudget() throws Exception {
+        FakeSourceDataLine line = new FakeSourceDataLine();
+        AudioEngine engine = new AudioEngine(line, AudioConfig.MAX_POLYPHONY);
+        engine.setBlockFrames(256);
+        engine.setLineBufferFrames(1024);
+        engine.start();
+        try {
+            Thread.sleep(100);
+            engine.noteOn(440);
+            Thread.sleep(100);
+
+            AudioMetrics metrics = engine.metrics();
+            assertTrue(metrics.blocks() > 0);
+            assertEquals(0, metrics.underruns());
+            long latency = metrics.lastLatencyNanos();
+            // At most one block of input delay plus a full line buffer, with scheduling slack
+            long bound = (256 + 1024) * 1_000_000_000L / AudioConfig.SAMPLE_RATE + 10_000_000L;
+            assertTrue(latency > 0 && latency < bound, "latency " + latency / 1000 + " us");
+            assertTrue(metrics.lastBudgetUsed() > 0 && metrics.lastBudgetUsed() < 1,
+                "budget " + metrics.lastBudgetUsed());
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    void testSlowWritesAreCountedAsUnderruns() throws Exception {
+        FakeSourceDataLine line = new FakeSourceDataLine();
+        AudioEngine engine = new AudioEngine(line, AudioConfig.MAX_POLYPHONY);
+        engine.setBlockFrames(128);
+        engine.setLineBufferFrames(256);
+        // Each block arrives after twice its own duration
+        line.setWriteDelayNanos(2 * 128 * 1_000_000_000L / AudioConfig.SAMPLE_RATE);
+        engine.start();
+        try {
+            Thread.sleep(100);
+            assertTrue(engine.metrics().underruns() > 0);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    void testFailingBlocksAreSilencedAndRenderingContinues() throws Exception {
+        FakeSourceDataLine line = new FakeSourceDataLine();
+        AudioEngine engine = new AudioEngine(line, AudioConfig.MAX_POLYPHONY);
+        java.util.concurrent.atomic.AtomicInteger failuresLeft = new java.util.concurrent.atomic.AtomicInteger(3);
+        engine.effects().set(new Effect() {
+            @Override
+            public void process(float[] left, float[] right, int frames) {
+                if (failuresLeft.getAndDecrement() > 0) {
+                    throw new IllegalStateException("broken effect");
+                }
+            }
+
+            @Override
+            public void reset() {
+            }
+        });
+        engine.start();
+        try {
+            Thread.sleep(100);
+            engine.noteOn(440);
+            Thread.sleep(100);
+            AudioMetrics metrics = engine.metrics();
+            assertEquals(3, metrics.renderFailures());
+            assertTrue(metrics.registry().dump().contains("synth_errors_total{source=\"render\"} 3\n"));
+            assertTrue(metrics.blocks() > 3, "blocks " + metrics.blocks());
+            assertEquals(1, metrics.notesOn());
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    void testLineBufferResizeReopensLine() throws Exception {
+        FakeSourceDataLine line = new FakeSourceDataLine();
+        AudioEngine engine = new AudioEngine(line, AudioConfig.MAX_POLYPHONY);
+        engine.start();
+        try {
+            assertEquals(AudioConfig.BLOCK_FRAMES * AudioConfig.LINE_BUFFER_BLOCKS * 2, line.getBufferSize());
+            engine.setBlockFrames(128);
+            engine.setLineBufferFrames(512);
+            Thread.sleep(100);
+            assertEquals(2, line.openCount());
+            assertEquals(1024, line.getBufferSize());
+            assertTrue(line.isRunning());
+        } finally {
+            engine.close();
+        }
+    }
+}
+
+// KeyboardLayoutTest.java
+class KeyboardLayoutTest {
+    private static final KeyboardLayout PIANO = new KeyboardLayout(21, 108, 52 * 20, 300, 180);
+
+    @Test
+    void testFullPianoHas88Keys() {
+        assertEquals(88, PIANO.keyCount());
+        assertEquals(52, PIANO.whiteKeyCount());
+        assertEquals(20, PIANO.keyWidth(21), 1e-9);
+        assertEquals(40.0 / 3, PIANO.keyWidth(22), 1e-9);
+    }
+
+    @Test
+    void testEveryKeyCentreHitsItsNote() {
+        for (int note = PIANO.lowNote(); note <= PIANO.highNote(); note++) {
+            double x = PIANO.keyX(note) + PIANO.keyWidth(note) / 2;
+            double y = PIANO.keyHeight(note) - 1;
+            assertEquals(note, PIANO.noteAt(x, y), "key " + note);
+        }
+    }
+
+    @Test
+    void testBlackKeysCoverWhiteKeysOnlyAboveTheirHeight() {
+        double boundary = PIANO.keyX(61) + PIANO.keyWidth(61) / 2; // Between C4 and D4
+        assertEquals(61, PIANO.noteAt(boundary - 1, 100));
+        assertEquals(60, PIANO.noteAt(boundary - 1, 250));
+        assertEquals(62, PIANO.noteAt(boundary + 1, 250));
+
+        // No black key between E and F
+        double ef = PIANO.keyX(65);
+        assertEquals(64, PIANO.noteAt(ef - 1, 100));
+        assertEquals(65, PIANO.noteAt(ef + 1, 100));
+    }
+
+    @Test
+    void testOutsideTheKeysIsNoNote() {
+        assertEquals(-1, PIANO.noteAt(-1, 100));
+        assertEquals(-1, PIANO.noteAt(PIANO.width(), 100));
+        assertEquals(-1, PIANO.noteAt(100, 300));
+    }
+
+    @Test
+    void testDirtyRangeCoversOverlappingKeys() {
+        // Repainting D4 must also repaint the black keys on either side
+        double x = PIANO.keyX(62);
+        assertTrue(PIANO.firstNoteFrom(x) <= 61);
+        assertTrue(PIANO.lastNoteTo(x + PIANO.keyWidth(62)) >= 63);
+        // ...and stays local however wide the keyboard is
+        assertTrue(PIANO.lastNoteTo(x + PIANO.keyWidth(62)) - PIANO.firstNoteFrom(x) <= 5);
+    }
+
+    @Test
+    void testRangeMustEndOnWhiteKeys() {
+        assertThrows(IllegalArgumentException.class, () -> new KeyboardLayout(22, 108, 1000, 300, 180));
+        assertThrows(IllegalArgumentException.class, () -> new KeyboardLayout(60, 48, 1000, 300, 180));
+        assertThrows(IllegalArgumentException.class, () -> new KeyboardLayout(60, 128, 1000, 300, 180));
+    }
+}
+
+// EffectsTest.java
+class EffectsTest {
+    private static final int RATE = AudioConfig.SAMPLE_RATE;
+    private static final int FRAMES = AudioConfig.BUFFER_SIZE / 2;
+
+    @Test
+    void testDelayEchoesAfterItsTime() {
+        DelayEffect delay = new DelayEffect(RATE);
+        delay.setTime(0.01);
+        delay.setFeedback(0.5);
+        delay.setMix(1);
+        settle(delay);
+
+        int spacing = (int) Math.round(0.01 * RATE);
+        float[] block = new float[3 * spacing + 10];
+        block[0] = 1f;
+        processMono(delay, block);
+        assertEquals(1f, block[0], 1e-6f);
+        assertEquals(1f, block[spacing], 1e-4f);
+        assertEquals(0.5f, block[2 * spacing], 1e-4f);
+        assertEquals(0.25f, block[3 * spacing], 1e-4f);
+        assertEquals(0f, block[spacing + 5], 1e-6f);
+    }
+
+    @Test
+    void testFilterPassesLowsAndCutsHighs() {
+        FilterEffect filter = new FilterEffect(RATE);
+        filter.setCutoff(1000);
+        filter.setResonance(0);
+        settle(filter);
+
+        assertTrue(gainAt(filter, 100) > 0.9);
+        assertTrue(gainAt(filter, 10000) < 0.02);
+    }
+
+    @Test
+    void testResonanceBoostsTheCutoff() {
+        FilterEffect flat = new FilterEffect(RATE);
+        flat.setCutoff(1000);
+        flat.setResonance(0);
+        FilterEffect peaked = new FilterEffect(RATE);
+        peaked.setCutoff(1000);
+        peaked.setResonance(0.9);
+        settle(flat);
+        settle(peaked);
+
+        assertTrue(gainAt(peaked, 1000) > 3 * gainAt(flat, 1000));
+    }
+
+    @Test
+    void testReverbTailDecays() {
+        ReverbEffect reverb = new ReverbEffect(48000);
+        reverb.setMix(1);
+        settle(reverb);
+
+        float[] block = new float[48000];
+        block[0] = 1f;
+        processMono(reverb, block);
+        float early = peak(block, 0, 4800);
+        float late = peak(block, 43200, 48000);
+        assertTrue(early > 0);
+        assertTrue(late < early / 10, "early " + early + ", late " + late);
+    }
+
+    @Test
+    void testChorusKeepsLevel() {
+        ChorusEffect chorus = new ChorusEffect(RATE);
+        chorus.setMix(0.5);
+        settle(chorus);
+        float level = gainAt(chorus, 440);
+        assertTrue(level > 0.5 && level < 1.05, "level " + level);
+    }
+
+    @Test
+    void testParameterChangesGlide() {
+        SmoothedParameter parameter = new SmoothedParameter(0f, 0.01, RATE);
+        parameter.set(1f);
+        parameter.beginBlock();
+        float first = parameter.next();
+        assertTrue(first > 0 && first < 0.01f, "jumped to " + first);
+        for (int i = 0; i < RATE / 10; i++) {
+            parameter.next();
+        }
+        assertEquals(1f, parameter.current(), 1e-4f);
+        assertTrue(parameter.isSettled());
+    }
+
+    @Test
+    void testChainCanBeSwappedWhileRendering() throws Exception {
+        VoiceMixer mixer = new VoiceMixer(4, RATE);
+        mixer.noteOn(1, 440);
+        Thread ui = new Thread(() -> {
+            for (int i = 0; i < 1_000; i++) {
+                mixer.effects().set(new FilterEffect(RATE), new DelayEffect(RATE));
+                mixer.effects().add(new ChorusEffect(RATE));
+                mixer.effects().set();
+            }
+        });
+        ui.start();
+        while (ui.isAlive()) {
+            float[] mix = mixer.mix(FRAMES);
+            for (int i = 0; i < FRAMES; i++) {
+                assertTrue(Math.abs(mix[i]) <= 1f);
+            }
+        }
+        ui.join();
+        assertEquals(0, mixer.effects().effects().length);
+    }
+
+    @Test
+    void testChainDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        VoiceMixer mixer = new VoiceMixer(AudioConfig.MAX_POLYPHONY, RATE);
+        mixer.effects().set(new FilterEffect(RATE), new ChorusEffect(RATE), new DelayEffect(RATE),
+            new ReverbEffect(RATE));
+        mixer.noteOn(1, 220);
+        mixer.noteOn(2, 330);
+        byte[] buffer = new byte[FRAMES * 2];
+
+        for (int i = 0; i < 2_000; i++) {
+            mixer.render(buffer, 0, FRAMES);
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 200; i++) {
+            mixer.render(buffer, 0, FRAMES);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(0, allocated, "bytes allocated while processing effects");
+    }
+
+    @Test
+    void testChannelsStayIndependent() {
+        FilterEffect filter = new FilterEffect(RATE);
+        float[] left = new float[FRAMES];
+        float[] right = new float[FRAMES];
+        left[0] = 1f;
+        filter.process(left, right, FRAMES);
+        assertTrue(peak(left, 0, FRAMES) > 0);
+        assertEquals(0f, peak(right, 0, FRAMES), 0f);
+    }
+
+    @Test
+    void testChorusAndReverbWidenAMonoSource() {
+        for (Effect effect : new Effect[] {new ChorusEffect(RATE), new ReverbEffect(RATE)}) {
+            float[] left = new float[RATE / 2];
+            for (int i = 0; i < left.length; i++) {
+                left[i] = (float) Math.sin(2 * Math.PI * 440 * i / RATE);
+            }
+            float[] right = left.clone();
+            effect.process(left, right, left.length);
+            assertFalse(Arrays.equals(left, right), effect.getClass().getSimpleName());
+        }
+    }
+
+    /** Feeds the same signal to both channels and keeps the left result in {@code block} */
+    private static void processMono(Effect effect, float[] block) {
+        effect.process(block, block.clone(), block.length);
+    }
+
+    /** Runs silence through the effect until its parameters reach their targets */
+    private static void settle(Effect effect) {
+        effect.process(new float[RATE], new float[RATE], RATE);
+        effect.reset();
+    }
+
+    /** Steady-state output peak for a unit sine */
+    private static float gainAt(Effect effect, double hz) {
+        float[] block = new float[RATE / 2];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (float) Math.sin(2 * Math.PI * hz * i / RATE);
+        }
+        processMono(effect, block);
+        return peak(block, block.length / 2, block.length);
+    }
+
+    private static float peak(float[] block, int from, int to) {
+        float peak = 0;
+        for (int i = from; i < to; i++) {
+            peak = Math.max(peak, Math.abs(block[i]));
+        }
+        return peak;
+    }
+}
+
+// NoteTableTest.java
+class NoteTableTest {
+    @Test
+    void testEqualTemperamentMatchesFormula() {
+        NoteTable table = NoteTable.DEFAULT;
+        for (int note = 0; note < NoteTable.NOTES; note++) {
+            double expected = 440 * Math.pow(2, (note - 69) / 12.0);
+            assertEquals(expected, table.frequency(note), expected * 1e-12);
+        }
+        assertEquals(261.626, table.frequency(60), 1e-3);
+    }
+
+    @Test
+    void testReferencePitchIsConfigurable() {
+        NoteTable table = new NoteTable(432, Temperament.EQUAL, 48000);
+        assertEquals(432, table.frequency(NoteTable.A4), 0.0);
+        assertEquals(216, table.frequency(NoteTable.A4 - 12), 1e-9);
+        assertEquals(48000, table.sampleRate());
+    }
+
+    @Test
+    void testTemperamentsKeepA4AndOctaves() {
+        for (Temperament temperament : Temperament.values()) {
+            NoteTable table = new NoteTable(440, temperament, AudioConfig.SAMPLE_RATE);
+            assertEquals(440, table.frequency(NoteTable.A4), 1e-9, temperament.name());
+            for (int note = 1; note < NoteTable.NOTES; note++) {
+                assertTrue(table.frequency(note) > table.frequency(note - 1), temperament + " at " + note);
+            }
+            for (int note = 12; note < NoteTable.NOTES; note++) {
+                assertEquals(2 * table.frequency(note - 12), table.frequency(note), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    void testJustIntervalsArePure() {
+        NoteTable table = new NoteTable(440, Temperament.JUST, AudioConfig.SAMPLE_RATE);
+        assertEquals(1.5, table.frequency(67) / table.frequency(60), 1e-12); // C-G fifth
+        assertEquals(1.25, table.frequency(64) / table.frequency(60), 1e-12); // C-E major third
+    }
+
+    @Test
+    void testInvalidReferenceIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new NoteTable(0, Temperament.EQUAL, 44100));
+        assertThrows(IllegalArgumentException.class, () -> new NoteTable(440, Temperament.EQUAL, 0));
+    }
+}
+
+// MidiTest.java
+class MidiTest {
+    private static final int FRAMES = AudioConfig.BUFFER_SIZE / 2;
+
+    private LoopbackMidiDevice loopback;
+    private Receiver keys;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        loopback = new LoopbackMidiDevice();
+        loopback.open();
+        keys = loopback.getReceiver();
+    }
+
+    @AfterEach
+    void tearDown() {
+        loopback.close();
+    }
+
+    @Test
+    void testNotesReachEngineOffTheUiThread() throws Exception {
+        AudioEngine engine = new AudioEngine(null, AudioConfig.MAX_POLYPHONY);
+        loopback.getTransmitter().setReceiver(new MidiInput(engine));
+
+        keys.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        keys.send(new ShortMessage(ShortMessage.NOTE_ON, 3, 64, 100), -1);
+        loopback.awaitDelivery();
+        render(engine, 1);
+        assertEquals(2, engine.activeVoices());
+
+        keys.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), -1);
+        // Note-on with velocity 0 is a note-off
+        keys.send(new ShortMessage(ShortMessage.NOTE_ON, 3, 64, 0), -1);
+        loopback.awaitDelivery();
+        render(engine, releaseBlocks());
+        assertEquals(0, engine.activeVoices());
+        assertEquals(0, engine.droppedEvents());
+    }
+
+    @Test
+    void testVelocitySetsLoudness() throws Exception {
+        double loud = sustainedPeak(127);
+        double soft = sustainedPeak(64);
+        assertEquals(MidiInput.velocityGain(64), soft / loud, 0.02);
+    }
+
+    @Test
+    void testSustainPedalHoldsReleasedNotes() throws Exception {
+        AudioEngine engine = new AudioEngine(null, AudioConfig.MAX_POLYPHONY);
+        loopback.getTransmitter().setReceiver(new MidiInput(engine));
+
+        keys.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 64, 127), -1);
+        keys.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        keys.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), -1);
+        loopback.awaitDelivery();
+        render(engine, releaseBlocks());
+        assertEquals(1, engine.activeVoices());
+
+        keys.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 64, 0), -1);
+        loopback.awaitDelivery();
+        render(engine, releaseBlocks());
+        assertEquals(0, engine.activeVoices());
+    }
+
+    @Test
+    void testClosedInputsCanBeOpenedAgain() throws Exception {
+        AudioEngine engine = new AudioEngine(null, AudioConfig.MAX_POLYPHONY);
+        // Twice as many as fit at once: each close must give its input back
+        for (int i = 0; i < 2 * AudioConfig.MAX_EVENT_INPUTS; i++) {
+            MidiInput midi = new MidiInput(engine);
+            midi.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + i % 12, 100), -1);
+            // Queues the release; the render thread applies it before the input goes
+            midi.close();
+            render(engine, 1);
+        }
+        render(engine, releaseBlocks());
+        assertEquals(0, engine.activeVoices());
+        assertEquals(0, engine.droppedEvents());
+    }
+
+    @Test
+    void testReopenedInputIssuesNewIdentifiers() {
+        AudioEngine engine = new AudioEngine(null, AudioConfig.MAX_POLYPHONY);
+        NoteInput first = engine.openInput();
+        int firstId = first.playNote(60, 1f);
+        first.close();
+        // Still queued, so the slot stays taken until a block drains it
+        NoteInput other = engine.openInput();
+        assertNotEquals(first.index, other.index);
+        render(engine, 1);
+
+        NoteInput reopened = engine.openInput();
+        assertEquals(first.index, reopened.index);
+        assertNotEquals(firstId, reopened.playNote(60, 1f));
+
+        first.noteOff(firstId);
+        assertEquals(1, engine.droppedEvents());
+    }
+
+    @Test
+    void testProbeMeasuresLoopbackLatency() throws Exception {
+        MidiLatencyProbe probe = new MidiLatencyProbe(200);
+        loopback.getTransmitter().setReceiver(probe);
+
+        MidiLatencyProbe.Report report = probe.run(keys, 1_000_000L, 1_000_000_000L);
+        assertEquals(200, report.received);
+        assertTrue(report.medianNanos > 0);
+        assertTrue(report.maxNanos >= report.p99Nanos && report.p99Nanos >= report.medianNanos);
+        assertTrue(report.medianNanos < 10_000_000L, report.toString());
+    }
+
+    private double sustainedPeak(int velocity) throws Exception {
+        AudioEngine engine = new AudioEngine(null, AudioConfig.MAX_POLYPHONY);
+        loopback.getTransmitter().setReceiver(new MidiInput(engine));
+        keys.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 69, velocity), -1);
+        loopback.awaitDelivery();
+        byte[] out = render(engine, 4);
+        int peak = 0;
+        for (int i = 0; i < out.length; i += 2) {
+            peak = Math.max(peak, Math.abs((short) ((out[i] << 8) | (out[i + 1] & 0xFF))));
+        }
+        return peak;
+    }
+
+    private static int releaseBlocks() {
+        return (int) (Envelope.DEFAULT.releaseFrames(AudioConfig.SAMPLE_RATE) / FRAMES) + 2;
+    }
+
+    /** Renders {@code blocks} blocks, applying every event posted so far; returns the last one */
+    private static byte[] render(AudioEngine engine, int blocks) {
+        byte[] out = new byte[FRAMES * 2];
+        for (int i = 0; i < blocks; i++) {
+            long now = System.nanoTime();
+            engine.renderBlock(out, FRAMES, now - 1, now + 1);
+        }
+        return out;
+    }
+}
+
+// VoiceAllocatorTest.java
+class VoiceAllocatorTest {
+    private static final int FRAMES = AudioConfig.BUFFER_SIZE / 2;
+
+    @Test
+    void testOldestVoiceIsStolen() {
+        VoicePool pool = new VoicePool(2, AudioConfig.SAMPLE_RATE);
+        pool.stealPolicy = StealPolicy.OLDEST;
+        int first = pool.allocate(1, 440, 1f, Waveform.CLASSIC);
+        pool.allocate(2, 550, 1f, Waveform.CLASSIC);
+
+        assertEquals(first, pool.allocate(3, 660, 1f, Waveform.CLASSIC));
+        assertEquals(3, pool.noteId[first]);
+        assertEquals(2, pool.activeCount());
+        assertEquals(1, pool.steals);
+    }
+
+    @Test
+    void testReleasingVoiceIsStolenFirst() {
+        VoicePool pool = new VoicePool(2, AudioConfig.SAMPLE_RATE);
+        pool.stealPolicy = StealPolicy.OLDEST;
+        pool.allocate(1, 440, 1f, Waveform.CLASSIC);
+        int second = pool.allocate(2, 550, 1f, Waveform.CLASSIC);
+        pool.release(2);
+
+        assertEquals(second, pool.allocate(3, 660, 1f, Waveform.CLASSIC));
+    }
+
+    @Test
+    void testQuietestVoiceIsStolen() {
+        VoicePool pool = new VoicePool(3, AudioConfig.SAMPLE_RATE);
+        pool.stealPolicy = StealPolicy.QUIETEST;
+        float[] block = new float[FRAMES];
+        int loud = pool.allocate(1, 440, 1f, Waveform.CLASSIC);
+        int quiet = pool.allocate(2, 550, 0.1f, Waveform.CLASSIC);
+        int medium = pool.allocate(3, 660, 0.5f, Waveform.CLASSIC);
+        for (int v : new int[] {loud, quiet, medium}) {
+            pool.applyEnvelope(v, block, FRAMES);
+        }
+
+        assertEquals(quiet, pool.allocate(4, 770, 1f, Waveform.CLASSIC));
+    }
+
+    @Test
+    void testStolenVoiceKeepsPhaseAndLevel() {
+        VoicePool pool = new VoicePool(1, AudioConfig.SAMPLE_RATE);
+        pool.stealPolicy = StealPolicy.OLDEST;
+        float[] mix = new float[FRAMES];
+        int v = pool.allocate(1, 440, 1f, Waveform.CLASSIC);
+        pool.render(v, mix, FRAMES);
+        double phase = pool.phase[v];
+        float level = pool.envLevel[v];
+
+        pool.allocate(2, 660, 1f, Waveform.CLASSIC);
+        assertEquals(phase, pool.phase[v], 0.0);
+        assertEquals(level, pool.envLevel[v], 0f);
+        assertEquals(660.0 / AudioConfig.SAMPLE_RATE, pool.increment[v], 1e-12);
+    }
+
+    @Test
+    void testSameNoteRetriggersItsVoice() {
+        VoicePool pool = new VoicePool(4, AudioConfig.SAMPLE_RATE);
+        pool.retriggerSameNote = true;
+        int v = pool.allocate(1, 440, 1f, Waveform.CLASSIC);
+        pool.allocate(2, 550, 1f, Waveform.CLASSIC);
+
+        assertEquals(v, pool.allocate(3, 440, 0.5f, Waveform.CLASSIC));
+        assertEquals(2, pool.activeCount());
+        assertEquals(3, pool.noteId[v]);
+
+        pool.retriggerSameNote = false;
+        assertNotEquals(v, pool.allocate(4, 440, 1f, Waveform.CLASSIC));
+        assertEquals(3, pool.activeCount());
+    }
+
+    @Test
+    void testVoiceLimitBelowCapacity() {
+        VoicePool pool = new VoicePool(8, AudioConfig.SAMPLE_RATE);
+        pool.voiceLimit = 2;
+        pool.allocate(1, 440, 1f, Waveform.CLASSIC);
+        pool.allocate(2, 550, 1f, Waveform.CLASSIC);
+        assertEquals(-1, pool.allocate(3, 660, 1f, Waveform.CLASSIC));
+
+        pool.stealPolicy = StealPolicy.OLDEST;
+        pool.allocate(3, 660, 1f, Waveform.CLASSIC);
+        assertEquals(2, pool.activeCount());
+    }
+
+    @Test
+    void testLoweringMaxPolyphonyFadesOutExcessVoices() {
+        VoiceMixer mixer = new VoiceMixer(8, AudioConfig.SAMPLE_RATE);
+        byte[] buffer = new byte[FRAMES * 2];
+        for (int id = 1; id <= 8; id++) {
+            mixer.apply(NoteEvent.noteOn(id, 220 + 20 * id));
+        }
+        mixer.setMaxPolyphony(3);
+        // Longer than the steal fade, far shorter than the default release
+        mixer.render(buffer, 0, (int) (AudioConfig.STEAL_FADE_SECONDS * AudioConfig.SAMPLE_RATE) + 8);
+
+        assertEquals(3, mixer.activeVoices());
+        assertEquals(5, mixer.steals());
+        assertEquals(3, mixer.maxPolyphony());
+    }
+
+    @Test
+    void testGovernorShedsUnderLoadAndRecovers() {
+        LoadGovernor governor = new LoadGovernor(0.7, 0.4, 4, 2);
+        int limit = 64;
+        for (int i = 0; i < 200; i++) {
+            limit = governor.onBlock(0.95, limit, 64);
+        }
+        assertEquals(4, limit);
+        assertTrue(governor.load() > 0.7);
+
+        for (int i = 0; i < 400; i++) {
+            limit = governor.onBlock(0.1, limit, 64);
+        }
+        assertEquals(64, limit);
+        assertTrue(governor.load() < 0.4);
+    }
+
+    @Test
+    void testGovernorNeverExceedsConfiguredMaximum() {
+        LoadGovernor governor = new LoadGovernor(0.7, 0.4, 4, 0);
+        assertEquals(16, governor.onBlock(0.1, 0, 16));
+        assertEquals(8, governor.onBlock(0.1, 0, 8));
+    }
+
+    @Test
+    void testEngineShedsVoicesWhenOverloaded() throws Exception {
+        FakeSourceDataLine line = new FakeSourceDataLine();
+        AudioEngine engine = new AudioEngine(line, 96);
+        engine.setBlockFrames(128);
+        engine.setLineBufferFrames(512);
+        long blockNanos = 128 * 1_000_000_000L / AudioConfig.SAMPLE_RATE;
+        // Stands in for an effect heavy enough to use most of each block
+        engine.effects().add(new Effect() {
+            @Override
+            public void process(float[] left, float[] right, int frames) {
+                long end = System.nanoTime() + blockNanos * 9 / 10;
+                while (System.nanoTime() < end) {
+                    Thread.onSpinWait();
+                }
+            }
+
+            @Override
+            public void reset() {
+            }
+        });
+        engine.start();
+        try {
+            for (int i = 0; i < 80; i++) {
+                engine.noteOn(110 + 10 * i);
+            }
+            Thread.sleep(1000);
+
+            AudioMetrics metrics = engine.metrics();
+            assertTrue(metrics.cpuLoad() > AudioConfig.LOAD_HIGH, "load " + metrics.cpuLoad());
+            assertTrue(metrics.voiceLimit() < 80, "limit " + metrics.voiceLimit());
+            assertTrue(metrics.activeVoices() < 80, "voices " + metrics.activeVoices());
+            assertTrue(metrics.voicesStolen() > 0);
+        } finally {
+            engine.close();
+        }
+    }
+}
+
+// RecordingTest.java
+class RecordingTest {
+    private Path dir;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dir = Files.createTempDirectory("recording");
+    }
+
+    private Path record() throws Exception {
+        Path file = dir.resolve("take.perf");
+        try (PerformanceRecorder recorder = new PerformanceRecorder(file, 1_000)) {
+            recorder.noteOn(1_000 + 10_000_000L, 60, 127);
+            recorder.noteOn(1_000 + 10_000_000L, 64, 90);
+            recorder.noteOff(1_000 + 510_123_457L, 60);
+            recorder.noteOff(1_000 + 750_000_001L, 64);
+            assertEquals(4, recorder.events());
+        }
+        return file;
+    }
+
+    @Test
+    void testRoundTrip() throws Exception {
+        Performance performance = Performance.read(record());
+
+        assertEquals(4, performance.size());
+        assertEquals(10_000_000L, performance.time(0));
+        assertEquals(10_000_000L, performance.time(1));
+        assertEquals(510_123_457L, performance.time(2));
+        assertEquals(64, performance.note(1));
+        assertEquals(90, performance.velocity(1));
+        assertTrue(performance.isNoteOn(0));
+        assertFalse(performance.isNoteOn(2));
+        assertEquals(750_000_001L, performance.durationNanos());
+    }
+
+    @Test
+    void testFormatIsCompact() throws Exception {
+        // Five header bytes; deltas of up to a few seconds take four varint bytes
+        assertTrue(Files.size(record()) <= 5 + 4 * 6, "size " + Files.size(record()));
+    }
+
+    @Test
+    void testRejectsOtherFiles() throws Exception {
+        Path file = dir.resolve("other.perf");
+        Files.write(file, new byte[] {'R', 'I', 'F', 'F', 0, 0});
+        assertThrows(java.io.IOException.class, () -> Performance.read(file));
+
+        Path truncated = dir.resolve("truncated.perf");
+        byte[] full = Files.readAllBytes(record());
+        Files.write(truncated, Arrays.copyOf(full, full.length - 1));
+        assertThrows(java.io.IOException.class, () -> Performance.read(truncated));
+    }
+
+    @Test
+    void testFramesMatchTheSampleRate() throws Exception {
+        Performance performance = Performance.read(record());
+        NoteTable tuning = NoteTable.DEFAULT;
+
+        for (int rate : new int[] {44_100, 48_000, 96_000}) {
+            List<NoteEvent> events = performance.toNoteEvents(tuning, rate);
+            assertEquals(4, events.size());
+            assertEquals(rate / 100, events.get(0).frame);
+            assertEquals(510_123_457L * rate / 1_000_000_000L, events.get(2).frame);
+            assertEquals(events.get(0).id, events.get(2).id);
+            assertEquals(MidiInput.velocityGain(90), events.get(1).gain, 0f);
+        }
+        assertEquals(3L * 96_000 + 48_000, Performance.frameAt(3_500_000_000L, 96_000));
+        // Ten hours at 192 kHz would overflow a naive nanos * rate
+        assertEquals(36_000L * 192_000, Performance.frameAt(36_000_000_000_000L, 192_000));
+    }
+
+    @Test
+    void testOfflineReplayAtHigherRate() throws Exception {
+        Performance performance = Performance.read(record());
+        OfflineRenderer renderer = new OfflineRenderer(AudioConfig.MAX_POLYPHONY, 96_000, 0);
+        List<NoteEvent> events = performance.toNoteEvents(NoteTable.DEFAULT, 96_000);
+        ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        renderer.render(events, pcm);
+
+        byte[] samples = pcm.toByteArray();
+        assertEquals(Performance.frameAt(750_000_001L, 96_000) * 2, samples.length);
+        int onset = (int) Performance.frameAt(10_000_000L, 96_000);
+        for (int frame = 0; frame < onset; frame++) {
+            assertEquals(0, samples[frame * 2] | samples[frame * 2 + 1]);
+        }
+        boolean sounding = false;
+        for (int frame = onset; frame < onset + 100; frame++) {
+            sounding |= (samples[frame * 2] | samples[frame * 2 + 1]) != 0;
+        }
+        assertTrue(sounding);
+    }
+
+    @Test
+    void testMidiExport() throws Exception {
+        Path midi = dir.resolve("take.mid");
+        Performance.read(record()).writeMidi(midi);
+
+        Sequence sequence = MidiSystem.getSequence(midi.toFile());
+        assertEquals(Sequence.PPQ, sequence.getDivisionType(), 0f);
+        Track track = sequence.getTracks()[0];
+        List<long[]> notes = new ArrayList<>();
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            if (event.getMessage() instanceof ShortMessage) {
+                ShortMessage message = (ShortMessage) event.getMessage();
+                notes.add(new long[] {event.getTick(), message.getCommand(), message.getData1()});
+            }
+        }
+        assertEquals(4, notes.size());
+        assertArrayEquals(new long[] {Performance.tickAt(10_000_000L), ShortMessage.NOTE_ON, 60}, notes.get(0));
+        assertArrayEquals(new long[] {Performance.tickAt(510_123_457L), ShortMessage.NOTE_OFF, 60}, notes.get(2));
+        // 120 bpm at 960 ticks per quarter: 1920 ticks per second
+        assertEquals(1440, Performance.tickAt(750_000_001L));
+    }
+
+    @Test
+    void testLiveReplayPlaysEveryNote() throws Exception {
+        FakeSourceDataLine line = new FakeSourceDataLine();
+        AudioEngine engine = new AudioEngine(line, AudioConfig.MAX_POLYPHONY);
+        engine.setBlockFrames(256);
+        engine.start();
+        try (PerformancePlayer player = new PerformancePlayer(engine.openInput(), Performance.read(record()))) {
+            player.start();
+            // Both notes are held between 10 ms and 510 ms after the lead
+            Thread.sleep(PerformancePlayer.LEAD_NANOS / 1_000_000 + 250);
+            assertEquals(2, engine.metrics().activeVoices());
+            assertTrue(player.await(2000));
+            assertEquals(0, engine.droppedEvents());
+        } finally {
+            engine.close();
+        }
+    }
+}
+
+// OutputFormatTest.java
+class OutputFormatTest {
+    private static final int FRAMES = 256;
+
+    @Test
+    void testNegotiationPrefersStereoFloatAtAdvertisedRate() {
+        boolean nativeBigEndian = java.nio.ByteOrder.nativeOrder() == java.nio.ByteOrder.BIG_ENDIAN;
+        OutputFormat best = OutputFormat.negotiate(List.of(), format -> true);
+        assertEquals(48000, best.sampleRate);
+        assertEquals(2, best.channels);
+        assertEquals(SampleEncoding.FLOAT_32, best.encoding);
+        assertEquals(nativeBigEndian, best.bigEndian);
+
+        assertEquals(44100, OutputFormat.negotiate(List.of(22050, 44100), format -> true).sampleRate);
+    }
+
+    @Test
+    void testNegotiationFallsBackToWhatTheDeviceAccepts() {
+        OutputFormat chosen = OutputFormat.negotiate(List.of(), format ->
+            format.getSampleRate() == 44100 && format.getSampleSizeInBits() == 16 && format.isBigEndian());
+        assertEquals(44100, chosen.sampleRate);
+        assertEquals(2, chosen.channels);
+        assertEquals(SampleEncoding.PCM_16, chosen.encoding);
+        assertTrue(chosen.bigEndian);
+
+        assertSame(OutputFormat.DEFAULT, OutputFormat.negotiate(List.of(), format -> false));
+    }
+
+    @Test
+    void testFormatsDescribeTheirFrames() {
+        OutputFormat format = new OutputFormat(96000, 2, SampleEncoding.PCM_24, false);
+        AudioFormat audio = format.toAudioFormat();
+        assertEquals(6, format.frameBytes());
+        assertEquals(6, audio.getFrameSize());
+        assertEquals(24, audio.getSampleSizeInBits());
+        assertEquals(96000f, audio.getSampleRate(), 0f);
+        assertFalse(audio.isBigEndian());
+        assertThrows(IllegalArgumentException.class,
+            () -> new OutputFormat(48000, 6, SampleEncoding.PCM_16, true));
+    }
+
+    @Test
+    void testEveryEncoderRoundTrips() {
+        float[] left = new float[FRAMES];
+        float[] right = new float[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            left[i] = (float) Math.sin(2 * Math.PI * i / 64);
+            right[i] = (float) (0.5 * Math.cos(2 * Math.PI * i / 32));
+        }
+        left[0] = 1f;
+        right[0] = -1f;
+        for (SampleEncoding encoding : SampleEncoding.values()) {
+            for (int channels = 1; channels <= 2; channels++) {
+                for (boolean bigEndian : new boolean[] {true, false}) {
+                    OutputFormat format = new OutputFormat(48000, channels, encoding, bigEndian);
+                    byte[] out = new byte[FRAMES * format.frameBytes() + 3];
+                    format.encoder().encode(left, right, FRAMES, out, 3);
+                    float tolerance = encoding == SampleEncoding.PCM_16 ? 1e-4f : 1e-6f;
+                    for (int i = 0; i < FRAMES; i++) {
+                        int at = 3 + i * format.frameBytes();
+                        if (channels == 2) {
+                            assertEquals(left[i], decode(out, at, format), tolerance, format.toString());
+                            assertEquals(right[i], decode(out, at + encoding.bytes, format), tolerance);
+                        } else {
+                            assertEquals((left[i] + right[i]) / 2, decode(out, at, format), tolerance,
+                                format.toString());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testMonoPcm16MatchesTheOriginalLineFormat() {
+        VoiceMixer legacy = new VoiceMixer(4, AudioConfig.SAMPLE_RATE);
+        VoiceMixer encoded = new VoiceMixer(4, AudioConfig.SAMPLE_RATE);
+        legacy.noteOn(1, 440);
+        encoded.noteOn(1, 440);
+        byte[] expected = new byte[FRAMES * 2];
+        byte[] actual = new byte[FRAMES * 2];
+        legacy.render(expected, 0, FRAMES);
+        encoded.render(actual, 0, FRAMES, OutputFormat.DEFAULT.encoder());
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    void testPanPlacesVoicesInTheStereoField() {
+        VoiceMixer mixer = new VoiceMixer(4, AudioConfig.SAMPLE_RATE);
+        mixer.noteOn(1, 440, 0.5f, -1f);
+        mixer.mixStereo(FRAMES);
+        assertTrue(peak(mixer.left()) > 0.1f);
+        assertEquals(0f, peak(mixer.right()), 1e-6f);
+
+        VoiceMixer centred = new VoiceMixer(4, AudioConfig.SAMPLE_RATE);
+        centred.noteOn(1, 440, 0.5f, 0f);
+        centred.mixStereo(FRAMES);
+        assertArrayEquals(centred.left(), centred.right());
+        // Constant power: a hard-panned voice carries the power of both centred channels
+        assertEquals(Math.sqrt(2) * peak(centred.left()), peak(mixer.left()), 1e-3);
+    }
+
+    @Test
+    void testKeysSpreadAcrossTheField() {
+        AudioEngine engine = new AudioEngine(null, 4);
+        assertEquals(0f, engine.keyPan(60), 0f);
+        engine.setKeyPanSpread(60, 84, 0.6f);
+        assertEquals(-0.6f, engine.keyPan(60), 1e-6f);
+        assertEquals(0f, engine.keyPan(72), 1e-6f);
+        assertEquals(0.6f, engine.keyPan(84), 1e-6f);
+        assertEquals(0.6f, engine.keyPan(100), 1e-6f);
+        engine.setKeyPan(72, -2f);
+        assertEquals(-1f, engine.keyPan(72), 0f);
+    }
+
+    @Test
+    void testEngineRunsInANegotiatedFormat() throws Exception {
+        FakeSourceDataLine line = new FakeSourceDataLine();
+        OutputFormat format = new OutputFormat(96000, 2, SampleEncoding.FLOAT_32, false);
+        AudioEngine engine = new AudioEngine(line, AudioConfig.MAX_POLYPHONY, format);
+        engine.setBlockFrames(512);
+        engine.setLineBufferFrames(2048);
+        engine.start();
+        try {
+            engine.playNote(64);
+            Thread.sleep(100);
+            assertTrue(line.getFormat().matches(format.toAudioFormat()));
+            assertEquals(2048 * 8, line.getBufferSize());
+            assertEquals(96000, engine.sampleRate());
+            assertTrue(engine.metrics().blocks() > 0);
+            assertEquals(0, engine.metrics().underruns());
+        } finally {
+            engine.close();
+        }
+    }
+
+    private static float decode(byte[] out, int at, OutputFormat format) {
+        java.nio.ByteBuffer bytes = java.nio.ByteBuffer.wrap(out)
+            .order(format.bigEndian ? java.nio.ByteOrder.BIG_ENDIAN : java.nio.ByteOrder.LITTLE_ENDIAN);
+        switch (format.encoding) {
+            case FLOAT_32:
+                return bytes.getFloat(at);
+            case PCM_16:
+                return bytes.getShort(at) / (float) Short.MAX_VALUE;
+            default:
+                int b0 = out[at] & 0xFF;
+                int b1 = out[at + 1] & 0xFF;
+                int b2 = out[at + 2] & 0xFF;
+                int value = format.bigEndian ? b0 << 16 | b1 << 8 | b2 : b2 << 16 | b1 << 8 | b0;
+                return (value << 8 >> 8) / (float) ((1 << 23) - 1);
+        }
+    }
+
+    private static float peak(float[] block) {
+        float peak = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            peak = Math.max(peak, Math.abs(block[i]));
+        }
+        return peak;
+    }
+}
+
+// TelemetryTest.java
+class TelemetryTest {
+    private static final int FRAMES = 256;
+
+    @Test
+    void testRegistryWritesPrometheusText() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Counter presses = registry.counter("test_presses_total", "Presses");
+        registry.gauge("test_load", "Load", () -> 0.5);
+        MetricsRegistry.Histogram times = registry.histogram("test_seconds", "Times", 0.01, 0.1);
+        presses.increment();
+        presses.add(2);
+        times.observe(0.002);
+        times.observe(0.01);
+        times.observe(0.05);
+        times.observe(5);
+
+        String dump = registry.dump();
+        assertTrue(dump.contains("# HELP test_presses_total Presses\n# TYPE test_presses_total counter\n"
+            + "test_presses_total 3\n"), dump);
+        assertTrue(dump.contains("# TYPE test_load gauge\ntest_load 0.5\n"), dump);
+        assertTrue(dump.contains("test_seconds_bucket{le=\"0.01\"} 2\n"
+            + "test_seconds_bucket{le=\"0.1\"} 3\n"
+            + "test_seconds_bucket{le=\"+Inf\"} 4\n"), dump);
+        assertTrue(dump.contains("test_seconds_count 4\n"), dump);
+        assertEquals(4, times.count());
+        assertEquals(5.062, times.sum(), 1e-9);
+    }
+
+    @Test
+    void testLabeledCounterWritesEveryValue() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.LabeledCounter errors = registry.labeledCounter("test_errors_total", "Errors",
+            "source", "render", "midi");
+        errors.increment("midi");
+        errors.increment("midi");
+
+        assertEquals(0, errors.get("render"));
+        assertEquals(2, errors.get("midi"));
+        assertTrue(registry.dump().contains("# TYPE test_errors_total counter\n"
+            + "test_errors_total{source=\"render\"} 0\n"
+            + "test_errors_total{source=\"midi\"} 2\n"), registry.dump());
+        assertThrows(IllegalArgumentException.class, () -> errors.increment("disk"));
+    }
+
+    @Test
+    void testRejectsBadRegistrations() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_total", "Total");
+        assertThrows(IllegalArgumentException.class, () -> registry.counter("test_total", "Again"));
+        assertThrows(IllegalArgumentException.class, () -> registry.gauge("test-load", "Dash", () -> 0));
+        assertThrows(IllegalArgumentException.class, () -> registry.histogram("test_seconds", "Unordered", 1, 0.5));
+    }
+
+    @Test
+    void testEngineMetricsCountNotesAndBlocks() {
+        AudioEngine engine = new AudioEngine(null, 4);
+        long start = System.nanoTime();
+        int id = engine.noteOn(440);
+        engine.noteOff(id);
+        engine.renderBlock(new byte[FRAMES * 2], FRAMES, start, System.nanoTime() + 1);
+        engine.metrics().recordBlock(2_000_000, FRAMES, true);
+        engine.metrics().recordLatency(12_000_000);
+
+        assertEquals(1, engine.metrics().notesOn());
+        assertEquals(1, engine.metrics().notesOff());
+        String dump = engine.metrics().registry().dump();
+        assertTrue(dump.contains("synth_notes_on_total 1\n"), dump);
+        assertTrue(dump.contains("synth_underruns_total 1\n"), dump);
+        assertTrue(dump.contains("synth_events_dropped_total 0\n"), dump);
+        assertTrue(dump.contains("synth_block_render_seconds_bucket{le=\"0.0025\"} 1\n"), dump);
+        assertTrue(dump.contains("synth_note_latency_seconds_bucket{le=\"0.01\"} 0\n"), dump);
+        assertTrue(dump.contains("synth_note_latency_seconds_bucket{le=\"0.015\"} 1\n"), dump);
+        assertTrue(dump.contains("jvm_gc_collections_total "), dump);
+    }
+
+    @Test
+    void testServerAnswersScrapes() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_total", "Total").increment();
+        try (MetricsServer server = new MetricsServer(registry, 0)) {
+            java.net.URL url = new java.net.URL("http://127.0.0.1:" + server.port() + MetricsServer.PATH);
+            java.net.HttpURLConnection get = (java.net.HttpURLConnection) url.openConnection();
+            assertEquals(200, get.getResponseCode());
+            assertTrue(get.getContentType().startsWith("text/plain"));
+            String body = new String(get.getInputStream().readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+            assertEquals(registry.dump(), body);
+
+            java.net.HttpURLConnection post = (java.net.HttpURLConnection) url.openConnection();
+            post.setRequestMethod("POST");
+            assertEquals(405, post.getResponseCode());
+        }
+    }
+
+    @Test
+    void testFlightRecorderCapturesEngineEvents() throws Exception {
+        Path file = Files.createTempDirectory("telemetry").resolve("engine.jfr");
+        try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+            recording.start();
+            assertTrue(SynthEvents.isRecording());
+
+            AudioEngine engine = new AudioEngine(null, 4);
+            long start = System.nanoTime();
+            int id = engine.noteOn(440);
+            engine.noteOff(id);
+            engine.renderBlock(new byte[FRAMES * 2], FRAMES, start, System.nanoTime() + 1);
+
+            VoicePool pool = new VoicePool(1, AudioConfig.SAMPLE_RATE);
+            pool.stealPolicy = StealPolicy.OLDEST;
+            pool.allocate(7, 440, 1f, Waveform.SINE);
+            pool.allocate(8, 550, 1f, Waveform.SINE);
+
+            SynthEvents.blockRendered(FRAMES, 1_000_000, 0.2, 1, 4);
+            SynthEvents.underrun(FRAMES, FRAMES * 4);
+            recording.stop();
+            recording.dump(file);
+        }
+        assertFalse(SynthEvents.isRecording());
+
+        List<jdk.jfr.consumer.RecordedEvent> events = jdk.jfr.consumer.RecordingFile.readAllEvents(file);
+        jdk.jfr.consumer.RecordedEvent noteOn = only(events, "synth.NoteOn");
+        assertEquals(440.0, noteOn.getDouble("frequency"), 1e-9);
+        assertTrue(noteOn.getInt("noteId") != 0);
+        assertEquals(noteOn.getInt("noteId"), only(events, "synth.NoteOff").getInt("noteId"));
+        jdk.jfr.consumer.RecordedEvent steal = only(events, "synth.VoiceSteal");
+        assertEquals(7, steal.getInt("stolenNoteId"));
+        assertEquals(8, steal.getInt("newNoteId"));
+        assertEquals("OLDEST", steal.getString("policy"));
+        assertEquals(1_000_000, only(events, "synth.BlockRender").getDuration("renderTime").toNanos());
+        assertEquals(FRAMES * 4, only(events, "synth.Underrun").getInt("lineBufferFrames"));
+    }
+
+    private static jdk.jfr.consumer.RecordedEvent only(List<jdk.jfr.consumer.RecordedEvent> events, String name) {
+        List<jdk.jfr.consumer.RecordedEvent> matching = new ArrayList<>();
+        for (jdk.jfr.consumer.RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                matching.add(event);
+            }
+        }
+        assertEquals(1, matching.size(), name);
+        return matching.get(0);
+    }
+}
+
+// PianoSynthTest.java
+class PianoSynthTest {
+    private PianoSynth synth;
+
+    @BeforeEach
+    void setUp() {
+        synth = PianoSynth.headless(OutputFormat.DEFAULT);
+    }
+
+    @AfterEach
+    void tearDown() {
+        synth.close();
+    }
+
+    @Test
+    void testFrequencies() {
+        assertEquals(261.63, synth.noteTable().frequency(60), 0.01);
+        assertEquals(440, synth.noteTable().frequency(69), 1e-9);
+    }
+
+    @Test
+    void testNotesAreTrackedPerKey() {
+        assertTrue(synth.noteOn(60, 127));
+        assertFalse(synth.noteOn(60, 127));
+        assertTrue(synth.noteOn(64, 90));
+        assertTrue(synth.isSounding(60));
+        assertEquals(2, synth.activeNoteCount());
+
+        synth.noteOff(60);
+        synth.noteOff(60);
+        assertFalse(synth.isSounding(60));
+        assertEquals(1, synth.activeNoteCount());
+
+        synth.allNotesOff();
+        assertEquals(0, synth.activeNoteCount());
+    }
+
+    @Test
+    void testRapidPressesLeaveNothingSounding() {
+        for (int i = 0; i < 1000; i++) {
+            int note = AudioConfig.LOWEST_KEY + i % 24;
+            synth.noteOn(note, 127);
+            synth.noteOff(note);
+        }
+        assertEquals(0, synth.activeNoteCount());
+        assertEquals(0, synth.engine().droppedEvents());
+    }
+
+    @Test
+    void testRendersPcmWithoutALine() {
+        // Longer than one block, so the pull is split
+        int frames = AudioConfig.BUFFER_SIZE;
+        byte[] out = new byte[frames * OutputFormat.DEFAULT.frameBytes()];
+        synth.render(out, frames);
+        assertEquals(0, peak(out));
+
+        // The note starts where its timestamp falls in the first pull and sounds throughout the second
+        synth.noteOn(69, 127);
+        synth.render(out, frames);
+        synth.render(out, frames);
+        assertTrue(peak(out) > 1000, "peak " + peak(out));
+        assertEquals(1, synth.engine().metrics().notesOn());
+    }
+
+    @Test
+    void testHeadlessEngineCannotStart() {
+        assertThrows(IllegalStateException.class, () -> synth.engine().start());
+    }
+
+    private static int peak(byte[] pcm) {
+        int peak = 0;
+        for (int i = 0; i < pcm.length; i += 2) {
+            peak = Math.max(peak, Math.abs((short) (pcm[i] << 8 | pcm[i + 1] & 0xFF)));
+        }
+        return peak;
+    }
+}
+
+// SamplerTest.java
+class SamplerTest {
+    private static final int FRAMES = 256;
+
+    @Test
+    void testZonesAreChosenByKeyAndVelocity() throws Exception {
+        short[] pcm = new short[64];
+        SampleBank bank = SampleBank.open(write(new SampleBankWriter()
+            .add(pcm, 44100, 48, 36, 59, 1, 63, 0, 0)
+            .add(pcm, 44100, 48, 36, 59, 64, 127, 0, 0)
+            .add(pcm, 44100, 72, 60, 84, 1, 127, 0, 0)));
+        List<SampleZone> zones = bank.zones();
+
+        assertSame(zones.get(0), bank.zone(48, 40));
+        assertSame(zones.get(1), bank.zone(48, 100));
+        assertSame(zones.get(2), bank.zone(72, 1));
+        // Keys outside every zone use the nearest one
+        assertSame(zones.get(2), bank.zone(100, 127));
+        assertSame(zones.get(1), bank.zone(21, 127));
+        assertSame(zones.get(1), bank.zone(NoteTable.DEFAULT.frequency(48), MidiInput.velocityGain(100),
+            NoteTable.DEFAULT));
+    }
+
+    @Test
+    void testRootNotePlaysTheRecordingAndOctaveUpSkipsFrames() throws Exception {
+        short[] ramp = new short[1000];
+        for (int i = 0; i < ramp.length; i++) {
+            ramp[i] = (short) (i * 32);
+        }
+        SampleZone zone = SampleBank.open(write(new SampleBankWriter()
+            .add(ramp, AudioConfig.SAMPLE_RATE, 60, 0, 127, 1, 127, 0, 0))).zone(60, 127);
+        float unit = zone.sample(1);
+
+        assertEquals(1.0, zone.step(NoteTable.DEFAULT.frequency(60), AudioConfig.SAMPLE_RATE), 1e-9);
+        assertEquals(2.0, zone.step(NoteTable.DEFAULT.frequency(72), AudioConfig.SAMPLE_RATE), 1e-9);
+        assertEquals(0.5, zone.step(NoteTable.DEFAULT.frequency(60), 2 * AudioConfig.SAMPLE_RATE), 1e-9);
+
+        float[] block = new float[FRAMES];
+        double position = zone.read(0.5, 2.0, block, FRAMES);
+        assertEquals(0.5 + 2.0 * FRAMES, position, 1e-9);
+        // Linear interpolation between the two frames around each position
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals((0.5 + 2 * i) * unit, block[i], 1e-5);
+        }
+    }
+
+    @Test
+    void testLoopWrapsAndOneShotEnds() throws Exception {
+        short[] pcm = new short[200];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (i * 100);
+        }
+        SampleBank bank = SampleBank.open(write(new SampleBankWriter()
+            .add(pcm, AudioConfig.SAMPLE_RATE, 60, 0, 127, 1, 63, 100, 150)
+            .add(pcm, AudioConfig.SAMPLE_RATE, 60, 0, 127, 64, 127, 0, 0)));
+        SampleZone looped = bank.zone(60, 1);
+        float[] block = new float[FRAMES];
+
+        double position = looped.read(0, 1.0, block, FRAMES);
+        assertTrue(position >= 100 && position < 150, "position " + position);
+        assertEquals(looped.sample(149), block[149], 0f);
+        assertEquals(looped.sample(100), block[150], 0f);
+        assertFalse(looped.isFinished(position));
+
+        // The one-shot voice frees its slot once the sample has played out
+        VoicePool pool = new VoicePool(1, AudioConfig.SAMPLE_RATE);
+        int v = pool.allocate(1, NoteTable.DEFAULT.frequency(60), 1f, 0f, Waveform.SINE, Envelope.DEFAULT, bank);
+        assertNotSame(looped, pool.zone[v]);
+        pool.render(v, block, FRAMES);
+        assertEquals(0f, block[FRAMES - 1]);
+        pool.applyEnvelope(v, block, FRAMES);
+        pool.render(v, block, FRAMES);
+        pool.applyEnvelope(v, block, FRAMES);
+        assertEquals(VoicePool.IDLE, pool.envStage[v]);
+    }
+
+    @Test
+    void testRetunedNotesKeepTheirKeysZone() throws Exception {
+        short[] pcm = new short[64];
+        SampleBank bank = SampleBank.open(write(new SampleBankWriter()
+            .add(pcm, AudioConfig.SAMPLE_RATE, 68, 0, 68, 1, 127, 0, 0)
+            .add(pcm, AudioConfig.SAMPLE_RATE, 69, 69, 127, 1, 127, 0, 0)));
+        SampleZone a = bank.zone(69, 127);
+        // Baroque pitch puts A4 closer to equal-tempered G#4 than to A4
+        NoteTable baroque = new NoteTable(415, Temperament.EQUAL, AudioConfig.SAMPLE_RATE);
+        NoteTable just = new NoteTable(AudioConfig.A4_FREQUENCY, Temperament.JUST, AudioConfig.SAMPLE_RATE);
+        for (NoteTable table : new NoteTable[] {baroque, just, NoteTable.DEFAULT}) {
+            for (int note = 0; note < NoteTable.NOTES; note++) {
+                assertEquals(note, table.note(table.frequency(note)));
+            }
+        }
+
+        VoicePool pool = new VoicePool(1, AudioConfig.SAMPLE_RATE);
+        pool.tuning = baroque;
+        int v = pool.allocate(1, baroque.frequency(69), 1f, 0f, Waveform.SINE, Envelope.DEFAULT, bank);
+        assertSame(a, pool.zone[v]);
+        // The recording is at standard pitch, so it is played a little slower to sound at 415 Hz
+        assertEquals(415.0 / AudioConfig.A4_FREQUENCY, pool.sampleStep[v], 1e-9);
+    }
+
+    @Test
+    void testStepLongerThanTheLoopStaysInsideIt() throws Exception {
+        short[] pcm = new short[16];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (i * 1000);
+        }
+        // A four-frame loop at the very end, read five frames at a time
+        SampleZone zone = SampleBank.open(write(new SampleBankWriter()
+            .add(pcm, AudioConfig.SAMPLE_RATE, 60, 0, 127, 1, 127, 12, 16))).zone(60, 127);
+        float[] block = new float[FRAMES];
+
+        double position = zone.read(0, 5.0, block, FRAMES);
+        assertTrue(position >= 12 && position < 16 + 5, "position " + position);
+        for (int i = 3; i < FRAMES; i++) {
+            // Positions 15, 20, 25, ... fold to 15, 12, 13, 14, 15, ...
+            assertEquals(zone.sample(12 + (i * 5 - 12) % 4), block[i], 0f, "frame " + i);
+        }
+    }
+
+    @Test
+    void testVoicesShareTheMappingAndHeapStaysFlat() throws Exception {
+        // 64 MB of samples
+        SampleBankWriter writer = new SampleBankWriter();
+        short[] pcm = new short[4_000_000];
+        for (int i = 0; i < 8; i++) {
+            writer.add(pcm, AudioConfig.SAMPLE_RATE, 24 + 12 * i, 24 + 12 * i, 35 + 12 * i, 1, 127, 0, pcm.length);
+        }
+        Path file = write(writer);
+        pcm = null;
+        writer = null;
+
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        SampleBank bank = SampleBank.open(file);
+        VoiceMixer mixer = new VoiceMixer(AudioConfig.MAX_POLYPHONY, AudioConfig.SAMPLE_RATE);
+        mixer.setInstrument(bank);
+        for (int i = 0; i < AudioConfig.MAX_POLYPHONY; i++) {
+            mixer.noteOn(i + 1, NoteTable.DEFAULT.frequency(30 + 5 * i));
+        }
+        byte[] out = new byte[FRAMES * 2];
+        for (int i = 0; i < 100; i++) {
+            mixer.render(out, 0, FRAMES);
+        }
+        System.gc();
+        long grown = runtime.totalMemory() - runtime.freeMemory() - before;
+
+        assertEquals(AudioConfig.MAX_POLYPHONY, mixer.activeVoices());
+        assertTrue(grown < 4_000_000, "heap grew by " + grown + " bytes for a " + Files.size(file) + " byte bank");
+        assertSame(bank.zone(30, 127), bank.zone(32, 1));
+    }
+
+    @Test
+    void testRejectsBadBanks() throws Exception {
+        Path file = Files.createTempFile("bank", ".swsb");
+        Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+        assertThrows(java.io.IOException.class, () -> SampleBank.open(file));
+
+        Path loop = write(new SampleBankWriter().add(new short[10], 44100, 60, 0, 127, 1, 127, 5, 20));
+        assertThrows(java.io.IOException.class, () -> SampleBank.open(loop));
+    }
+
+    private static Path write(SampleBankWriter writer) throws Exception {
+        Path file = Files.createTempFile("bank", ".swsb");
+        file.toFile().deleteOnExit();
+        writer.write(file);
+        return file;
+    }
+}
+
+// NoteCacheTest.java
+class NoteCacheTest {
+    private static final int FRAMES = 256;
+
+    @Test
+    void testCachedAttacksSoundExactlyLikeLiveOnes() {
+        VoiceMixer live = new VoiceMixer(AudioConfig.MAX_POLYPHONY, AudioConfig.SAMPLE_RATE);
+        VoiceMixer cached = new VoiceMixer(AudioConfig.MAX_POLYPHONY, AudioConfig.SAMPLE_RATE);
+        NoteCache cache = NoteCache.forRate(1 << 20, AudioConfig.SAMPLE_RATE);
+        cached.setNoteCache(cache);
+        byte[] expected = new byte[FRAMES * 2];
+        byte[] actual = new byte[FRAMES * 2];
+
+        // The rapid-repeat pattern: one key pressed and released 100 times, blocks of odd lengths
+        double frequency = NoteTable.DEFAULT.frequency(60);
+        for (int id = 1; id <= 100; id++) {
+            live.noteOn(id, frequency);
+            cached.noteOn(id, frequency);
+            for (int block = 0; block < 6; block++) {
+                int frames = 97 + block * 31;
+                if (block == 4) {
+                    live.noteOff(id);
+                    cached.noteOff(id);
+                }
+                live.render(expected, 0, frames);
+                cached.render(actual, 0, frames);
+                assertArrayEquals(expected, actual, "press " + id + ", block " + block);
+            }
+        }
+        // The first press records the attack; the two after it come before the recording is complete
+        assertEquals(3, cache.misses());
+        assertEquals(97, cache.hits());
+        assertEquals(0.97, cache.hitRate(), 1e-9);
+        assertEquals(cache.frames() * 4L, cache.memoryBytes());
+    }
+
+    @Test
+    void testLeastRecentlyUsedEntryIsEvicted() {
+        NoteCache cache = new NoteCache(2 * 4 * FRAMES, FRAMES);
+        assertEquals(2, cache.capacity());
+        VoicePool pool = new VoicePool(4, AudioConfig.SAMPLE_RATE);
+        pool.setCache(cache);
+        float[] block = new float[FRAMES];
+
+        play(pool, 1, 220, block);
+        play(pool, 2, 330, block);
+        play(pool, 3, 220, block);
+        // 330 Hz is now the least recently used and makes room for 440 Hz
+        play(pool, 4, 440, block);
+        assertEquals(1, cache.evictions());
+        assertEquals(cache.capacityBytes(), cache.memoryBytes());
+
+        long hits = cache.hits();
+        play(pool, 5, 220, block);
+        assertEquals(hits + 1, cache.hits());
+        play(pool, 6, 330, block);
+        assertEquals(hits + 1, cache.hits());
+    }
+
+    @Test
+    void testStolenRecordingIsDiscarded() {
+        NoteCache cache = new NoteCache(4 * 4 * FRAMES, FRAMES);
+        VoicePool pool = new VoicePool(1, AudioConfig.SAMPLE_RATE);
+        pool.stealPolicy = StealPolicy.OLDEST;
+        pool.setCache(cache);
+        float[] block = new float[FRAMES];
+
+        int v = pool.allocate(1, 220, 1f, Waveform.SAW);
+        pool.render(v, block, FRAMES / 2);
+        pool.allocate(2, 330, 1f, Waveform.SAW);
+        assertEquals(-1, pool.cacheSlot[v]);
+        assertEquals(0, cache.memoryBytes());
+    }
+
+    @Test
+    void testPrerenderFillsWithoutCountingMisses() {
+        NoteCache cache = NoteCache.forRate(1 << 20, AudioConfig.SAMPLE_RATE);
+        cache.prerender(NoteTable.DEFAULT, AudioConfig.LOWEST_KEY, AudioConfig.HIGHEST_KEY, 1f,
+            Waveform.CLASSIC, null);
+        assertEquals(24L * cache.frames() * 4, cache.memoryBytes());
+        assertEquals(0, cache.misses());
+
+        AudioEngine engine = new AudioEngine(null, 4);
+        engine.setNoteCache(cache);
+        long start = System.nanoTime();
+        engine.playNote(64);
+        engine.renderBlock(new byte[FRAMES * 2], FRAMES, start, System.nanoTime() + 1);
+        assertEquals(1, cache.hits());
+        String dump = engine.metrics().registry().dump();
+        assertTrue(dump.contains("synth_note_cache_hits_total 1\n"), dump);
+        assertTrue(dump.contains("synth_note_cache_bytes " + (double) cache.memoryBytes() + "\n"), dump);
+    }
+
+    private static void play(VoicePool pool, int id, double frequency, float[] block) {
+        int v = pool.allocate(id, frequency, 1f, Waveform.SAW);
+        pool.render(v, block, FRAMES);
+        pool.release(id);
+        pool.releaseStep[v] = 1f;
+        pool.applyEnvelope(v, block, FRAMES);
+    }
+}
+
+// UnisonTest.java
+class UnisonTest {
+    private static final int RATE = AudioConfig.SAMPLE_RATE;
+    private static final int FRAMES = 512;
+
+    @Test
+    void testSingleOscillatorIsThePlainVoice() {
+        VoiceMixer plain = new VoiceMixer(4, RATE);
+        VoiceMixer unison = new VoiceMixer(4, RATE);
+        unison.setUnison(new Unison(1, 40, 1f));
+        plain.setWaveform(Waveform.SAW);
+        unison.setWaveform(Waveform.SAW);
+        plain.noteOn(1, 220);
+        unison.noteOn(1, 220);
+        for (int block = 0; block < 4; block++) {
+            plain.mixStereo(FRAMES);
+            unison.mixStereo(FRAMES);
+            assertArrayEquals(plain.left(), unison.left());
+            assertArrayEquals(plain.right(), unison.right());
+        }
+    }
+
+    @Test
+    void testDetuneAndWidthSpreadEvenly() {
+        Unison seven = new Unison(7, 30, 0.5f);
+        assertEquals(Math.pow(2, -15 / 1200.0), seven.ratio(0), 1e-12);
+        assertEquals(1.0, seven.ratio(3), 1e-12);
+        assertEquals(Math.pow(2, 15 / 1200.0), seven.ratio(6), 1e-12);
+        assertEquals(0f, seven.pan(3), 0f);
+        // The outermost oscillators sit on opposite sides at the full width
+        assertEquals(-0.5f, seven.pan(0), 1e-6f);
+        assertEquals(-0.5f, seven.pan(6), 1e-6f);
+        assertEquals(0.5f * 2 / 3, seven.pan(1), 1e-6f);
+
+        assertThrows(IllegalArgumentException.class, () -> new Unison(0, 30, 0.5f));
+        assertThrows(IllegalArgumentException.class, () -> new Unison(Unison.MAX_OSCILLATORS + 1, 30, 0.5f));
+        assertThrows(IllegalArgumentException.class, () -> new Unison(7, -1, 0.5f));
+        assertThrows(IllegalArgumentException.class, () -> new Unison(7, 30, 1.5f));
+    }
+
+    @Test
+    void testWidthSpreadsTheStackAcrossChannels() {
+        VoiceMixer narrow = new VoiceMixer(1, RATE);
+        VoiceMixer wide = new VoiceMixer(1, RATE);
+        narrow.setUnison(new Unison(7, 30, 0f));
+        wide.setUnison(new Unison(7, 30, 1f));
+        narrow.noteOn(1, 220);
+        wide.noteOn(1, 220);
+        narrow.mixStereo(FRAMES);
+        wide.mixStereo(FRAMES);
+        assertArrayEquals(narrow.left(), narrow.right());
+        assertFalse(Arrays.equals(wide.left(), wide.right()));
+    }
+
+    @Test
+    void testUndetunedStackKeepsTheNotePitch() {
+        // 441 Hz repeats every 100 frames; oscillators in unison only differ in phase
+        VoiceMixer mixer = new VoiceMixer(1, RATE);
+        mixer.setWaveform(Waveform.SAW);
+        mixer.setUnison(new Unison(Unison.MAX_OSCILLATORS, 0, 0f));
+        mixer.noteOn(1, 441);
+        for (int block = 0; block < 20; block++) {
+            mixer.mixStereo(FRAMES);
+        }
+        float[] out = mixer.left();
+        float peak = 0f;
+        for (int i = 0; i + 100 < FRAMES; i++) {
+            assertEquals(out[i], out[i + 100], 1e-3f, "frame " + i);
+            peak = Math.max(peak, Math.abs(out[i]));
+        }
+        assertTrue(peak > 0.01f, "peak " + peak);
+    }
+
+    @Test
+    void testStackLevelStaysNearAPlainVoice() {
+        double plain = rms(new Unison(1, 0, 0f));
+        for (int oscillators : new int[] {2, 7, 16}) {
+            double ratio = rms(new Unison(oscillators, 30, 0f)) / plain;
+            assertTrue(ratio > 0.5 && ratio < 2, oscillators + " oscillators at " + ratio + " times the level");
+        }
+    }
+
+    private static double rms(Unison unison) {
+        VoiceMixer mixer = new VoiceMixer(1, RATE);
+        mixer.setWaveform(Waveform.SAW);
+        mixer.setUnison(unison);
+        mixer.noteOn(1, 220);
+        double sum = 0;
+        for (int block = 0; block < 40; block++) {
+            mixer.mixStereo(FRAMES);
+            for (float sample : mixer.left()) {
+                sum += sample * sample;
+            }
+        }
+        return Math.sqrt(sum / (40 * FRAMES));
+    }
+
+    @Test
+    void testUnisonNotesBypassTheNoteCache() {
+        VoiceMixer mixer = new VoiceMixer(4, RATE);
+        NoteCache cache = NoteCache.forRate(1 << 20, RATE);
+        mixer.setNoteCache(cache);
+        mixer.setUnison(new Unison(7, 30, 0.8f));
+        mixer.noteOn(1, 220);
+        mixer.mixStereo(FRAMES);
+        assertEquals(0, cache.hits() + cache.misses());
+    }
+
+    @Test
+    void testFullStacksDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        VoiceMixer mixer = new VoiceMixer(AudioConfig.MAX_POLYPHONY, RATE);
+        mixer.setWaveform(Waveform.SAW);
+        mixer.setUnison(new Unison(Unison.MAX_OSCILLATORS, 30, 1f));
+        byte[] buffer = new byte[FRAMES * 2];
+        for (int i = 0; i < 2_000; i++) {
+            mixer.noteOn(i % 8 + 1, 110 + 20 * (i % 8));
+            mixer.render(buffer, 0, FRAMES);
+            mixer.noteOff(i % 8 + 1);
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 200; i++) {
+            mixer.noteOn(i % 8 + 1, 110 + 20 * (i % 8));
+            mixer.render(buffer, 0, FRAMES);
+            mixer.noteOff(i % 8 + 1);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(0, allocated, "bytes allocated while rendering unison stacks");
+    }
+}
+
+// AudioRegressionTest.java
+class AudioRegressionTest {
+    private List<NoteScript> scripts;
+    private Map<String, String> golden;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        scripts = NoteScript.standard(Files.createTempDirectory("regression"));
+        golden = AudioRegression.load(AudioRegression.GOLDEN_FILE);
+        assertFalse(golden.isEmpty(), "No golden file at " + AudioRegression.GOLDEN_FILE.toAbsolutePath());
+    }
+
+    @Test
+    void testOutputMatchesGoldenChecksums() {
+        for (NoteScript script : scripts) {
+            byte[] pcm = AudioRegression.render(script);
+            String expected = golden.get(script.name + ".crc32");
+            assertNotNull(expected, "No golden checksum for " + script.name);
+            String actual = Long.toHexString(AudioRegression.checksum(pcm));
+            if (!expected.equals(actual)) {
+                // Say whether the change is audible or only numerical
+                double distance = AudioRegression.fingerprint(pcm)
+                    .distance(SpectralFingerprint.decode(golden.get(script.name + ".spectrum")));
+                fail(script.name + " renders differently: CRC-32 " + actual + ", expected " + expected
+                    + "; spectrum is " + distance + " dB from the golden one");
+            }
+        }
+    }
+
+    @Test
+    void testSpectraMatchGoldenFingerprints() {
+        for (NoteScript script : scripts) {
+            SpectralFingerprint expected = SpectralFingerprint.decode(golden.get(script.name + ".spectrum"));
+            SpectralFingerprint actual = AudioRegression.fingerprint(AudioRegression.render(script));
+            assertTrue(actual.distance(expected) <= AudioRegression.SPECTRUM_TOLERANCE_DB,
+                script.name + " spectrum " + actual.encode() + ", expected " + expected.encode());
+        }
+    }
+
+    @Test
+    void testRenderingIsDeterministic() {
+        for (NoteScript script : scripts) {
+            assertArrayEquals(AudioRegression.render(script), AudioRegression.render(script), script.name);
+        }
+    }
+
+    @Test
+    void testNoteCacheDoesNotChangeOutput() {
+        assertEquals(golden.get("rapid_repeat.crc32"), golden.get("rapid_repeat_cached.crc32"));
+    }
+
+    @Test
+    void testNotesStartOnTheirFrame() {
+        // The headless counterpart of the device latency test: an event sounds on its own sample
+        for (long frame : new long[] {0, 1, 511, 512, 1000, 4097}) {
+            NoteScript script = new NoteScript("onset", 1, frame + 64,
+                List.of(NoteEvent.noteOn(frame, 1, 440)), mixer -> mixer.setWaveform(Waveform.SAW));
+            byte[] pcm = AudioRegression.render(script);
+            int frameBytes = AudioRegression.FORMAT.frameBytes();
+            for (int i = 0; i < frame * frameBytes; i++) {
+                assertEquals(0, pcm[i], "frame " + i / frameBytes + " before the note at " + frame);
+            }
+            boolean sounding = false;
+            for (int i = (int) frame * frameBytes; i < (frame + 4) * frameBytes; i++) {
+                sounding |= pcm[i] != 0;
+            }
+            assertTrue(sounding, "silent after the note at " + frame);
+        }
+    }
+
+    @Test
+    void testRenderTimeWithinBaseline() throws Exception {
+        // Baseline times are from the gating machine; anywhere else they only measure the hardware
+        Assumptions.assumeTrue(Boolean.getBoolean("synth.perf.gate"), "synth.perf.gate is not set");
+        Map<String, String> baselines = AudioRegression.load(AudioRegression.BASELINE_FILE);
+        Assumptions.assumeFalse(baselines.isEmpty(), "No baselines at " + AudioRegression.BASELINE_FILE);
+        for (NoteScript script : scripts) {
+            double baseline = Double.parseDouble(baselines.get(script.name + ".ns_per_frame"));
+            double actual = AudioRegression.nanosPerFrame(script, AudioRegression.TIMED_RUNS);
+            assertTrue(actual <= baseline * (1 + AudioRegression.TIME_TOLERANCE),
+                script.name + " takes " + actual + " ns per frame, baseline " + baseline);
+        }
+    }
+
+    @Test
+    void testAllocationWithinBaseline() throws Exception {
+        Map<String, String> baselines = AudioRegression.load(AudioRegression.BASELINE_FILE);
+        Assumptions.assumeFalse(baselines.isEmpty(), "No baselines at " + AudioRegression.BASELINE_FILE);
+        for (NoteScript script : scripts) {
+            double baseline = Double.parseDouble(baselines.get(script.name + ".bytes_per_frame"));
+            double actual = AudioRegression.bytesPerFrame(script);
+            assertTrue(actual <= baseline + AudioRegression.ALLOCATION_TOLERANCE,
+                script.name + " allocates " + actual + " bytes per frame, baseline " + baseline);
+        }
+    }
+}
+
+// TestHelper.java
+class TestHelper {
+    static void waitForAudio(int milliseconds) {
+        try {
+            Thread.sleep(milliseconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static boolean isAudioPlaying(SourceDataLine line) {
+        return line != null && line.isActive();
+    }
+}
+
+// FakeSourceDataLine.java
+/**
+ * Output line that consumes audio at real-time pace without a sound card.
+ * A simulated device plays the buffered frames back in real time and
+ * {@code write} blocks while the buffer is full, so tests can observe the
+ * render thread stalling on I/O or the buffer running dry.
+ */
+class FakeSourceDataLine implements SourceDataLine {
+    private volatile AudioFormat format = new AudioFormat(AudioConfig.SAMPLE_RATE, 16, 1, true, true);
+    private final java.util.concurrent.atomic.AtomicLong blocked = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.Set<Thread> writers = java.util.concurrent.ConcurrentHashMap.newKeySet();
+    private volatile boolean open;
+    private volatile boolean running;
+    private volatile int bufferSize = AudioConfig.BUFFER_SIZE;
+    private volatile long writeDelayNanos;
+    private volatile int opens;
+    private long framesWritten;
+    private long framesPlayed;
+    private long lastUpdate;
+
+    long blockedNanos() {
+        return blocked.get();
+    }
+
+    /**
+     * @return Whether {@code thread} ever called {@link #write}
+     */
+    boolean writtenFrom(Thread thread) {
+        return writers.contains(thread);
+    }
+
+    /**
+     * Holds the caller after every write, as if rendering the next block
+     * were too slow.
+     */
+    void setWriteDelayNanos(long nanos) {
+        writeDelayNanos = nanos;
+    }
+
+    int openCount() {
+        return opens;
+    }
+
+    @Override
+    public void open(AudioFormat format, int bufferSize) {
+        this.format = format;
+        this.bufferSize = bufferSize;
+        opens++;
+        open = true;
+    }
+
+    @Override
+    public void open(AudioFormat format) {
+        open(format, AudioConfig.BUFFER_SIZE);
+    }
+
+    @Override
+    public void open() {
+        open(format, AudioConfig.BUFFER_SIZE);
+    }
+
+    @Override
+    public int write(byte[] b, int off, int len) {
+        writers.add(Thread.currentThread());
+        long start = System.nanoTime();
+        int frames = len / format.getFrameSize();
+        int capacity = bufferSize / format.getFrameSize();
+        long excess;
+        while ((excess = queuedFrames() + frames - capacity) > 0) {
+            java.util.concurrent.locks.LockSupport.parkNanos(excess * 1_000_000_000L / (long) format.getSampleRate());
+        }
+        synchronized (this) {
+            framesWritten += frames;
+        }
+        blocked.addAndGet(System.nanoTime() - start);
+        if (writeDelayNanos > 0) {
+            java.util.concurrent.locks.LockSupport.parkNanos(writeDelayNanos);
+        }
+        return len;
+    }
+
+    /** Advances the simulated playhead; it never passes the written frames */
+    private synchronized long queuedFrames() {
+        long now = System.nanoTime();
+        if (running) {
+            long elapsed = (now - lastUpdate) * (long) format.getSampleRate() / 1_000_000_000L;
+            framesPlayed = Math.min(framesWritten, framesPlayed + elapsed);
+        }
+        lastUpdate = now;
+        return framesWritten - framesPlayed;
+    }
+
+    @Override
+    public void drain() {
+    }
+
+    @Override
+    public synchronized void flush() {
+        framesPlayed = framesWritten;
+    }
+
+    @Override
+    public synchronized void start() {
+        lastUpdate = System.nanoTime();
+        running = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        queuedFrames();
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isActive() {
+        return running;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public int available() {
+        return bufferSize - (int) queuedFrames() * format.getFrameSize();
+    }
+
+    @Override
+    public synchronized int getFramePosition() {
+        return (int) framesPlayed;
+    }
+
+    @Override
+    public synchronized long getLongFramePosition() {
+        return framesPlayed;
+    }
+
+    @Override
+    public synchronized long getMicrosecondPosition() {
+        return framesPlayed * 1_000_000L / (long) format.getSampleRate();
+    }
+
+    @Override
+    public float getLevel() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    @Override
+    public Line.Info getLineInfo() {
+        return new DataLine.Info(SourceDataLine.class, format);
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    @Override
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    @Override
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("Unsupported control type: " + control);
+    }
+
+    @Override
+    public void addLineListener(LineListener listener) {
+    }
+
+    @Override
+    public void removeLineListener(LineListener listener) {
+    }
+}
+
+// LoopbackMidiDevice.java
+/**
+ * Software MIDI port whose receiver feeds its transmitters, delivering on
+ * a separate thread as a driver would. Lets MIDI tests run headless.
+ */
+class LoopbackMidiDevice implements MidiDevice {
+    private final MidiDevice.Info info = new MidiDevice.Info("Loopback", "test", "Software MIDI loopback", "1.0") {
+    };
+    private final java.util.concurrent.BlockingQueue<MidiMessage> pending =
+        new java.util.concurrent.LinkedBlockingQueue<>();
+    private final List<Transmitter> transmitters = new java.util.concurrent.CopyOnWriteArrayList<>();
+    private final java.util.concurrent.atomic.AtomicLong sent = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong delivered = new java.util.concurrent.atomic.AtomicLong();
+    private Thread delivery;
+
+    /**
+     * Waits until every message sent so far has been passed on.
+     */
+    void awaitDelivery() throws InterruptedException {
+        long target = sent.get();
+        while (delivered.get() < target) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Override
+    public Info getDeviceInfo() {
+        return info;
+    }
+
+    @Override
+    public synchronized void open() {
+        if (delivery != null) {
+            return;
+        }
+        delivery = new Thread(() -> {
+            try {
+                while (true) {
+                    MidiMessage message = pending.take();
+                    for (Transmitter transmitter : transmitters) {
+                        Receiver receiver = transmitter.getReceiver();
+                        if (receiver != null) {
+                            receiver.send(message, -1);
+                        }
+                    }
+                    delivered.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "midi-loopback");
+        delivery.setDaemon(true);
+        delivery.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (delivery != null) {
+            delivery.interrupt();
+            delivery = null;
+        }
+        transmitters.clear();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return delivery != null;
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return -1;
+    }
+
+    @Override
+    public int getMaxReceivers() {
+        return -1;
+    }
+
+    @Override
+    public int getMaxTransmitters() {
+        return -1;
+    }
+
+    @Override
+    public Receiver getReceiver() {
+        return new Receiver() {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                sent.incrementAndGet();
+                pending.add((MidiMessage) message.clone());
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public List<Receiver> getReceivers() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public Transmitter getTransmitter() {
+        Transmitter transmitter = new Transmitter() {
+            private volatile Receiver receiver;
+
+            @Override
+            public void setReceiver(Receiver receiver) {
+                this.receiver = receiver;
+            }
+
+            @Override
+            public Receiver getReceiver() {
+                return receiver;
+            }
+
+            @Override
+            public void close() {
+                transmitters.remove(this);
+            }
+        };
+        transmitters.add(transmitter);
+        return transmitter;
+    }
+
+    @Override
+    public List<Transmitter> getTransmitters() {
+        return new ArrayList<>(transmitters);
     }
 }
\ No newline at end of file
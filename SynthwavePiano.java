@@ -0,0 +1,101 @@
+package com.synthwave.piano;
+
+import javafx.application.Application;
+import javafx.scene.Scene;
+import javafx.scene.layout.Pane;
+import javafx.stage.Stage;
+
+public class SynthwavePiano extends Application {
+    private PianoSynth synth; // All sound, MIDI and recording; this class only draws and forwards input
+    private KeyboardCanvas keyboard;
+    private int mouseNote = -1; // Note held by the mouse, -1 when none
+
+    @Override
+    public void start(Stage primaryStage) {
+        synth = PianoSynth.open();
+
+        Pane root = new Pane();
+        root.setStyle("-fx-background-color: #120458;"); // Dark synthwave background
+
+        // Create piano keys
+        createKeyboard(root);
+
+        Scene scene = new Scene(root, 800, 400);
+        primaryStage.setTitle("Synthwave Piano");
+        primaryStage.setScene(scene);
+        primaryStage.show();
+    }
+
+    private void createKeyboard(Pane root) {
+        int lowNote = Integer.getInteger("synth.keys.low", AudioConfig.LOWEST_KEY);
+        int highNote = Integer.getInteger("synth.keys.high", AudioConfig.HIGHEST_KEY);
+        synth.engine().setKeyPanSpread(lowNote, highNote, AudioConfig.KEY_PAN_WIDTH);
+        keyboard = new KeyboardCanvas(lowNote, highNote, 800, StyleConstants.WHITE_KEY_HEIGHT);
+        keyboard.setLayoutY(50);
+        keyboard.widthProperty().bind(root.widthProperty());
+        
+        // One set of handlers for the whole keyboard; keys are found by arithmetic
+        keyboard.setOnMousePressed(e -> pressAt(e.getX(), e.getY()));
+        keyboard.setOnMouseDragged(e -> pressAt(e.getX(), e.getY()));
+        keyboard.setOnMouseReleased(e -> releaseMouse());
+        
+        root.getChildren().add(keyboard);
+    }
+
+    private void pressAt(double x, double y) {
+        int note = keyboard.layout().noteAt(x, y);
+        if (note == mouseNote) {
+            return;
+        }
+        // Dragging onto another key plays it, like a glissando
+        releaseMouse();
+        if (note >= 0) {
+            mouseNote = note;
+            startNote(note);
+        }
+    }
+
+    private void releaseMouse() {
+        if (mouseNote >= 0) {
+            stopNote(mouseNote);
+            mouseNote = -1;
+        }
+    }
+
+    void startNote(int note) {
+        if (synth.noteOn(note, 127)) {
+            // Visual feedback
+            keyboard.setPressed(note, true);
+        }
+    }
+
+    void stopNote(int note) {
+        synth.noteOff(note);
+        
+        // Reset key color
+        keyboard.setPressed(note, false);
+    }
+
+    KeyboardCanvas getKeyboard() {
+        return keyboard;
+    }
+
+    NoteTable getNoteTable() {
+        return synth.noteTable();
+    }
+
+    int getActiveNoteCount() {
+        return synth.activeNoteCount();
+    }
+
+    @Override
+    public void stop() {
+        if (synth != null) {
+            synth.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        launch(args);
+    }
+}
\ No newline at end of file
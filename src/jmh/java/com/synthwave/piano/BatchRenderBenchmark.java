@@ -0,0 +1,57 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Corpus throughput of the batch renderer for increasing worker counts.
+ *
+ * <p>Scores are sequences per second; with linear scaling the score
+ * doubles with {@code threads} up to the number of physical cores. Output
+ * is discarded so disk speed does not cap the result.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchRenderBenchmark {
+    static final int SEQUENCES = 64;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private List<List<NoteEvent>> corpus;
+    private BatchRenderer renderer;
+
+    @Setup
+    public void setUp() {
+        corpus = new ArrayList<>();
+        for (int s = 0; s < SEQUENCES; s++) {
+            List<NoteEvent> events = new ArrayList<>();
+            for (int n = 0; n < 8; n++) {
+                long start = n * AudioConfig.SAMPLE_RATE / 4L;
+                events.add(NoteEvent.noteOn(start, n + 1, 220 + 15 * ((s + n) % 24)));
+                events.add(NoteEvent.noteOff(start + AudioConfig.SAMPLE_RATE / 2, n + 1));
+            }
+            corpus.add(events);
+        }
+        renderer = new BatchRenderer(AudioConfig.MAX_POLYPHONY, AudioConfig.SAMPLE_RATE, 0, threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        renderer.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEQUENCES)
+    public void renderCorpus() throws IOException {
+        renderer.renderAll(corpus, i -> OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,60 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of each arithmetic stage of the block pipeline for the
+ * scalar and the Vector API kernel.
+ *
+ * <p>Run on each target architecture (x86-64 and aarch64 Linux); the
+ * ratio between the two {@code kernel} values is the SIMD speedup.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class BlockKernelBenchmark {
+    @Param({"scalar", "vector"})
+    public String kernel;
+
+    private BlockKernel impl;
+    private float[] src;
+    private float[] dst;
+    private short[] pcm;
+
+    @Setup
+    public void setUp() {
+        System.setProperty("synth.kernel", kernel);
+        impl = BlockKernel.select();
+        src = new float[SynthesisBenchmark.FRAMES];
+        dst = new float[SynthesisBenchmark.FRAMES];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (float) (0.3 * Math.sin(2.0 * Math.PI * i / 100));
+        }
+        pcm = new short[SynthesisBenchmark.FRAMES];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SynthesisBenchmark.FRAMES)
+    public float[] accumulate() {
+        impl.accumulate(src, 0.5f, dst, SynthesisBenchmark.FRAMES);
+        return dst;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SynthesisBenchmark.FRAMES)
+    public float[] scaleAndClip() {
+        impl.scaleAndClip(dst, 0.999f, SynthesisBenchmark.FRAMES);
+        return dst;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SynthesisBenchmark.FRAMES)
+    public short[] toPcm16() {
+        impl.toPcm16(src, pcm, SynthesisBenchmark.FRAMES);
+        return pcm;
+    }
+}
@@ -0,0 +1,63 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of each effect for one stereo block at the two common sample
+ * rates.
+ *
+ * <p>Scores are microseconds per {@code FRAMES}-sample block; compare them
+ * with the block's real-time duration (about 46 ms at 44.1 kHz, 43 ms at
+ * 48 kHz) to see how much of the render budget each effect takes.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EffectBenchmark {
+    @Param({"filter", "delay", "chorus", "reverb"})
+    public String effect;
+
+    @Param({"44100", "48000"})
+    public int sampleRate;
+
+    private Effect impl;
+    private float[] left;
+    private float[] right;
+    private float[] input;
+
+    @Setup
+    public void setUp() {
+        switch (effect) {
+            case "filter":
+                impl = new FilterEffect(sampleRate);
+                break;
+            case "delay":
+                impl = new DelayEffect(sampleRate);
+                break;
+            case "chorus":
+                impl = new ChorusEffect(sampleRate);
+                break;
+            default:
+                impl = new ReverbEffect(sampleRate);
+                break;
+        }
+        input = new float[SynthesisBenchmark.FRAMES];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (float) (0.3 * Math.sin(2.0 * Math.PI * 220 * i / sampleRate));
+        }
+        left = new float[input.length];
+        right = new float[input.length];
+    }
+
+    @Benchmark
+    public float[] processBlock() {
+        System.arraycopy(input, 0, left, 0, left.length);
+        System.arraycopy(input, 0, right, 0, right.length);
+        impl.process(left, right, left.length);
+        return left;
+    }
+}
@@ -0,0 +1,37 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of posting a note-on/note-off pair from the UI side and applying
+ * both on the render side. The zero-length block isolates dispatch from
+ * synthesis.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDispatchBenchmark {
+    private AudioEngine engine;
+    private byte[] out;
+
+    @Setup
+    public void setUp() {
+        // Never started, so no output line is needed
+        engine = new AudioEngine(null, AudioConfig.MAX_POLYPHONY);
+        out = new byte[0];
+    }
+
+    @Benchmark
+    public void pressAndRelease(Blackhole blackhole) {
+        long start = System.nanoTime();
+        int id = engine.noteOn(440);
+        engine.noteOff(id);
+        engine.renderBlock(out, 0, start, System.nanoTime() + 1);
+        blackhole.consume(id);
+    }
+}
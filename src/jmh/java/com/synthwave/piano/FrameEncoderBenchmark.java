@@ -0,0 +1,53 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame cost of converting the stereo float bus to each output format.
+ *
+ * <p>Compare {@code PCM_16}, mono, big-endian with
+ * {@link PcmEncodeBenchmark}, the original two-pass path through a
+ * {@code short[]}.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncoderBenchmark {
+    @Param({"PCM_16", "PCM_24", "FLOAT_32"})
+    public String encoding;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    @Param({"true", "false"})
+    public boolean bigEndian;
+
+    private FrameEncoder encoder;
+    private float[] left;
+    private float[] right;
+    private byte[] out;
+
+    @Setup
+    public void setUp() {
+        SampleEncoding sampleEncoding = SampleEncoding.valueOf(encoding);
+        encoder = new OutputFormat(AudioConfig.SAMPLE_RATE, channels, sampleEncoding, bigEndian).encoder();
+        left = new float[SynthesisBenchmark.FRAMES];
+        right = new float[SynthesisBenchmark.FRAMES];
+        for (int i = 0; i < left.length; i++) {
+            left[i] = (float) (0.5 * Math.sin(2.0 * Math.PI * i / 100));
+            right[i] = (float) (0.5 * Math.cos(2.0 * Math.PI * i / 100));
+        }
+        out = new byte[left.length * 8];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SynthesisBenchmark.FRAMES)
+    public byte[] encode() {
+        encoder.encode(left, right, SynthesisBenchmark.FRAMES, out, 0);
+        return out;
+    }
+}
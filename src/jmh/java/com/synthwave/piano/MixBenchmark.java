@@ -0,0 +1,43 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mixing N sounding voices and encoding the result, per output
+ * sample.
+ *
+ * <p>Divide a block's real-time duration by {@code FRAMES} times the score
+ * to see how close a given voice count comes to the render budget; the
+ * 64 and 128 voice cases are where load shedding is expected to engage on
+ * slower machines.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixBenchmark {
+    @Param({"1", "4", "16", "64", "128"})
+    public int voices;
+
+    private VoiceMixer mixer;
+    private byte[] out;
+
+    @Setup
+    public void setUp() {
+        mixer = new VoiceMixer(voices, AudioConfig.SAMPLE_RATE);
+        for (int i = 0; i < voices; i++) {
+            mixer.apply(NoteEvent.noteOn(i + 1, 220 + 20 * i));
+        }
+        out = new byte[SynthesisBenchmark.FRAMES * 2];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SynthesisBenchmark.FRAMES)
+    public byte[] mixBlock() {
+        mixer.render(out, 0, SynthesisBenchmark.FRAMES);
+        return out;
+    }
+}
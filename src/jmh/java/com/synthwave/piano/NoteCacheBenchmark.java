@@ -0,0 +1,51 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of a note's first block with and without a
+ * {@link NoteCache}, for the rapid-repeat pattern of one key struck over
+ * and over: after the first strike every attack is a copy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoteCacheBenchmark {
+    @Param({"false", "true"})
+    public boolean cached;
+
+    @Param({"SAW", "CLASSIC"})
+    public String waveform;
+
+    private Waveform shape;
+    private VoicePool pool;
+    private float[] block;
+    private int id;
+
+    @Setup
+    public void setUp() {
+        shape = Waveform.valueOf(waveform);
+        pool = new VoicePool(1, AudioConfig.SAMPLE_RATE);
+        if (cached) {
+            // Attacks exactly one block long, so a strike is all copy or all synthesis
+            pool.setCache(new NoteCache(1 << 20, SynthesisBenchmark.FRAMES));
+        }
+        block = new float[SynthesisBenchmark.FRAMES];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SynthesisBenchmark.FRAMES)
+    public float[] strike() {
+        int v = pool.allocate(++id, 440, 1f, shape);
+        pool.render(v, block, SynthesisBenchmark.FRAMES);
+        // Free the voice at once so the next strike starts from phase zero
+        pool.releaseStep[v] = 1f;
+        pool.release(id);
+        pool.applyEnvelope(v, block, 1);
+        return block;
+    }
+}
@@ -0,0 +1,38 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of converting one clipped float block to 16-bit big-endian PCM,
+ * per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcmEncodeBenchmark {
+    private float[] samples;
+    private short[] pcm;
+    private byte[] out;
+
+    @Setup
+    public void setUp() {
+        samples = new float[SynthesisBenchmark.FRAMES];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) Math.sin(2.0 * Math.PI * i / 100);
+        }
+        pcm = new short[samples.length];
+        out = new byte[samples.length * 2];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SynthesisBenchmark.FRAMES)
+    public byte[] encode() {
+        BlockKernel.select().toPcm16(samples, pcm, samples.length);
+        PcmEncoder.pack16BigEndian(pcm, samples.length, out, 0);
+        return out;
+    }
+}
@@ -0,0 +1,42 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of one sampler voice reading a memory-mapped zone at a
+ * non-integer pitch ratio, next to {@link SynthesisBenchmark}'s
+ * wavetable voices. The sample is looped so the voice never ends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplerBenchmark {
+    private VoicePool pool;
+    private float[] mix;
+
+    @Setup
+    public void setUp() throws IOException {
+        short[] pcm = new short[AudioConfig.SAMPLE_RATE];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (8000 * Math.sin(2.0 * Math.PI * 261.63 * i / AudioConfig.SAMPLE_RATE));
+        }
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("bench", ".swsb");
+        file.toFile().deleteOnExit();
+        new SampleBankWriter().add(pcm, AudioConfig.SAMPLE_RATE, 60, 0, 127, 1, 127, 0, pcm.length).write(file);
+        pool = new VoicePool(1, AudioConfig.SAMPLE_RATE);
+        pool.allocate(1, 440, 1f, 0f, Waveform.SINE, Envelope.DEFAULT, SampleBank.open(file));
+        mix = new float[SynthesisBenchmark.FRAMES];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SynthesisBenchmark.FRAMES)
+    public float[] readBlock() {
+        pool.render(0, mix, SynthesisBenchmark.FRAMES);
+        return mix;
+    }
+}
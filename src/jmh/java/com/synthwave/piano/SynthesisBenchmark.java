@@ -0,0 +1,66 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of generating one block of a single voice, from the wavetables and,
+ * for comparison, with the two {@code Math.sin} calls per sample the piano
+ * made before them.
+ *
+ * <p>Reported per sample: {@code @OperationsPerInvocation} divides each
+ * invocation by the block length. Run with {@code -prof gc} to get
+ * allocations per operation ({@code gc.alloc.rate.norm}).</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SynthesisBenchmark {
+    static final int FRAMES = AudioConfig.BUFFER_SIZE / 2;
+
+    /** By name: JMH's generated code lives in a subpackage and cannot see the package-private enum */
+    @Param({"SINE", "SAW", "CLASSIC"})
+    public String waveform;
+
+    private VoicePool pool;
+    private float[] mix;
+    private double angle;
+
+    @Setup
+    public void setUp() {
+        pool = new VoicePool(1, AudioConfig.SAMPLE_RATE);
+        pool.allocate(1, 440, 1f, Waveform.valueOf(waveform));
+        mix = new float[FRAMES];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public float[] generateBlock() {
+        pool.render(0, mix, FRAMES);
+        return mix;
+    }
+
+    /**
+     * The per-sample loop the piano used before wavetables: the classic
+     * tone as a fundamental plus second harmonic. It ignores
+     * {@code waveform}, so its score repeats for each value.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public float[] mathSinBlock() {
+        double delta = 2.0 * Math.PI * 440 / AudioConfig.SAMPLE_RATE;
+        for (int i = 0; i < FRAMES; i++) {
+            double sample = Math.sin(angle) * AudioConfig.BASE_AMPLITUDE;
+            sample += Math.sin(angle * 2) * AudioConfig.HARMONIC_AMPLITUDE;
+            mix[i] = (float) sample;
+            angle += delta;
+            if (angle > 2.0 * Math.PI) {
+                angle -= 2.0 * Math.PI;
+            }
+        }
+        return mix;
+    }
+}
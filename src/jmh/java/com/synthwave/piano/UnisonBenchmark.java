@@ -0,0 +1,41 @@
+package com.synthwave.piano;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one block of one held saw note as its unison stack grows, per
+ * sample, through the full stereo mix. One oscillator is the plain voice.
+ *
+ * <p>Divide the difference from the one-oscillator score by
+ * {@code oscillators - 1} to get the cost of each extra oscillator; with
+ * the stack stored as structure-of-arrays it should stay flat as the
+ * count grows.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnisonBenchmark {
+    @Param({"1", "2", "4", "7", "8", "12", "16"})
+    public int oscillators;
+
+    private VoiceMixer mixer;
+
+    @Setup
+    public void setUp() {
+        mixer = new VoiceMixer(1, AudioConfig.SAMPLE_RATE);
+        mixer.setWaveform(Waveform.SAW);
+        mixer.setUnison(new Unison(oscillators, AudioConfig.UNISON_DETUNE_CENTS, AudioConfig.UNISON_WIDTH));
+        mixer.apply(NoteEvent.noteOn(1, 220));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SynthesisBenchmark.FRAMES)
+    public float[] mixBlock() {
+        mixer.mixStereo(SynthesisBenchmark.FRAMES);
+        return mixer.left();
+    }
+}